@@ -0,0 +1,14 @@
+package cp2023.base;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncStorageSystem extends StorageSystem {
+
+    /**
+     * Executes the transfer without blocking the calling thread.
+     * Invalid transfers complete the returned future exceptionally with a TransferException.
+     * The future can be cancelled as long as the transfer waits for a slot, afterwards cancel() returns false.
+     */
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer);
+
+}
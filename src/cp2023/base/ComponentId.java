@@ -15,6 +15,10 @@ public final class ComponentId implements Comparable<ComponentId> {
         this.id = id;
     }
 
+    public int getId() {
+        return this.id;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (! (obj instanceof ComponentId)) {
@@ -0,0 +1,61 @@
+package cp2023.base;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of the placement of components and the state of devices, meant for frequent polling
+ * (dashboards, placement planners). Queries don't lock anything, so they never hold up transfers.
+ * <p>
+ * Each query about one component or one device gives a state it has had at some moment during the call.
+ * Queries about many of them (and separate calls) are weakly consistent: every component is reported
+ * where it has been at some moment during the call, but not necessarily at the same moment.
+ * A component being transferred is still on its source device until its perform() ends.
+ */
+public interface PlacementQuery {
+
+    /**
+     * @return device the component is on, or null if there is no such component (or it's still being added)
+     */
+    DeviceId getLocation(ComponentId componentId);
+
+    /**
+     * @return whether a transfer of the component has been admitted and hasn't ended yet
+     */
+    boolean isBeingTransferred(ComponentId componentId);
+
+    /**
+     * @return ids of all devices, in ascending order
+     */
+    List<DeviceId> getDevices();
+
+    /**
+     * @throws IllegalArgumentException if there is no such device
+     */
+    int getTotalSlots(DeviceId deviceId);
+
+    /**
+     * @return slots neither taken by a component nor reserved for a transfer to the device, negative
+     *         if the device holds more components than it has slots (after a failed transfer of a cycle)
+     * @throws IllegalArgumentException if there is no such device
+     */
+    int getFreeSlots(DeviceId deviceId);
+
+    /**
+     * @return bytes neither taken by a component nor reserved for a transfer to the device,
+     *         Long.MAX_VALUE if the device has no byte capacity
+     * @throws IllegalArgumentException if there is no such device
+     */
+    long getFreeBytes(DeviceId deviceId);
+
+    /**
+     * @return components on the device, in time proportional to their number
+     * @throws IllegalArgumentException if there is no such device
+     */
+    List<ComponentId> getComponents(DeviceId deviceId);
+
+    /**
+     * @return device of every component, see {@link #getLocation(ComponentId)}
+     */
+    Map<ComponentId, DeviceId> getPlacement();
+}
@@ -0,0 +1,21 @@
+package cp2023.base;
+
+public interface PrioritizedTransfer extends ComponentTransfer {
+
+    /**
+     * Priority class of the transfer, higher classes are given freed slots first
+     * (if the storage system uses a priority wake-up policy).
+     */
+    default int getPriority() {
+        return 0;
+    }
+
+    /**
+     * Deadline of the transfer as a System.nanoTime() value, transfers with earlier deadlines are given
+     * freed slots first (if the storage system uses the earliest-deadline-first wake-up policy).
+     */
+    default long getDeadline() {
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,15 @@
+package cp2023.base;
+
+public interface SizedTransfer extends ComponentTransfer {
+
+    /**
+     * Size in bytes of the component added by the transfer (moves and deletes use the size
+     * the component has been added with). Counted against the byte capacity of its device,
+     * and used to estimate how long transfers of the component take. An add with a negative size
+     * is rejected with IllegalComponentSize.
+     */
+    default long getComponentSize() {
+        return 0;
+    }
+
+}
@@ -7,10 +7,66 @@
  */
 package cp2023.base;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferNotSupported;
 
 public interface StorageSystem {
 
     void execute(ComponentTransfer transfer) throws TransferException;
+
+    /**
+     * Same as execute(), but gives up if the transfer has been waiting for a slot longer than the timeout,
+     * throwing TransferTimedOut. A transfer that has been given its slot always runs to the end.
+     * <p>
+     * The default implementation doesn't execute the transfer, it throws TransferNotSupported.
+     */
+    default void execute(ComponentTransfer transfer, long timeout, TimeUnit unit) throws TransferException {
+        throw new TransferNotSupported(transfer.getComponentId(), "timed transfer");
+    }
+
+    /**
+     * Same as execute(), but returns the reason of a rejection instead of throwing it.
+     * @return TransferStatus.OK if the transfer has been executed
+     */
+    default TransferStatus tryExecute(ComponentTransfer transfer) {
+        try {
+            execute(transfer);
+            return TransferStatus.OK;
+        }
+        catch (TransferException e) {
+            return e.getStatus();
+        }
+    }
+
+    /**
+     * Same as execute() with a timeout, but returns the reason of a rejection (or TIMED_OUT) instead of throwing it.
+     */
+    default TransferStatus tryExecute(ComponentTransfer transfer, long timeout, TimeUnit unit) {
+        try {
+            execute(transfer, timeout, unit);
+            return TransferStatus.OK;
+        }
+        catch (TransferException e) {
+            return e.getStatus();
+        }
+    }
+
+    /**
+     * Executes a batch of transfers, validated and admitted together: if any of them
+     * is not valid, none is executed. Their prepare() and perform() may run on threads
+     * other than the calling one. Returns after all of them are done.
+     * <p>
+     * The default implementation only executes them one after another, on the calling thread.
+     * So it doesn't validate them together, and a batch whose transfers wait for each other
+     * (such as a swap) blocks: implementations able to admit a batch at once should override it.
+     */
+    default void executeAll(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        for (var transfer : transfers) {
+            execute(transfer);
+        }
+    }
     
 }
@@ -0,0 +1,23 @@
+package cp2023.base;
+
+/**
+ * Outcome of {@link StorageSystem#tryExecute}: OK, or the reason why the transfer has been rejected,
+ * one for each {@link cp2023.exceptions.TransferException} of this package, and OTHER for the rest.
+ */
+public enum TransferStatus {
+    OK,
+    ILLEGAL_TRANSFER_TYPE,
+    ILLEGAL_COMPONENT_SIZE,
+    DEVICE_DOES_NOT_EXIST,
+    COMPONENT_ALREADY_EXISTS,
+    COMPONENT_DOES_NOT_EXIST,
+    COMPONENT_DOES_NOT_NEED_TRANSFER,
+    COMPONENT_IS_BEING_OPERATED_ON,
+    DEVICE_IS_CLOSED,
+    DEVICE_IS_OUT_OF_SPACE,
+    TIMED_OUT,
+    INTERRUPTED,
+    ABORTED,
+    UNSUPPORTED,
+    OTHER
+}
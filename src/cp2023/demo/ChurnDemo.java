@@ -0,0 +1,158 @@
+package cp2023.demo;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.solution.MetricsSnapshot;
+import cp2023.solution.StorageSystemImpl;
+import cp2023.solution.StorageSystemOptions;
+
+/**
+ * Cache-tier churn on full devices, with early slot release off and on
+ * (see {@link StorageSystemOptions#setEarlySlotRelease(boolean)}).
+ * <p>
+ * Every thread owns a full device, and keeps evicting its oldest component (an asynchronous delete)
+ * while inserting a new one in its place (a blocking add). Without early release the add waits
+ * until the delete has run perform(), with it the add takes the slot of the delete right away
+ * and only its perform() follows the delete's.
+ * <p>
+ * Usage: ChurnDemo [threads=8] [capacity=16] [prepareMicros=200] [performMicros=100] [seconds=2]
+ */
+public final class ChurnDemo {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            params.put(pair[0], pair[1]);
+        }
+        int threads = Integer.parseInt(params.getOrDefault("threads", "8"));
+        int capacity = Integer.parseInt(params.getOrDefault("capacity", "16"));
+        long prepareNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(params.getOrDefault("prepareMicros", "200")));
+        long performNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(params.getOrDefault("performMicros", "100")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(params.getOrDefault("seconds", "2")));
+
+        System.out.println("threads=" + threads + " capacity=" + capacity
+                + " prepare=" + TimeUnit.NANOSECONDS.toMicros(prepareNanos) + "us"
+                + " perform=" + TimeUnit.NANOSECONDS.toMicros(performNanos) + "us");
+        System.out.printf("%-14s %10s %12s %12s %12s %10s%n",
+                "early release", "inserts/s", "wait p50 us", "wait p99 us", "handoffs", "coalesced");
+        for (boolean earlySlotRelease : new boolean[] {false, true}) {
+            run(earlySlotRelease, threads, capacity, prepareNanos, performNanos, durationNanos);
+        }
+    }
+
+    private static void run(boolean earlySlotRelease, int threads, int capacity,
+                            long prepareNanos, long performNanos, long durationNanos) throws Exception {
+        Map<DeviceId, Integer> capacities = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        AtomicInteger nextComponent = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            capacities.put(new DeviceId(t), capacity);
+            for (int i = 0; i < capacity; i++) {
+                placement.put(new ComponentId(nextComponent.getAndIncrement()), new DeviceId(t));
+            }
+        }
+        // Deletes run on the executor, while their threads already wait for the adds.
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        var system = new StorageSystemImpl(capacities, placement, new StorageSystemOptions()
+                .setExecutor(executor)
+                .setEarlySlotRelease(earlySlotRelease));
+
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        long stopAt = System.nanoTime() + durationNanos;
+        AtomicInteger inserts = new AtomicInteger();
+        Thread[] runners = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            DeviceId device = new DeviceId(t);
+            // Components of the device, oldest first.
+            ArrayDeque<ComponentId> resident = new ArrayDeque<>();
+            for (int i = 0; i < capacity; i++) {
+                resident.add(new ComponentId(t * capacity + i));
+            }
+            runners[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < stopAt) {
+                        var evicting = system.executeAsync(
+                                new Churn(resident.poll(), device, null, prepareNanos, performNanos));
+                        var inserted = new ComponentId(nextComponent.getAndIncrement());
+                        system.execute(new Churn(inserted, null, device, prepareNanos, performNanos));
+                        resident.add(inserted);
+                        evicting.join();
+                        inserts.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("panic: demo thread failed", e);
+                }
+            });
+            runners[t].start();
+        }
+        start.await();
+        for (Thread runner : runners) {
+            runner.join();
+        }
+        executor.shutdown();
+
+        // Deletes never wait, so the waits are those of the adds.
+        MetricsSnapshot metrics = system.getMetricsSnapshot();
+        System.out.printf("%-14s %10.0f %12.1f %12.1f %12d %10d%n", earlySlotRelease ? "on" : "off",
+                inserts.get() / (durationNanos / 1e9),
+                metrics.waitForPrepare().p50() / 1000.0, metrics.waitForPrepare().p99() / 1000.0,
+                metrics.earlySlotHandoffs(), metrics.coalescedAdds());
+    }
+
+    private final static class Churn implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long prepareNanos;
+        private final long performNanos;
+
+        Churn(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId, long prepareNanos, long performNanos) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.prepareNanos = prepareNanos;
+            this.performNanos = performNanos;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            LockSupport.parkNanos(prepareNanos);
+        }
+
+        @Override
+        public void perform() {
+            LockSupport.parkNanos(performNanos);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package cp2023.demo;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.solution.DistributedStorageSystem;
+import cp2023.solution.LoopbackTransport;
+import cp2023.solution.SocketTransport;
+import cp2023.solution.Transport;
+
+/**
+ * Nodes of a distributed storage system in one JVM, connected by the loopback or the localhost socket transport.
+ * <p>
+ * Devices are full and spread round-robin over the nodes, every thread rotates its component over the ring
+ * of devices, executing on the node owning the source device. So every transfer is in a cycle across nodes,
+ * found by edge chasing.
+ * <p>
+ * Usage: DistributedDemo [nodes=3] [devices=12] [transport=loopback|socket] [port=47100] [rounds=200]
+ */
+public final class DistributedDemo {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            params.put(pair[0], pair[1]);
+        }
+        int nodes = Integer.parseInt(params.getOrDefault("nodes", "3"));
+        int devices = Integer.parseInt(params.getOrDefault("devices", "12"));
+        String transportName = params.getOrDefault("transport", "loopback");
+        int port = Integer.parseInt(params.getOrDefault("port", "47100"));
+        // Every round is a full turn of the ring, all threads have to make the same number of moves.
+        int rounds = Integer.parseInt(params.getOrDefault("rounds", "200"));
+
+        Map<DeviceId, Integer> capacities = new HashMap<>();
+        Map<DeviceId, Integer> owners = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        for (int d = 0; d < devices; d++) {
+            capacities.put(new DeviceId(d), 1);
+            owners.put(new DeviceId(d), d % nodes);
+            placement.put(new ComponentId(d), new DeviceId(d));
+        }
+
+        Transport[] transports;
+        if (transportName.equals("socket")) {
+            Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+            for (int n = 0; n < nodes; n++) {
+                addresses.put(n, new InetSocketAddress("127.0.0.1", port + n));
+            }
+            transports = new Transport[nodes];
+            for (int n = 0; n < nodes; n++) {
+                transports[n] = new SocketTransport(n, addresses);
+            }
+        } else {
+            transports = LoopbackTransport.network(nodes);
+        }
+        DistributedStorageSystem[] systems = new DistributedStorageSystem[nodes];
+        for (int n = 0; n < nodes; n++) {
+            systems[n] = new DistributedStorageSystem(n, capacities, owners, placement, transports[n]);
+        }
+
+        LongAdder transfers = new LongAdder();
+        CyclicBarrier start = new CyclicBarrier(devices + 1);
+        Thread[] runners = new Thread[devices];
+        for (int t = 0; t < devices; t++) {
+            int thread = t;
+            runners[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < rounds * devices; i++) {
+                        int at = (thread + i) % devices;
+                        var system = systems[at % nodes];
+                        system.execute(new Move(new ComponentId(thread), new DeviceId(at),
+                                new DeviceId((at + 1) % devices)));
+                        transfers.increment();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("panic: demo thread failed", e);
+                }
+            });
+            runners[t].start();
+        }
+        long begin = System.nanoTime();
+        start.await();
+        for (Thread runner : runners) {
+            runner.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        System.out.printf("nodes=%d devices=%d transport=%s: %d transfers, %.0f transfers/s%n", nodes, devices,
+                transportName, transfers.sum(), transfers.sum() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)));
+        for (var system : systems) {
+            system.close();
+        }
+    }
+
+    private final static class Move implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+
+        Move(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
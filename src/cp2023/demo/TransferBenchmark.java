@@ -0,0 +1,366 @@
+package cp2023.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.ShardedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+/**
+ * Throughput and admission latency (from execute() to the start of prepare()) of the storage system
+ * under a few typical workloads. Every iteration runs on a fresh system, the warmup iterations are not reported.
+ * <p>
+ * Usage: TransferBenchmark [scenario=all] [devices=64] [capacity=8] [threads=8] [ops=2000] [warmup=2] [iterations=5]
+ * [rack=0]
+ * <br>
+ * Scenarios: disjoint, hot, churn, swap, rotation, nearlyFull (or all).
+ * Parameters are given as name=value, e.g. {@code TransferBenchmark scenario=hot threads=32}.
+ * With rack=N, the system is a {@link ShardedStorageSystem} with every N consecutive device ids in one shard
+ * (e.g. {@code scenario=swap rack=2} keeps every cycle inside its shard).
+ * <p>
+ * This is a hand-rolled harness, not JMH: all scenarios share one JVM (no forks), and nothing guards against
+ * dead code elimination or the JIT profiles of earlier scenarios. Its numbers are only fit to compare
+ * changes with at least one warmup iteration and two measured ones (the defaults), one scenario per run,
+ * on the same machine; a run without that prints a warning. They aren't evidence of any absolute speed-up.
+ */
+public final class TransferBenchmark {
+
+    private static final String[] SCENARIOS = { "disjoint", "hot", "churn", "swap", "rotation", "nearlyFull" };
+
+    private final int devices;
+    private final int capacity;
+    private final int threads;
+    private final int ops;
+    private final int rack;
+
+    private TransferBenchmark(int devices, int capacity, int threads, int ops, int rack) {
+        this.devices = devices;
+        this.capacity = capacity;
+        this.threads = threads;
+        this.ops = ops;
+        this.rack = rack;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            params.put(pair[0], pair[1]);
+        }
+        String scenario = params.getOrDefault("scenario", "all");
+        int warmup = Integer.parseInt(params.getOrDefault("warmup", "2"));
+        int iterations = Integer.parseInt(params.getOrDefault("iterations", "5"));
+        TransferBenchmark benchmark = new TransferBenchmark(
+                Integer.parseInt(params.getOrDefault("devices", "64")),
+                Integer.parseInt(params.getOrDefault("capacity", "8")),
+                Integer.parseInt(params.getOrDefault("threads", "8")),
+                Integer.parseInt(params.getOrDefault("ops", "2000")),
+                Integer.parseInt(params.getOrDefault("rack", "0")));
+
+        if (warmup < 1 || iterations < 2) {
+            System.out.println("warning: without warmup and repeated iterations the numbers are not comparable");
+        }
+        System.out.println("devices=" + benchmark.devices + " capacity=" + benchmark.capacity
+                + " threads=" + benchmark.threads + " ops/thread=" + benchmark.ops
+                + (benchmark.rack > 0 ? " rack=" + benchmark.rack : ""));
+        System.out.printf("%-12s %14s %10s %10s %10s%n", "scenario", "ops/s", "p50 us", "p99 us", "p999 us");
+        for (String name : scenario.equals("all") ? SCENARIOS : new String[] { scenario }) {
+            for (int i = 0; i < warmup; i++) {
+                benchmark.run(name);
+            }
+            Result total = new Result();
+            for (int i = 0; i < iterations; i++) {
+                total.add(benchmark.run(name));
+            }
+            total.print(name);
+        }
+    }
+
+    /**
+     * One iteration of the scenario: the threads start together, each one runs its own loop of transfers.
+     */
+    private Result run(String scenario) throws Exception {
+        Map<DeviceId, Integer> capacities = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        List<Worker> workers = new ArrayList<>();
+
+        switch (scenario) {
+            case "disjoint":
+                // Every thread moves its component between its own two devices.
+                for (int t = 0; t < threads; t++) {
+                    capacities.put(dev(2 * t), capacity);
+                    capacities.put(dev(2 * t + 1), capacity);
+                    placement.put(comp(t), dev(2 * t));
+                    int thread = t;
+                    workers.add(system -> {
+                        for (int i = 0; i < ops; i++) {
+                            execute(system, t(comp(thread), dev(2 * thread + i % 2), dev(2 * thread + 1 - i % 2)));
+                        }
+                    });
+                }
+                break;
+            case "hot":
+                // Every thread moves its component to the one hot device and back home.
+                capacities.put(dev(0), capacity);
+                for (int t = 0; t < threads; t++) {
+                    capacities.put(dev(t + 1), 1);
+                    placement.put(comp(t), dev(t + 1));
+                    int thread = t;
+                    workers.add(system -> {
+                        for (int i = 0; i < ops / 2; i++) {
+                            execute(system, t(comp(thread), dev(thread + 1), dev(0)));
+                            execute(system, t(comp(thread), dev(0), dev(thread + 1)));
+                        }
+                    });
+                }
+                break;
+            case "churn":
+                // Components are added to random devices and deleted right away.
+                for (int d = 0; d < devices; d++) {
+                    capacities.put(dev(d), capacity);
+                }
+                for (int t = 0; t < threads; t++) {
+                    int thread = t;
+                    workers.add(system -> {
+                        Random random = new Random(thread);
+                        for (int i = 0; i < ops / 2; i++) {
+                            DeviceId device = dev(random.nextInt(devices));
+                            ComponentId component = comp(thread * ops + i);
+                            execute(system, t(component, null, device));
+                            execute(system, t(component, device, null));
+                        }
+                    });
+                }
+                break;
+            case "swap":
+                // Pairs of threads swap their components between two full devices, every move is in a 2-cycle.
+                for (int t = 0; t < threads; t++) {
+                    capacities.put(dev(t), 1);
+                    placement.put(comp(t), dev(t));
+                    int mine = t;
+                    int other = t ^ 1;
+                    workers.add(system -> {
+                        for (int i = 0; i < ops; i++) {
+                            int from = i % 2 == 0 ? mine : other;
+                            execute(system, t(comp(mine), dev(from), dev(mine + other - from)));
+                        }
+                    });
+                }
+                if (threads % 2 != 0) {
+                    throw new IllegalArgumentException("swap needs an even number of threads");
+                }
+                break;
+            case "rotation":
+                // All threads rotate their components over a ring of full devices, every round is one long cycle.
+                for (int t = 0; t < threads; t++) {
+                    capacities.put(dev(t), 1);
+                    placement.put(comp(t), dev(t));
+                    int thread = t;
+                    workers.add(system -> {
+                        for (int i = 0; i < ops; i++) {
+                            int from = (thread + i) % threads;
+                            execute(system, t(comp(thread), dev(from), dev((from + 1) % threads)));
+                        }
+                    });
+                }
+                break;
+            case "nearlyFull":
+                // Devices have one free slot each, threads move their components between random devices.
+                if (devices < threads) {
+                    throw new IllegalArgumentException("nearlyFull needs at least as many devices as threads");
+                }
+                int filler = threads;
+                for (int d = 0; d < devices; d++) {
+                    capacities.put(dev(d), capacity);
+                    for (int k = 0; k < capacity - 1; k++) {
+                        placement.put(comp(filler++), dev(d));
+                    }
+                }
+                for (int t = 0; t < threads; t++) {
+                    placement.put(comp(t), dev(t));
+                    int thread = t;
+                    workers.add(system -> {
+                        Random random = new Random(thread);
+                        int at = thread;
+                        for (int i = 0; i < ops - 1; i++) {
+                            int to = random.nextInt(devices - 1);
+                            to = to >= at ? to + 1 : to;
+                            execute(system, t(comp(thread), dev(at), dev(to)));
+                            at = to;
+                        }
+                        // Leave the device, so that nobody waits for this component forever.
+                        execute(system, t(comp(thread), dev(at), null));
+                    });
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown scenario " + scenario);
+        }
+
+        StorageSystem system = rack > 0
+                ? StorageSystemFactory.newShardedSystem(capacities, placement, device -> device.getId() / rack)
+                : StorageSystemFactory.newSystem(capacities, placement);
+        CyclicBarrier start = new CyclicBarrier(workers.size() + 1);
+        Thread[] runners = new Thread[workers.size()];
+        long[][] latencies = new long[workers.size()][];
+        for (int t = 0; t < runners.length; t++) {
+            Worker worker = workers.get(t);
+            int thread = t;
+            runners[t] = new Thread(() -> {
+                LATENCIES.get().clear();
+                try {
+                    start.await();
+                    worker.run(system);
+                } catch (Exception e) {
+                    throw new RuntimeException("panic: benchmark thread failed", e);
+                }
+                latencies[thread] = LATENCIES.get().toArray();
+            });
+            runners[t].start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        for (Thread runner : runners) {
+            runner.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        Result result = new Result();
+        result.elapsedNanos = elapsed;
+        for (long[] samples : latencies) {
+            result.addSamples(samples);
+        }
+        return result;
+    }
+
+    private static DeviceId dev(int id) {
+        return new DeviceId(id);
+    }
+
+    private static ComponentId comp(int id) {
+        return new ComponentId(id);
+    }
+
+    private static Transfer t(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId) {
+        return new Transfer(compId, srcDevId, dstDevId);
+    }
+
+    private static void execute(StorageSystem system, Transfer transfer) {
+        transfer.submitted = System.nanoTime();
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " + e.toString(), e);
+        }
+    }
+
+    private interface Worker {
+        void run(StorageSystem system) throws Exception;
+    }
+
+    // Admission latencies of the current thread, recorded by prepare().
+    private static final ThreadLocal<LongList> LATENCIES = ThreadLocal.withInitial(LongList::new);
+
+    private final static class LongList {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private final static class Result {
+        private long elapsedNanos = 0;
+        private final LongList samples = new LongList();
+
+        void addSamples(long[] values) {
+            for (long value : values) {
+                samples.add(value);
+            }
+        }
+
+        void add(Result other) {
+            elapsedNanos += other.elapsedNanos;
+            addSamples(other.samples.toArray());
+        }
+
+        void print(String scenario) {
+            long[] sorted = samples.toArray();
+            Arrays.sort(sorted);
+            double opsPerSecond = sorted.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+            System.out.printf("%-12s %14.0f %10.1f %10.1f %10.1f%n", scenario, opsPerSecond,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+            return sorted[Math.max(index, 0)] / 1000.0;
+        }
+    }
+
+    private final static class Transfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private long submitted;
+
+        Transfer(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            LATENCIES.get().add(System.nanoTime() - this.submitted);
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cp2023.demo;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Runs every transfer on its own virtual thread (needs Java 21):
+ * each thread adds a component, moves it to the next device and deletes it,
+ * so most of the threads spend their time blocked in execute(), waiting for a slot.
+ * Reports carrier pinning (from JFR) and the heap used per blocked thread.
+ * <p>
+ * Usage: VirtualThreadStress [threads=1000000] [devices=1000] [capacity=100]
+ */
+public final class VirtualThreadStress {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads are not available, run this with Java 21 or newer.");
+            return;
+        }
+
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>(devices);
+        for (int i = 0; i < devices; i++) {
+            deviceCapacities.put(new DeviceId(i), capacity);
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceCapacities, new HashMap<>());
+
+        AtomicLong pinnedEvents = new AtomicLong();
+        RecordingStream pinning = new RecordingStream();
+        pinning.enable("jdk.VirtualThreadPinned").withoutThreshold();
+        pinning.onEvent("jdk.VirtualThreadPinned", event -> pinnedEvents.incrementAndGet());
+        pinning.startAsync();
+
+        AtomicInteger alive = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        MemorySampler sampler = new MemorySampler(alive);
+        sampler.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            int compId = i;
+            DeviceId first = new DeviceId(i % devices);
+            DeviceId second = new DeviceId((i + 1) % devices);
+            alive.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    system.execute(new Transfer(compId, null, first));
+                    system.execute(new Transfer(compId, first, second));
+                    system.execute(new Transfer(compId, second, null));
+                } catch (TransferException | RuntimeException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    alive.decrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        sampler.interrupt();
+        sampler.join();
+        // Give JFR a moment to flush the last chunk.
+        Thread.sleep(2000);
+        pinning.close();
+
+        System.out.println("Threads: " + threads + ", transfers: " + 3L * threads
+                + ", failed threads: " + failed.get()
+                + ", time: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        System.out.println("Pinned carrier events: " + pinnedEvents.get());
+        System.out.println("Peak blocked threads: " + sampler.peakAlive
+                + ", heap at that point: " + sampler.heapAtPeak / (1024 * 1024) + " MB"
+                + (sampler.peakAlive > 0 ? ", about " + sampler.heapAtPeak / sampler.peakAlive + " bytes per thread" : ""));
+        if (pinnedEvents.get() > 0 || failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    private final static class MemorySampler extends Thread {
+        private final AtomicInteger alive;
+        private volatile int peakAlive = 0;
+        private volatile long heapAtPeak = 0;
+
+        MemorySampler(AtomicInteger alive) {
+            this.alive = alive;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                int current = alive.get();
+                if (current > peakAlive) {
+                    peakAlive = current;
+                    heapAtPeak = runtime.totalMemory() - runtime.freeMemory();
+                }
+                try {
+                    Thread.sleep(Duration.ofMillis(100).toMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final static class Transfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+
+        Transfer(int compId, DeviceId srcDevId, DeviceId dstDevId) {
+            this.compId = new ComponentId(compId);
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+            // Park inside perform() too, like a real transfer doing I/O.
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package cp2023.demo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.PrioritizedTransfer;
+import cp2023.solution.StorageSystemImpl;
+import cp2023.solution.StorageSystemOptions;
+import cp2023.solution.WakeupPolicy;
+
+/**
+ * Admission latency (from execute() to the start of prepare()) of urgent and background transfers
+ * competing for a saturated device, under each wake-up policy.
+ * <p>
+ * Every thread moves its component between its own device and the shared hot device, which has fewer slots
+ * than there are threads, so nearly every move to the hot device waits. A few threads are urgent:
+ * their transfers have priority 1 and a deadline, the background ones have neither.
+ * <p>
+ * Usage: WakeupPolicyDemo [background=32] [urgent=4] [capacity=4] [performMicros=50] [seconds=2]
+ */
+public final class WakeupPolicyDemo {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected name=value, got " + arg);
+            }
+            params.put(pair[0], pair[1]);
+        }
+        int background = Integer.parseInt(params.getOrDefault("background", "32"));
+        int urgent = Integer.parseInt(params.getOrDefault("urgent", "4"));
+        int capacity = Integer.parseInt(params.getOrDefault("capacity", "4"));
+        long performNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(params.getOrDefault("performMicros", "50")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(params.getOrDefault("seconds", "2")));
+
+        System.out.println("background=" + background + " urgent=" + urgent + " capacity=" + capacity
+                + " perform=" + TimeUnit.NANOSECONDS.toMicros(performNanos) + "us");
+        System.out.printf("%-10s %-10s %10s %10s %10s %10s%n", "policy", "class", "moves", "p50 us", "p99 us", "p999 us");
+        Map<String, WakeupPolicy> policies = new LinkedHashMap<>();
+        policies.put("fifo", WakeupPolicy.FIFO);
+        policies.put("priority", WakeupPolicy.PRIORITY);
+        policies.put("edf", WakeupPolicy.EARLIEST_DEADLINE_FIRST);
+        for (var policy : policies.entrySet()) {
+            run(policy.getKey(), policy.getValue(), background, urgent, capacity, performNanos, durationNanos);
+        }
+    }
+
+    private static void run(String name, WakeupPolicy policy, int background, int urgent, int capacity,
+                            long performNanos, long durationNanos) throws Exception {
+        int threads = background + urgent;
+        DeviceId hot = new DeviceId(0);
+        Map<DeviceId, Integer> capacities = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        capacities.put(hot, capacity);
+        for (int t = 0; t < threads; t++) {
+            capacities.put(new DeviceId(t + 1), 1);
+            placement.put(new ComponentId(t), new DeviceId(t + 1));
+        }
+        var system = new StorageSystemImpl(capacities, placement, new StorageSystemOptions().setWakeupPolicy(policy));
+
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        long stopAt = System.nanoTime() + durationNanos;
+        long[][] latencies = new long[threads][];
+        Thread[] runners = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            // The first threads are the urgent ones.
+            boolean isUrgent = t < urgent;
+            ComponentId component = new ComponentId(t);
+            DeviceId home = new DeviceId(t + 1);
+            int thread = t;
+            runners[t] = new Thread(() -> {
+                long[] samples = new long[1024];
+                int count = 0;
+                try {
+                    start.await();
+                    while (System.nanoTime() < stopAt) {
+                        var toHot = new Move(component, home, hot, isUrgent, performNanos);
+                        system.execute(toHot);
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, 2 * count);
+                        }
+                        samples[count++] = toHot.admissionNanos;
+                        system.execute(new Move(component, hot, home, isUrgent, performNanos));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("panic: demo thread failed", e);
+                }
+                latencies[thread] = Arrays.copyOf(samples, count);
+            });
+            runners[t].start();
+        }
+        start.await();
+        for (Thread runner : runners) {
+            runner.join();
+        }
+
+        print(name, "urgent", Arrays.copyOfRange(latencies, 0, urgent));
+        print(name, "background", Arrays.copyOfRange(latencies, urgent, threads));
+    }
+
+    private static void print(String policy, String kind, long[][] latencies) {
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%-10s %-10s %10d %10.1f %10.1f %10.1f%n", policy, kind, all.length,
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    private final static class Move implements PrioritizedTransfer {
+        // Urgent transfers should start within this time.
+        private static final long URGENT_DEADLINE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final boolean urgent;
+        private final long performNanos;
+        private final long submitted = System.nanoTime();
+        private long admissionNanos;
+
+        Move(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId, boolean urgent, long performNanos) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.urgent = urgent;
+            this.performNanos = performNanos;
+        }
+
+        @Override
+        public int getPriority() {
+            return urgent ? 1 : 0;
+        }
+
+        @Override
+        public long getDeadline() {
+            return urgent ? submitted + URGENT_DEADLINE_NANOS : Long.MAX_VALUE;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            admissionNanos = System.nanoTime() - submitted;
+        }
+
+        @Override
+        public void perform() {
+            LockSupport.parkNanos(performNanos);
+        }
+    }
+}
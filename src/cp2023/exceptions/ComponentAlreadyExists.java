@@ -9,6 +9,7 @@ package cp2023.exceptions;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
 
 public final class ComponentAlreadyExists extends TransferException {
 
@@ -18,13 +19,13 @@ public final class ComponentAlreadyExists extends TransferException {
     private final DeviceId    devId;
     
     public ComponentAlreadyExists(ComponentId compId) {
-        super("component " + compId.toString() + " already awaits to be uploaded");
+        super(TransferStatus.COMPONENT_ALREADY_EXISTS);
         this.compId = compId;
         this.devId = null;
     }
     
     public ComponentAlreadyExists(ComponentId compId, DeviceId devId) {
-        super("component " + compId.toString() + " already exists on device " + devId.toString());
+        super(TransferStatus.COMPONENT_ALREADY_EXISTS);
         this.compId = compId;
         this.devId = devId;
     }
@@ -36,4 +37,12 @@ public final class ComponentAlreadyExists extends TransferException {
     public DeviceId getDeviceId() {
         return this.devId;
     }
+
+    @Override
+    public String getMessage() {
+        if (devId == null) {
+            return "component " + compId.toString() + " already awaits to be uploaded";
+        }
+        return "component " + compId.toString() + " already exists on device " + devId.toString();
+    }
 }
@@ -9,6 +9,7 @@ package cp2023.exceptions;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
 
 public final class ComponentDoesNotExist extends TransferException {
 
@@ -18,7 +19,7 @@ public final class ComponentDoesNotExist extends TransferException {
     private final DeviceId    devId;
     
     public ComponentDoesNotExist(ComponentId compId, DeviceId devId) {
-        super("component " + compId.toString() + " does not exist on device " + devId.toString());
+        super(TransferStatus.COMPONENT_DOES_NOT_EXIST);
         this.compId = compId;
         this.devId = devId;
     }
@@ -30,4 +31,9 @@ public final class ComponentDoesNotExist extends TransferException {
     public DeviceId getDeviceId() {
         return this.devId;
     }
+
+    @Override
+    public String getMessage() {
+        return "component " + compId.toString() + " does not exist on device " + devId.toString();
+    }
 }
@@ -9,6 +9,7 @@ package cp2023.exceptions;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
 
 public final class ComponentDoesNotNeedTransfer extends TransferException {
 
@@ -18,9 +19,7 @@ public final class ComponentDoesNotNeedTransfer extends TransferException {
     private final DeviceId    devId;
     
     public ComponentDoesNotNeedTransfer(ComponentId compId, DeviceId devId) {
-        super("component " + compId.toString() +
-                " does not need a transfer from device " + devId.toString() +
-                " to the same device");
+        super(TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER);
         this.compId = compId;
         this.devId = devId;
     }
@@ -32,4 +31,11 @@ public final class ComponentDoesNotNeedTransfer extends TransferException {
     public DeviceId getDeviceId() {
         return this.devId;
     }
+
+    @Override
+    public String getMessage() {
+        return "component " + compId.toString() +
+                " does not need a transfer from device " + devId.toString() +
+                " to the same device";
+    }
 }
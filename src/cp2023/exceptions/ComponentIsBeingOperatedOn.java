@@ -8,6 +8,7 @@
 package cp2023.exceptions;
 
 import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
 
 public final class ComponentIsBeingOperatedOn extends TransferException {
 
@@ -16,11 +17,16 @@ public final class ComponentIsBeingOperatedOn extends TransferException {
     private final ComponentId compId;
     
     public ComponentIsBeingOperatedOn(ComponentId compId) {
-        super("component " + compId.toString() + " is being operated on");
+        super(TransferStatus.COMPONENT_IS_BEING_OPERATED_ON);
         this.compId = compId;
     }
     
     public ComponentId getComponentId() {
         return this.compId;
     }
+
+    @Override
+    public String getMessage() {
+        return "component " + compId.toString() + " is being operated on";
+    }
 }
@@ -8,6 +8,7 @@
 package cp2023.exceptions;
 
 import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
 
 public final class DeviceDoesNotExist extends TransferException {
 
@@ -16,11 +17,16 @@ public final class DeviceDoesNotExist extends TransferException {
     private final DeviceId devId;
     
     public DeviceDoesNotExist(DeviceId devId) {
-        super("device " + devId.toString() + " does not exist");
+        super(TransferStatus.DEVICE_DOES_NOT_EXIST);
         this.devId = devId;
     }
     
     public DeviceId getDeviceId() {
         return this.devId;
     }
+
+    @Override
+    public String getMessage() {
+        return "device " + devId.toString() + " does not exist";
+    }
 }
@@ -0,0 +1,25 @@
+package cp2023.exceptions;
+
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+
+public final class DeviceIsClosed extends TransferException {
+
+    private static final long serialVersionUID = -3077265618212508911L;
+
+    private final DeviceId devId;
+
+    public DeviceIsClosed(DeviceId devId) {
+        super(TransferStatus.DEVICE_IS_CLOSED);
+        this.devId = devId;
+    }
+
+    public DeviceId getDeviceId() {
+        return this.devId;
+    }
+
+    @Override
+    public String getMessage() {
+        return "device " + devId.toString() + " is closed to inbound transfers";
+    }
+}
@@ -0,0 +1,39 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+
+public final class DeviceIsOutOfSpace extends TransferException {
+
+    private static final long serialVersionUID = 6212880436190519337L;
+
+    private final DeviceId devId;
+    private final ComponentId compId;
+    private final long size;
+
+    public DeviceIsOutOfSpace(DeviceId devId, ComponentId compId, long size) {
+        super(TransferStatus.DEVICE_IS_OUT_OF_SPACE);
+        this.devId = devId;
+        this.compId = compId;
+        this.size = size;
+    }
+
+    public DeviceId getDeviceId() {
+        return this.devId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public String getMessage() {
+        return "device " + devId.toString() + " has no space for the " + size + " bytes of component "
+                + compId.toString();
+    }
+}
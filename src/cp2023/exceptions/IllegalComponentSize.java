@@ -0,0 +1,31 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
+
+public final class IllegalComponentSize extends TransferException {
+
+    private static final long serialVersionUID = 2270461358813546094L;
+
+    private final ComponentId compId;
+    private final long size;
+
+    public IllegalComponentSize(ComponentId compId, long size) {
+        super(TransferStatus.ILLEGAL_COMPONENT_SIZE);
+        this.compId = compId;
+        this.size = size;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public String getMessage() {
+        return "component " + compId.toString() + " cannot be added with a negative size of " + size + " bytes";
+    }
+}
@@ -8,6 +8,7 @@
 package cp2023.exceptions;
 
 import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
 
 public final class IllegalTransferType extends TransferException {
 
@@ -16,12 +17,17 @@ public final class IllegalTransferType extends TransferException {
     private final ComponentId compId;
     
     public IllegalTransferType(ComponentId compId) {
-        super("both source and destination devices are null " +
-                "for component " + compId.toString());
+        super(TransferStatus.ILLEGAL_TRANSFER_TYPE);
         this.compId = compId;
     }
     
     public ComponentId getComponentId() {
         return this.compId;
     }
+
+    @Override
+    public String getMessage() {
+        return "both source and destination devices are null " +
+                "for component " + compId.toString();
+    }
 }
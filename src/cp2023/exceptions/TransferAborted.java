@@ -0,0 +1,25 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
+
+public final class TransferAborted extends TransferException {
+
+    private static final long serialVersionUID = -1638250517842953047L;
+
+    private final ComponentId compId;
+
+    public TransferAborted(ComponentId compId) {
+        super(TransferStatus.ABORTED);
+        this.compId = compId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public String getMessage() {
+        return "transfer of component " + compId.toString() + " aborted, another transfer of its cycle has failed";
+    }
+}
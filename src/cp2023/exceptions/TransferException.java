@@ -7,11 +7,36 @@
  */
 package cp2023.exceptions;
 
+import cp2023.base.TransferStatus;
+
 public abstract class TransferException extends Exception {
 
     private static final long serialVersionUID = -4456854647932628439L;
 
+    private final TransferStatus status;
+
+    /**
+     * Exception with a stack trace and the status OTHER, for subclasses which don't give a status of their own.
+     */
     public TransferException(String message) {
         super(message);
+        this.status = TransferStatus.OTHER;
+    }
+
+    /**
+     * Rejections are part of the normal flow (and a bad client can cause many of them), so they're cheap:
+     * no stack trace, and the subclasses build the message only when it's asked for.
+     * @param status reason of the rejection, see {@link #getStatus()}
+     */
+    protected TransferException(TransferStatus status) {
+        super(null, null, false, false);
+        this.status = status;
+    }
+
+    /**
+     * @return reason of the rejection, as returned by {@link cp2023.base.StorageSystem#tryExecute}
+     */
+    public TransferStatus getStatus() {
+        return status;
     }
 }
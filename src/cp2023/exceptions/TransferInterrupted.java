@@ -0,0 +1,25 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
+
+public final class TransferInterrupted extends TransferException {
+
+    private static final long serialVersionUID = -5318390647526610984L;
+
+    private final ComponentId compId;
+
+    public TransferInterrupted(ComponentId compId) {
+        super(TransferStatus.INTERRUPTED);
+        this.compId = compId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public String getMessage() {
+        return "transfer of component " + compId.toString() + " withdrawn, its thread was interrupted waiting for a slot";
+    }
+}
@@ -0,0 +1,27 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
+
+public final class TransferNotSupported extends TransferException {
+
+    private static final long serialVersionUID = 4791230860237518026L;
+
+    private final ComponentId compId;
+    private final String operation;
+
+    public TransferNotSupported(ComponentId compId, String operation) {
+        super(TransferStatus.UNSUPPORTED);
+        this.compId = compId;
+        this.operation = operation;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public String getMessage() {
+        return operation + " of component " + compId.toString() + " is not supported by this storage system";
+    }
+}
@@ -0,0 +1,25 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.TransferStatus;
+
+public final class TransferTimedOut extends TransferException {
+
+    private static final long serialVersionUID = 3150926347580913845L;
+
+    private final ComponentId compId;
+
+    public TransferTimedOut(ComponentId compId) {
+        super(TransferStatus.TIMED_OUT);
+        this.compId = compId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public String getMessage() {
+        return "transfer of component " + compId.toString() + " timed out waiting for a slot";
+    }
+}
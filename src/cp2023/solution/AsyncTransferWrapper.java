@@ -0,0 +1,36 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transfer submitted with executeAsync(). Nobody waits for the grants,
+ * instead they schedule the next step of the transfer on the executor of its stage.
+ */
+public class AsyncTransferWrapper extends TransferWrapper {
+    private final StorageSystemImpl system;
+    public final CompletableFuture<Void> future;
+
+    public AsyncTransferWrapper(Device sourceDevice, Device destinationDevice, Component component,
+                                ComponentTransfer transfer, StorageSystemImpl system, CompletableFuture<Void> future) {
+        super(sourceDevice, destinationDevice, component, transfer);
+        this.system = system;
+        this.future = future;
+    }
+
+    @Override
+    public void grantPrepare() {
+        system.getPrepareExecutor().execute(() -> system.prepareAsync(this));
+    }
+
+    @Override
+    public void grantPerform() {
+        system.schedulePerform(this);
+    }
+
+    @Override
+    public void grantAbort() {
+        system.abortAsync(this);
+    }
+}
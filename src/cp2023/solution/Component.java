@@ -1,5 +1,7 @@
 package cp2023.solution;
 
+import cp2023.base.ComponentId;
+
 public class Component {
     public boolean isTransferred() {
         return transferred;
@@ -9,7 +11,9 @@ public class Component {
         this.transferred = transferred;
     }
 
-    private boolean transferred = false;
+    // Volatile, because the component is read under the lock of the device it's on,
+    // but its location changes (at the end of a transfer) without any lock.
+    private volatile boolean transferred = false;
 
     public Device getLocation() {
         return location;
@@ -19,9 +23,30 @@ public class Component {
         this.location = location;
     }
 
-    private Device location;
+    private volatile Device location;
+
+    public ComponentId getComponentId() {
+        return componentId;
+    }
+
+    private final ComponentId componentId;
+
+    /**
+     * @return size in bytes, 0 if it's unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    private final long size;
+
+    public Component(ComponentId componentId, Device location) {
+        this(componentId, location, 0);
+    }
 
-    public Component(Device location) {
+    public Component(ComponentId componentId, Device location, long size) {
+        this.componentId = componentId;
         this.location = location;
+        this.size = size;
     }
 }
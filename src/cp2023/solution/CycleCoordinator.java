@@ -0,0 +1,174 @@
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Runs a cycle of transfers: all of them can run prepare() at once,
+ * and perform() only after every transfer of the cycle has run prepare().
+ * Works the same for blocking and asynchronous transfers, so they can be mixed in one cycle.
+ * <p>
+ * A single counter of the parties still to arrive: the transfers, and the thread which grants them prepare()
+ * (so that the coordinator isn't reused while that thread still goes through the transfers).
+ * The last party to arrive wakes all the transfers at once. If a transfer fails in prepare(), the cycle
+ * can't run without it, so the others are aborted instead (see {@link TransferWrapper#grantAbort()}).
+ * Otherwise the same counter then counts the perform()s still to end: a transfer failing in perform()
+ * doesn't stop the others, but its destination slot is only given away after all of them have ended
+ * (see {@link #performed()}).
+ * Coordinators are taken from a {@link Pool} and go back to it as soon as the last party has arrived
+ * (or, if the cycle runs, has run perform()), so cycles (mostly swaps) don't allocate anything.
+ */
+public class CycleCoordinator {
+    private static final VarHandle PENDING;
+
+    static {
+        try {
+            PENDING = MethodHandles.lookup().findVarHandle(CycleCoordinator.class, "pending", int.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Pool pool;
+    private TransferWrapper[] transfers = new TransferWrapper[4];
+    private int size;
+    private volatile int pending;
+    // Set by a failed transfer before it arrives, so that the last party to arrive sees it.
+    private boolean aborted;
+
+    private CycleCoordinator(Pool pool) {
+        this.pool = pool;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void reset(List<TransferWrapper> cycle) {
+        size = cycle.size();
+        if (transfers.length < size) {
+            transfers = new TransferWrapper[Math.max(size, 2 * transfers.length)];
+        }
+        for (int i = 0; i < size; i++) {
+            transfers[i] = cycle.get(i);
+            transfers[i].setCycle(this);
+        }
+        aborted = false;
+        pending = size + 1;
+    }
+
+    /**
+     * Lets all transfers of the cycle run prepare(), called once by the thread which has found the cycle.
+     */
+    public void grantPrepare() {
+        for (int i = 0; i < size; i++) {
+            transfers[i].grantPrepare();
+        }
+        countDown();
+    }
+
+    /**
+     * Called by each transfer of the cycle after its prepare(); the last one lets all of them run perform().
+     */
+    public void arrive() {
+        countDown();
+    }
+
+    /**
+     * Called instead of arrive() by a transfer whose prepare() has failed (and which has been rolled back already).
+     * The others are aborted once all of them have arrived.
+     */
+    public void fail(TransferWrapper failed) {
+        failed.aborted = true;
+        aborted = true;
+        countDown();
+    }
+
+    /**
+     * Called by each transfer of the cycle once its perform() has ended, or has failed: then the transfer
+     * has been rolled back and marked as failed already. Its component has stayed on the source device,
+     * and so the destination slot, which the component of another transfer has left, is free. The last one
+     * gives these slots away, when no transfer of the cycle can still be leaving the device.
+     */
+    public void performed() {
+        if ((int) PENDING.getAndAdd(this, -1) != 1) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (transfers[i].failed) {
+                pool.releaseSlot.accept(transfers[i].destinationDevice);
+            }
+        }
+        recycle();
+    }
+
+    private void countDown() {
+        if ((int) PENDING.getAndAdd(this, -1) != 1) {
+            return;
+        }
+        if (!aborted) {
+            // Set before any perform() is allowed, so that none can end before.
+            pending = size;
+            for (int i = 0; i < size; i++) {
+                transfers[i].grantPerform();
+            }
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!transfers[i].aborted) {
+                transfers[i].grantAbort();
+            }
+        }
+        recycle();
+    }
+
+    private void recycle() {
+        Arrays.fill(transfers, 0, size, null);
+        pool.release(this);
+    }
+
+    /**
+     * Coordinators free for reuse: a fixed array of slots, taken and filled with atomic swaps,
+     * so neither taking nor returning one allocates or blocks. Coordinators which don't fit are left to the GC.
+     */
+    static final class Pool {
+        private final AtomicReferenceArray<CycleCoordinator> free;
+        // Gives away a slot left free by a transfer of a cycle which has failed in perform().
+        private final Consumer<Device> releaseSlot;
+
+        Pool(int capacity, Consumer<Device> releaseSlot) {
+            free = new AtomicReferenceArray<>(capacity);
+            this.releaseSlot = releaseSlot;
+        }
+
+        /**
+         * @return coordinator of the transfers of the cycle, which are given it as their cycle
+         */
+        CycleCoordinator acquire(List<TransferWrapper> cycle) {
+            CycleCoordinator coordinator = null;
+            for (int i = 0; i < free.length() && coordinator == null; i++) {
+                if (free.get(i) != null) {
+                    coordinator = free.getAndSet(i, null);
+                }
+            }
+            if (coordinator == null) {
+                coordinator = new CycleCoordinator(this);
+            }
+            coordinator.reset(cycle);
+            return coordinator;
+        }
+
+        private void release(CycleCoordinator coordinator) {
+            for (int i = 0; i < free.length(); i++) {
+                if (free.get(i) == null && free.compareAndSet(i, null, coordinator)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -2,28 +2,383 @@ package cp2023.solution;
 
 import cp2023.base.DeviceId;
 
-import java.util.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Device {
+    private static final VarHandle FREE_SLOTS;
+    private static final VarHandle USED_BYTES;
+
+    static {
+        try {
+            FREE_SLOTS = MethodHandles.lookup().findVarHandle(Device.class, "freeSlots", int.class);
+            USED_BYTES = MethodHandles.lookup().findVarHandle(Device.class, "usedBytes", long.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     public boolean hasFreeSlots() {
         return freeSlots > 0;
     }
 
-    public void occupyNewSlot() {
-        this.freeSlots -= 1;
+    /**
+     * Takes a free slot, if there is one. Doesn't need the lock, slots are only given back
+     * (under the lock) when nobody waits for them, so this can't overtake a waiting transfer.
+     * @return whether a slot has been taken
+     */
+    public boolean tryOccupySlot() {
+        int free;
+        do {
+            free = freeSlots;
+            if (free <= 0) {
+                return false;
+            }
+        } while (!FREE_SLOTS.weakCompareAndSet(this, free, free - 1));
+        return true;
     }
 
+    /**
+     * Gives a slot back to the device. Should be run with the device locked,
+     * after checking that no transfer waits for the slot.
+     */
     public void releaseNewSlot() {
-        this.freeSlots += 1;
+        FREE_SLOTS.getAndAdd(this, 1);
+    }
+
+    /**
+     * Takes a slot the device doesn't have: a transfer of a cycle has failed in perform(), so its component
+     * stays on the device, while the transfer of the cycle taking its slot has moved in all the same.
+     * The free slots go below zero, and nothing is passed on until enough slots have been repaid.
+     * Should be run with the device locked.
+     */
+    void overcommitSlot() {
+        FREE_SLOTS.getAndAdd(this, -1);
+    }
+
+    public boolean isOvercommitted() {
+        return freeSlots < 0;
+    }
+
+    /**
+     * Keeps a slot freed on an overcommitted device, instead of passing it on to a waiting transfer.
+     * Should be run with the device locked.
+     * @return whether the slot has been kept
+     */
+    boolean repaySlot() {
+        if (freeSlots >= 0) {
+            return false;
+        }
+        FREE_SLOTS.getAndAdd(this, 1);
+        return true;
+    }
+
+    /**
+     * Reserves space for a component moving to the device (or placed on it). Lock-free like tryOccupySlot(),
+     * but independent of the slots: the bytes are reserved as soon as a transfer is admitted, even if it
+     * then waits for a slot, and only given back when the component leaves (or the transfer is withdrawn).
+     * @return whether the space has been reserved, always true if the device has no byte capacity
+     */
+    public boolean tryReserveBytes(long bytes) {
+        if (byteCapacity == 0) {
+            return true;
+        }
+        long used;
+        do {
+            used = usedBytes;
+            if (bytes > byteCapacity - used) {
+                return false;
+            }
+        } while (!USED_BYTES.weakCompareAndSet(this, used, used + bytes));
+        return true;
     }
 
-    public final LinkedList<TransferWrapper> waiting = new LinkedList<>();
+    public void releaseBytes(long bytes) {
+        if (byteCapacity != 0) {
+            USED_BYTES.getAndAdd(this, -bytes);
+        }
+    }
+
+    // Transfers waiting for a slot on this device, in the order of wakeupPolicy: an intrusive list
+    // linked through TransferWrapper.previousWaiting/nextWaiting, so enqueueing allocates nothing.
+    private TransferWrapper firstWaiting = null;
+    private TransferWrapper lastWaiting = null;
+    private int waitingCount = 0;
+    // Edges of the wait-for graph, always in sync with the waiting list.
+    final WaitForEdges waitingSources = new WaitForEdges();
+    // Used by WaitForGraph to mark visited devices, only written with the device locked.
+    // Searches of different shards run concurrently, so it's read without the lock too.
+    volatile long visitMark = 0;
+    // Shard of the device (see ShardedStorageSystem), 0 unless the system is sharded.
+    int shard = 0;
+    // Limit of concurrent perform()s on the device, null if there is none.
+    PerformGate performGate = null;
+    // Number of transfers from this device waiting on other devices (incoming edges of the wait-for graph).
+    // Changed under the lock of the device they wait on, hence atomic.
+    private final AtomicInteger outboundWaiting = new AtomicInteger(0);
+
+    public boolean hasOutboundWaiting() {
+        return outboundWaiting.get() > 0;
+    }
+
+    void countOutboundWaiting(int delta) {
+        outboundWaiting.addAndGet(delta);
+    }
+
+    public boolean hasWaiting() {
+        return firstWaiting != null;
+    }
+
+    public int waitingCount() {
+        return waitingCount;
+    }
 
-    protected Integer freeSlots;
-    private final DeviceId deviceId; // for debug
+    /**
+     * Puts the transfer on the waiting list, behind all the transfers it doesn't precede in the wake-up policy.
+     */
+    public void enqueueWaiting(TransferWrapper transferWrapper) {
+        var previous = lastWaiting;
+        while (previous != null && wakeupPolicy.precedes(transferWrapper, previous)) {
+            previous = previous.previousWaiting;
+        }
+        var next = previous == null ? firstWaiting : previous.nextWaiting;
+
+        transferWrapper.previousWaiting = previous;
+        transferWrapper.nextWaiting = next;
+        if (previous == null) {
+            firstWaiting = transferWrapper;
+        }
+        else {
+            previous.nextWaiting = transferWrapper;
+        }
+        if (next == null) {
+            lastWaiting = transferWrapper;
+        }
+        else {
+            next.previousWaiting = transferWrapper;
+        }
+        waitingCount++;
+        waitingSources.add(transferWrapper);
+        transferWrapper.sourceDevice.countOutboundWaiting(1);
+    }
+
+    /**
+     * @return the first transfer in the order of the wake-up policy, or null if there is none
+     */
+    public TransferWrapper dequeueWaiting() {
+        var transferWrapper = firstWaiting;
+        if (transferWrapper != null) {
+            removeWaiting(transferWrapper);
+        }
+        return transferWrapper;
+    }
+
+    /**
+     * Removes the longest-waiting transfer coming from the given device (there has to be one).
+     */
+    TransferWrapper removeWaitingFrom(Device sourceDevice) {
+        var transferWrapper = waitingSources.firstFrom(sourceDevice);
+        if (transferWrapper == null) {
+            throw new IllegalStateException("no transfer waiting from " + sourceDevice.getDeviceId());
+        }
+        removeWaiting(transferWrapper);
+        return transferWrapper;
+    }
+
+    /**
+     * @return whether the transfer is still on the waiting list (it hasn't been resumed nor taken into a cycle)
+     */
+    boolean isWaiting(TransferWrapper transferWrapper) {
+        return transferWrapper.previousWaiting != null || firstWaiting == transferWrapper;
+    }
+
+    /**
+     * Unlinks a transfer from anywhere in the waiting list, in constant time.
+     */
+    void removeWaiting(TransferWrapper transferWrapper) {
+        var previous = transferWrapper.previousWaiting;
+        var next = transferWrapper.nextWaiting;
+        if (previous == null) {
+            firstWaiting = next;
+        }
+        else {
+            previous.nextWaiting = next;
+        }
+        if (next == null) {
+            lastWaiting = previous;
+        }
+        else {
+            next.previousWaiting = previous;
+        }
+        transferWrapper.previousWaiting = null;
+        transferWrapper.nextWaiting = null;
+        waitingCount--;
+        waitingSources.remove(transferWrapper);
+        transferWrapper.sourceDevice.countOutboundWaiting(-1);
+    }
+
+    // Transfers leaving this device which have been allowed to run, but haven't run perform() yet
+    // nor passed their slot on to a waiting transfer (see StorageSystemImpl.startChain()). Guarded by the lock.
+    // They start (and end) mostly in the same order, so the longest-departing one is given away first.
+    private final ArrayDeque<TransferWrapper> departing = new ArrayDeque<>();
+
+    void addDeparting(TransferWrapper transferWrapper) {
+        departing.add(transferWrapper);
+    }
+
+    /**
+     * @return the longest-departing transfer, or null if there is none
+     */
+    TransferWrapper pollDeparting() {
+        return departing.poll();
+    }
+
+    void removeDeparting(TransferWrapper transferWrapper) {
+        departing.remove(transferWrapper);
+    }
+
+    // Components located on this device, so that it can be listed without a scan of all components.
+    // Changed without the lock, at the end of a transfer, see TransferWrapper.markAsFinished().
+    private final Set<Component> residents = ConcurrentHashMap.newKeySet();
+
+    public void addResident(Component component) {
+        residents.add(component);
+    }
 
-    public Device(Integer freeSlots, DeviceId deviceId) {
+    public void removeResident(Component component) {
+        residents.remove(component);
+    }
+
+    /**
+     * @return view of the components on the device, weakly consistent (doesn't need the lock)
+     */
+    public Collection<Component> getResidents() {
+        return Collections.unmodifiableSet(residents);
+    }
+
+    // A closed device takes no new inbound transfers, see StorageSystemImpl.drain().
+    private volatile boolean closed = false;
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setClosed(boolean closed) {
+        this.closed = closed;
+    }
+
+    // Taken lock-free (see tryOccupySlot()), only given back under the lock.
+    private volatile int freeSlots;
+    private final int totalSlots;
+    // Bytes of the components on the device and of those moving to it, only counted if there is a capacity.
+    private volatile long usedBytes = 0;
+    // 0 if the device has no byte capacity (or no known bandwidth, in bytes per second).
+    private final long byteCapacity;
+    private final long bandwidth;
+    private final DeviceId deviceId; // for debug, and to order the locks
+
+    // Guards waiting, and the release of slots.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final WakeupPolicy wakeupPolicy;
+
+    public Device(int freeSlots, DeviceId deviceId) {
+        this(freeSlots, deviceId, WakeupPolicy.FIFO);
+    }
+
+    public Device(int freeSlots, DeviceId deviceId, WakeupPolicy wakeupPolicy) {
+        this(freeSlots, deviceId, wakeupPolicy, 0, 0);
+    }
+
+    public Device(int freeSlots, DeviceId deviceId, WakeupPolicy wakeupPolicy, long byteCapacity, long bandwidth) {
         this.freeSlots = freeSlots;
+        this.totalSlots = freeSlots;
         this.deviceId = deviceId;
+        this.wakeupPolicy = wakeupPolicy;
+        this.byteCapacity = byteCapacity;
+        this.bandwidth = bandwidth;
+    }
+
+    public int getFreeSlots() {
+        return freeSlots;
+    }
+
+    public int getTotalSlots() {
+        return totalSlots;
+    }
+
+    public long getByteCapacity() {
+        return byteCapacity;
+    }
+
+    /**
+     * @return bytes neither taken by a component nor reserved for one, Long.MAX_VALUE if there is no byte capacity
+     */
+    public long getFreeBytes() {
+        return byteCapacity == 0 ? Long.MAX_VALUE : byteCapacity - usedBytes;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return estimated duration of a transfer of the given size between the devices, limited by the slower
+     *         of the two (0 if neither has a known bandwidth)
+     */
+    static long estimateNanos(long bytes, Device first, Device second) {
+        long bandwidth = first.bandwidth == 0 ? second.bandwidth
+                : second.bandwidth == 0 ? first.bandwidth
+                : Math.min(first.bandwidth, second.bandwidth);
+        return bandwidth == 0 ? 0 : (long) (bytes * 1e9 / bandwidth);
+    }
+
+    public DeviceId getDeviceId() {
+        return deviceId;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Locks both devices, always in the order of their ids, so that two transfers
+     * touching the same pair of devices can't deadlock.
+     */
+    static void lockBoth(Device first, Device second) {
+        if (first == second) {
+            first.lock();
+        }
+        else if (first.deviceId.compareTo(second.deviceId) < 0) {
+            first.lock();
+            second.lock();
+        }
+        else {
+            second.lock();
+            first.lock();
+        }
+    }
+
+    static void unlockBoth(Device first, Device second) {
+        first.unlock();
+        if (first != second) {
+            second.unlock();
+        }
     }
-}
\ No newline at end of file
+}
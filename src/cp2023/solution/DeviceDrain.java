@@ -0,0 +1,203 @@
+package cp2023.solution;
+
+import cp2023.exceptions.TransferException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evacuation of a device which is being retired, started by {@link StorageSystemImpl#drain}.
+ * The device is closed to new inbound transfers, and its components are moved (asynchronously,
+ * by the executor of the system) to the open devices with the most free slots (and space for them),
+ * at most maxConcurrentMoves at a time, so that the drain keeps the devices busy without flooding them.
+ * <p>
+ * Components that are being transferred by someone else are skipped until they're released,
+ * and components that arrive anyway (from transfers admitted before the device was closed, or waiting for it)
+ * are moved away as well. The drain is done when no slot of the device is taken or reserved,
+ * and nothing waits for one. It fails if a move fails (its prepare() or perform() throws).
+ * <p>
+ * The drain has no thread of its own: it's woken up (see {@link #wake()}) by the system whenever a transfer ends
+ * or is rolled back, which may have released a component or freed a slot, and by the end of each of its moves.
+ * It then starts what moves it can on the executor, and goes idle again.
+ */
+public class DeviceDrain {
+    private final StorageSystemImpl system;
+    private final Device device;
+    private final int maxConcurrentMoves;
+    private final MoveFactory moves;
+    private final Executor executor;
+    private final Semaphore permits;
+    // Wake-ups not handled yet, the one which makes it positive schedules pump().
+    private final AtomicInteger wakeups = new AtomicInteger(0);
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final LongAdder movedComponents = new LongAdder();
+    private volatile Throwable failure = null;
+    private final long startedAt = System.nanoTime();
+    private volatile long finishedAt = 0;
+
+    DeviceDrain(StorageSystemImpl system, Device device, int maxConcurrentMoves, MoveFactory moves,
+                Executor executor) {
+        this.system = system;
+        this.device = device;
+        this.maxConcurrentMoves = maxConcurrentMoves;
+        this.moves = moves;
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrentMoves);
+    }
+
+    Device getDevice() {
+        return device;
+    }
+
+    /**
+     * Makes the drain look for moves to start (or check whether it's done) on the executor, unless it's
+     * about to anyway. Cheap, and safe to call from any thread, with or without device locks.
+     */
+    void wake() {
+        if (wakeups.getAndIncrement() == 0) {
+            executor.execute(this::pump);
+        }
+    }
+
+    // Only one runs at a time, wake-ups coming meanwhile make it go round once more.
+    private void pump() {
+        int handled = wakeups.get();
+        while (true) {
+            if (!completion.isDone()) {
+                step();
+            }
+            handled = wakeups.addAndGet(-handled);
+            if (handled == 0) {
+                return;
+            }
+        }
+    }
+
+    private void step() {
+        try {
+            if (failure == null && !isEmpty()) {
+                dispatch();
+            }
+        }
+        catch (RuntimeException e) {
+            // Thrown by the move factory.
+            failure = e;
+        }
+        // Done once the moves in progress have ended too.
+        if ((failure != null || isEmpty()) && permits.availablePermits() == maxConcurrentMoves) {
+            finishedAt = System.nanoTime();
+            system.endDrain(this);
+            if (failure != null) {
+                completion.completeExceptionally(failure);
+            }
+            else {
+                completion.complete(null);
+            }
+        }
+    }
+
+    // A slot is only given back when nobody waits for it, so all of them are free only if nothing waits either.
+    private boolean isEmpty() {
+        return device.getFreeSlots() == device.getTotalSlots();
+    }
+
+    /**
+     * Starts moves of the components on the device, as long as there are free permits and free slots elsewhere.
+     */
+    private void dispatch() {
+        for (var component : device.getResidents()) {
+            if (failure != null) {
+                return;
+            }
+            if (component.getLocation() != device || component.isTransferred()) {
+                continue;
+            }
+            if (!permits.tryAcquire()) {
+                // The end of a move wakes the drain up.
+                return;
+            }
+            var destination = system.mostFreeDevice(device, component.getSize());
+            boolean moving = false;
+            try {
+                moving = destination != null && move(component, destination);
+            }
+            finally {
+                if (!moving) {
+                    permits.release();
+                }
+            }
+            if (destination == null && system.mostFreeDevice(device, 0) == null) {
+                // No device has a free slot, a smaller component wouldn't fit anywhere either.
+                // A slot freed anywhere wakes the drain up.
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether the move has been admitted, it's rejected if the component has been claimed meanwhile
+     *         (or the destination has been closed)
+     */
+    private boolean move(Component component, Device destination) {
+        var transfer = moves.move(component.getComponentId(), device.getDeviceId(), destination.getDeviceId());
+        CompletableFuture<Void> future;
+        try {
+            future = system.submit(transfer);
+        }
+        catch (TransferException e) {
+            return false;
+        }
+        future.whenComplete((result, e) -> {
+            if (e == null) {
+                movedComponents.increment();
+            }
+            else if (failure == null) {
+                failure = e;
+            }
+            permits.release();
+            wake();
+        });
+        return true;
+    }
+
+    /**
+     * @return future completed when the device is empty, or completed exceptionally with the first failed move
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    public long getMovedComponents() {
+        return movedComponents.sum();
+    }
+
+    /**
+     * @return components still on the device, including those being moved away
+     */
+    public int getRemainingComponents() {
+        return device.getResidents().size();
+    }
+
+    /**
+     * @return moves completed per second, since the start of the drain (until its end, once it's done)
+     */
+    public double getMovesPerSecond() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        double seconds = (end - startedAt) / 1e9;
+        return seconds > 0 ? getMovedComponents() / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceDrain{device=" + device.getDeviceId() + ", moved=" + getMovedComponents()
+                + ", remaining=" + getRemainingComponents() + ", movesPerSecond=" + (long) getMovesPerSecond()
+                + ", done=" + isDone() + "}";
+    }
+}
@@ -0,0 +1,886 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.*;
+import cp2023.solution.NodeMessage.Type;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp2023.solution.NodeMessage.NONE;
+
+/**
+ * Node of a storage system distributed over many JVMs (or many nodes in one JVM, for testing),
+ * which talk through a {@link Transport}. Every node owns a subset of the devices, and is the directory
+ * (location and state) of the components whose ids hash to it. Transfers can be executed on any node,
+ * their prepare() and perform() run on the executing node, as in {@link StorageSystemImpl}.
+ * <p>
+ * The state of a node is only touched by its dispatcher thread, which handles the messages one by one,
+ * so the protocol needs no locks. A transfer goes through these steps, each one a round trip:
+ * <ol>
+ *   <li>CLAIM at the directory of the component: validates the transfer and marks the component as being
+ *       transferred (or registers the new one), so the system-wide validation is a single atomic step.</li>
+ *   <li>RESERVE a slot at the owner of the destination (first phase): the slot is taken, if it's free,
+ *       otherwise the transfer waits in the queue of the device until a GRANT or a CYCLE.</li>
+ *   <li>prepare() and perform(), then FINISH at the directory (second phase, commits the new location),
+ *       and RELEASE of the source slot, which is granted to the first transfer waiting for it, if there is one.</li>
+ * </ol>
+ * Cycles are detected by edge chasing: when a transfer starts to wait on device D, the owner of D sends
+ * a probe to the owner of its source, which passes it on to the sources of the transfers waiting there, and so on.
+ * A probe which gets back to D has found a cycle. Every transfer starts a probe after it's enqueued,
+ * so the last transfer of a cycle to arrive always sees the others. The state of a probe is kept on the waiting
+ * transfers it has passed (so it's dropped with them, when they're granted, withdrawn or taken into a cycle),
+ * which keeps it from visiting them twice.
+ * <p>
+ * Many probes can find the same cycle, so it's coordinated by the owner of the device its lowest transfer
+ * (by id) waits on, which ignores the cycle if that transfer is already being taken into one. The coordinator
+ * takes all transfers of the cycle off their queues (and puts them all back, if any is no longer waiting),
+ * then lets them run prepare(), and perform() when all of them are prepared.
+ * <p>
+ * Safety is the same as in {@link StorageSystemImpl}: a component takes part in one transfer at a time,
+ * a device never holds more components (finished or reserved) than it has slots, and prepare() of a transfer
+ * starts only after its slot is reserved or it's in a cycle. Wake-up policies are not supported, waiting transfers
+ * are granted slots in the order of arrival. The loss of a node or of a message is not tolerated.
+ */
+public class DistributedStorageSystem implements StorageSystem, AutoCloseable {
+    // Statuses of the replies.
+    private static final int OK = 0;
+    private static final int COMPONENT_ALREADY_EXISTS = 1;
+    private static final int COMPONENT_DOES_NOT_EXIST = 2;
+    private static final int COMPONENT_IS_BEING_OPERATED_ON = 3;
+    private static final int COMPONENT_DOES_NOT_NEED_TRANSFER = 4;
+    private static final int WAITING = 5;
+    private static final int TOO_LATE = 6;
+
+    // Stops the dispatcher.
+    private static final NodeMessage SHUTDOWN = new NodeMessage(Type.RELEASE, 0, NONE, NONE, NONE, NONE);
+
+    private final int node;
+    private final int nodeCount;
+    private final Transport transport;
+    // Owner of every device of the system, read-only.
+    private final Map<Integer, Integer> deviceOwners = new HashMap<>();
+
+    // Only touched by the dispatcher: devices owned by this node, and components it's the directory of.
+    private final Map<Integer, OwnedDevice> devices = new HashMap<>();
+    private final Map<Integer, DirectoryEntry> directory = new HashMap<>();
+    // Cycles coordinated by this node, by id.
+    private final Map<Long, CycleState> cycles = new HashMap<>();
+
+    // Transfers executed on this node: the dispatcher passes the replies to them.
+    private final Map<Long, BlockingQueue<NodeMessage>> executing = new ConcurrentHashMap<>();
+    private final AtomicLong lastId;
+    private final BlockingQueue<NodeMessage> mailbox = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    // Runs the transfers of batches, which may wait for each other, so the pool is not bounded.
+    private final ExecutorService batchExecutor = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "batch-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Every node of the system should get the same configuration, each one only uses its part.
+     * @param node number of this node, from 0
+     * @param deviceNodes node owning each device, nodes are numbered from 0 to the highest number given
+     */
+    public DistributedStorageSystem(int node,
+                                    Map<DeviceId, Integer> deviceTotalSlots,
+                                    Map<DeviceId, Integer> deviceNodes,
+                                    Map<ComponentId, DeviceId> componentPlacement,
+                                    Transport transport) throws IllegalArgumentException {
+        if (transport.getNode() != node)
+            throw new IllegalArgumentException("Transport of node " + transport.getNode() + " given to node " + node);
+        this.node = node;
+        this.transport = transport;
+        this.lastId = new AtomicLong((long) node << 40);
+
+        // Counted from the configuration only, which is the same on every node, so they all agree on homeOf().
+        int maxNode = 0;
+        for (var entry : deviceTotalSlots.entrySet()) {
+            var deviceId = entry.getKey();
+            var totalSlots = entry.getValue();
+            if (deviceId == null || totalSlots == null)
+                throw new IllegalArgumentException("DeviceID config cannot be null");
+            if (!(totalSlots >= 1))
+                throw new IllegalArgumentException("Device must have capacity >= 1");
+            var owner = deviceNodes.get(deviceId);
+            if (owner == null || owner < 0)
+                throw new IllegalArgumentException("Device " + deviceId + " has no node");
+            deviceOwners.put(deviceId.getId(), owner);
+            maxNode = Math.max(maxNode, owner);
+            if (owner == node) {
+                devices.put(deviceId.getId(), new OwnedDevice(totalSlots));
+            }
+        }
+        this.nodeCount = maxNode + 1;
+
+        for (var entry : componentPlacement.entrySet()) {
+            var componentId = entry.getKey();
+            var deviceId = entry.getValue();
+            if (componentId == null || deviceId == null)
+                throw new IllegalArgumentException("Component placement config cannot be null");
+            if (!deviceOwners.containsKey(deviceId.getId()))
+                throw new IllegalArgumentException("Component must be placed in an existing device (deviceId not found).");
+
+            var device = devices.get(deviceId.getId());
+            if (device != null && device.freeSlots-- == 0)
+                throw new IllegalArgumentException("Too many components assigned to device " + deviceId);
+            if (homeOf(componentId.getId()) == node) {
+                directory.put(componentId.getId(), new DirectoryEntry(deviceId.getId(), false));
+            }
+        }
+
+        dispatcher = new Thread(this::dispatch, "storage-node-" + node);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        transport.start(mailbox::add);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        execute(transfer, false, 0);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer, long timeout, TimeUnit unit) throws TransferException {
+        execute(transfer, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private void execute(ComponentTransfer transfer, boolean timed, long deadline) throws TransferException {
+        var execution = new Execution(transfer);
+        try {
+            execution.sendClaim();
+            execution.awaitClaim();
+            run(execution, timed, deadline);
+        }
+        finally {
+            executing.remove(execution.id);
+        }
+    }
+
+    /**
+     * Claims the components of all transfers, and if that succeeds, runs the transfers concurrently
+     * (on threads of this node) and waits for all of them.
+     * @throws TransferException of the first invalid transfer, then no transfer is executed
+     */
+    @Override
+    public void executeAll(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        var executions = new ArrayList<Execution>(transfers.size());
+        try {
+            for (var transfer : transfers) {
+                executions.add(new Execution(transfer));
+            }
+            for (var execution : executions) {
+                execution.sendClaim();
+            }
+            TransferException failure = null;
+            for (var execution : executions) {
+                try {
+                    execution.awaitClaim();
+                }
+                catch (TransferException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                for (var execution : executions) {
+                    if (execution.claimed) {
+                        execution.unclaim();
+                    }
+                }
+                throw failure;
+            }
+
+            var runs = new ArrayList<Future<?>>(executions.size());
+            for (var execution : executions) {
+                runs.add(batchExecutor.submit(() -> {
+                    run(execution, false, 0);
+                    return null;
+                }));
+            }
+            RuntimeException runFailure = null;
+            for (var run : runs) {
+                try {
+                    awaitUninterruptibly(run);
+                }
+                catch (ExecutionException e) {
+                    // Let all the others finish anyway, and rethrow the first failure of prepare()/perform().
+                    if (runFailure == null) {
+                        runFailure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                    }
+                }
+            }
+            if (runFailure != null) {
+                throw runFailure;
+            }
+        }
+        finally {
+            for (var execution : executions) {
+                executing.remove(execution.id);
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(Future<?> future) throws ExecutionException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a claimed transfer: reserves the destination slot, runs prepare() and perform(), and commits.
+     */
+    private void run(Execution execution, boolean timed, long deadline) throws TransferTimedOut, TransferInterrupted {
+        var transfer = execution.transfer;
+        NodeMessage cycle = null;
+        if (execution.destination != NONE) {
+            send(ownerOf(execution.destination), execution.message(Type.RESERVE));
+            var reserved = execution.receive(Type.RESERVED);
+            if (reserved.status == WAITING) {
+                var resumed = awaitSlot(execution, timed, deadline);
+                if (resumed.type == Type.CYCLE) {
+                    cycle = resumed;
+                }
+            }
+        }
+
+        transfer.prepare();
+        if (cycle != null) {
+            // Run perform() only when all transfers of the cycle have already run prepare().
+            send(cycle.node, cycle.reply(Type.PREPARED, OK));
+            execution.receive(Type.PERFORM);
+        }
+        transfer.perform();
+
+        send(homeOf(execution.component), execution.message(Type.FINISH));
+        execution.receive(Type.FINISHED);
+        if (cycle == null && execution.source != NONE) {
+            // In a cycle, the next transfer takes the slot on the source device.
+            send(ownerOf(execution.source), execution.message(Type.RELEASE));
+        }
+        if (execution.interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a GRANT or a CYCLE. If the deadline passes (or the thread is interrupted), the transfer is withdrawn,
+     * unless it has been resumed in the meantime: then it has to run after all.
+     * @return the GRANT or the CYCLE
+     * @throws TransferInterrupted if the transfer has been withdrawn because of an interrupt, which is kept
+     */
+    private NodeMessage awaitSlot(Execution execution, boolean timed, long deadline)
+            throws TransferTimedOut, TransferInterrupted {
+        NodeMessage resumed = null;
+        // An interrupt during the claim or the reservation has been taken off the thread already.
+        if (!execution.interrupted) {
+            try {
+                resumed = timed ? execution.receive(deadline, Type.GRANT, Type.CYCLE)
+                                : execution.receiveInterruptibly(Type.GRANT, Type.CYCLE);
+            }
+            catch (InterruptedException e) {
+                execution.interrupted = true;
+            }
+        }
+        if (resumed != null) {
+            return resumed;
+        }
+
+        send(ownerOf(execution.destination), execution.message(Type.WITHDRAW));
+        // The transfer may still be resumed before the reply (a cycle is announced by another node, so even after it).
+        NodeMessage withdrawn = null;
+        while (withdrawn == null || (withdrawn.status == TOO_LATE && resumed == null)) {
+            var message = execution.receive(Type.WITHDRAWN, Type.GRANT, Type.CYCLE);
+            if (message.type == Type.WITHDRAWN) {
+                withdrawn = message;
+            }
+            else {
+                resumed = message;
+            }
+        }
+        if (withdrawn.status == TOO_LATE) {
+            return resumed;
+        }
+
+        execution.unclaim();
+        if (execution.interrupted) {
+            Thread.currentThread().interrupt();
+            throw new TransferInterrupted(execution.transfer.getComponentId());
+        }
+        throw new TransferTimedOut(execution.transfer.getComponentId());
+    }
+
+    /**
+     * Stops the dispatcher of this node and closes its transport. Transfers in progress are not finished,
+     * the other nodes should be closed too.
+     */
+    @Override
+    public void close() {
+        mailbox.add(SHUTDOWN);
+        boolean interrupted = false;
+        while (dispatcher.isAlive()) {
+            try {
+                dispatcher.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        batchExecutor.shutdown();
+        transport.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    private int ownerOf(int device) {
+        return deviceOwners.get(device);
+    }
+
+    private int homeOf(int component) {
+        return Math.floorMod(component, nodeCount);
+    }
+
+    private long nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    private void send(int node, NodeMessage message) {
+        if (node == this.node) {
+            mailbox.add(message);
+        }
+        else {
+            transport.send(node, message);
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            NodeMessage message;
+            try {
+                message = mailbox.take();
+            }
+            catch (InterruptedException e) {
+                // Stopped from outside, as by close().
+                return;
+            }
+            if (message == SHUTDOWN) {
+                return;
+            }
+            handle(message);
+        }
+    }
+
+    private void handle(NodeMessage message) {
+        switch (message.type) {
+            case CLAIM:
+                claim(message);
+                break;
+            case UNCLAIM:
+                unclaim(message);
+                break;
+            case FINISH:
+                finish(message);
+                break;
+            case RESERVE:
+                reserve(message);
+                break;
+            case WITHDRAW:
+                withdraw(message);
+                break;
+            case RELEASE:
+                release(message);
+                break;
+            case PROBE:
+                probe(message);
+                break;
+            case CYCLE_FOUND:
+                takeCycle(message);
+                break;
+            case TAKE:
+                take(message);
+                break;
+            case TAKEN:
+                taken(message);
+                break;
+            case UNTAKE:
+                untake(message);
+                break;
+            case PREPARED:
+                prepared(message);
+                break;
+            default:
+                // A reply to a transfer executed on this node.
+                var inbox = executing.get(message.transferId);
+                if (inbox != null) {
+                    inbox.add(message);
+                }
+        }
+    }
+
+    // Directory of components.
+
+    private void claim(NodeMessage message) {
+        var entry = directory.get(message.component);
+        int status = OK;
+        if (message.source == NONE) {
+            // Add component, register it right away, no other transfer can operate on it until it's uploaded.
+            if (entry != null) {
+                status = COMPONENT_ALREADY_EXISTS;
+            }
+            else {
+                directory.put(message.component, new DirectoryEntry(NONE, true));
+            }
+        }
+        else if (entry == null) {
+            status = COMPONENT_DOES_NOT_EXIST;
+        }
+        else if (entry.transferred) {
+            status = COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        else if (entry.device != message.source) {
+            status = COMPONENT_DOES_NOT_EXIST;
+        }
+        else if (entry.device == message.destination) {
+            status = COMPONENT_DOES_NOT_NEED_TRANSFER;
+        }
+        else {
+            entry.transferred = true;
+        }
+        send(message.node, message.reply(Type.CLAIMED, status));
+    }
+
+    private void unclaim(NodeMessage message) {
+        if (message.source == NONE) {
+            directory.remove(message.component);
+        }
+        else {
+            directory.get(message.component).transferred = false;
+        }
+        send(message.node, message.reply(Type.UNCLAIMED, OK));
+    }
+
+    private void finish(NodeMessage message) {
+        if (message.destination == NONE) {
+            directory.remove(message.component);
+        }
+        else {
+            var entry = directory.get(message.component);
+            entry.device = message.destination;
+            entry.transferred = false;
+        }
+        send(message.node, message.reply(Type.FINISHED, OK));
+    }
+
+    // Slots of the devices owned by this node.
+
+    private void reserve(NodeMessage message) {
+        var device = devices.get(message.destination);
+        if (device.freeSlots > 0) {
+            device.freeSlots--;
+            send(message.node, message.reply(Type.RESERVED, OK));
+            return;
+        }
+        var waiter = new Waiter(message.transferId, message.source, message.node);
+        device.waiting.put(waiter.transferId, waiter);
+        send(message.node, message.reply(Type.RESERVED, WAITING));
+        startProbe(message.destination, waiter);
+    }
+
+    private void withdraw(NodeMessage message) {
+        var device = devices.get(message.destination);
+        boolean removed = device.waiting.remove(message.transferId) != null;
+        send(message.node, message.reply(Type.WITHDRAWN, removed ? OK : TOO_LATE));
+    }
+
+    private void release(NodeMessage message) {
+        var device = devices.get(message.source);
+        var iterator = device.waiting.values().iterator();
+        if (iterator.hasNext()) {
+            var waiter = iterator.next();
+            iterator.remove();
+            send(waiter.node, grant(waiter));
+        }
+        else {
+            device.freeSlots++;
+        }
+    }
+
+    private static NodeMessage grant(Waiter waiter) {
+        return new NodeMessage(Type.GRANT, waiter.transferId, NONE, NONE, waiter.source, NONE);
+    }
+
+    // Cycle detection.
+
+    /**
+     * Sends a probe for cycles closed by a transfer which has just started to wait on the device.
+     */
+    private void startProbe(int device, Waiter waiter) {
+        if (waiter.source == NONE) {
+            // Nothing waits for the slots of the artificial 'creation' device.
+            return;
+        }
+        long probeId = nextId();
+        var probe = new NodeMessage(Type.PROBE, waiter.transferId, probeId, node, NONE, NONE, NONE,
+                waiter.source, OK, new int[] { device }, new long[] { waiter.transferId });
+        send(ownerOf(waiter.source), probe);
+    }
+
+    /**
+     * Passes the probe on from its device to the sources of the transfers waiting there, which it hasn't passed yet,
+     * or reports a cycle if one of them comes from the device the probe started at.
+     */
+    private void probe(NodeMessage probe) {
+        var device = devices.get(probe.device);
+        var unvisited = new ArrayList<Waiter>();
+        for (var waiter : device.waiting.values()) {
+            if (waiter.visit(probe.cycleId)) {
+                unvisited.add(waiter);
+            }
+        }
+        int target = probe.pathDevices[0];
+        for (var waiter : unvisited) {
+            if (waiter.source == target) {
+                reportCycle(probe.extendPath(probe.device, waiter.transferId, Type.CYCLE_FOUND, target));
+                return;
+            }
+        }
+        var sources = new HashSet<Integer>();
+        for (var waiter : unvisited) {
+            if (waiter.source != NONE && sources.add(waiter.source)) {
+                send(ownerOf(waiter.source),
+                        probe.extendPath(probe.device, waiter.transferId, Type.PROBE, waiter.source));
+            }
+        }
+    }
+
+    /**
+     * Sends a cycle found by a probe to its coordinator: the owner of the device its lowest transfer waits on.
+     * So all probes which find the same cycle report it to the same node, which only takes it once.
+     */
+    private void reportCycle(NodeMessage found) {
+        int lowest = 0;
+        for (int i = 1; i < found.pathTransfers.length; i++) {
+            if (found.pathTransfers[i] < found.pathTransfers[lowest]) {
+                lowest = i;
+            }
+        }
+        var device = found.pathDevices[lowest];
+        send(ownerOf(device), found.about(found.pathTransfers[lowest], device));
+    }
+
+    /**
+     * Takes the transfers of a cycle off their waiting lists, unless its lowest transfer (which waits on a device
+     * of this node) is no longer waiting, or is already being taken into a cycle (probably this one).
+     */
+    private void takeCycle(NodeMessage found) {
+        var lowest = devices.get(found.device).waiting.get(found.transferId);
+        if (lowest == null || lowest.taking) {
+            return;
+        }
+        // Until its TAKE arrives, which removes the waiter (or it's resumed in the meantime).
+        lowest.taking = true;
+        long cycleId = nextId();
+        cycles.put(cycleId, new CycleState(found.pathDevices.length));
+        for (int i = 0; i < found.pathDevices.length; i++) {
+            var take = new NodeMessage(Type.TAKE, found.pathTransfers[i], cycleId, node, NONE, NONE, NONE,
+                    found.pathDevices[i], OK, null, null);
+            send(ownerOf(found.pathDevices[i]), take);
+        }
+    }
+
+    private void take(NodeMessage message) {
+        var waiter = devices.get(message.device).waiting.remove(message.transferId);
+        // The coordinator needs the executor and the source, to put the transfer back if the cycle falls apart.
+        var taken = waiter == null
+                ? new NodeMessage(Type.TAKEN, message.transferId, message.cycleId, NONE, NONE, NONE, NONE,
+                        message.device, TOO_LATE, null, null)
+                : new NodeMessage(Type.TAKEN, message.transferId, message.cycleId, waiter.node, NONE, waiter.source,
+                        NONE, message.device, OK, null, null);
+        send(message.node, taken);
+    }
+
+    private void taken(NodeMessage message) {
+        var cycle = cycles.get(message.cycleId);
+        cycle.replies.add(message);
+        if (message.status != OK) {
+            cycle.complete = false;
+        }
+        if (cycle.replies.size() < cycle.size) {
+            return;
+        }
+
+        if (cycle.complete) {
+            for (var taken : cycle.replies) {
+                var start = new NodeMessage(Type.CYCLE, taken.transferId, taken.cycleId, node, NONE, NONE, NONE,
+                        NONE, OK, null, null);
+                send(taken.node, start);
+            }
+        }
+        else {
+            // Some transfer has been resumed (or withdrawn) in the meantime, the others go back to wait.
+            cycles.remove(message.cycleId);
+            for (var taken : cycle.replies) {
+                if (taken.status == OK) {
+                    send(ownerOf(taken.device), taken.withType(Type.UNTAKE));
+                }
+            }
+        }
+    }
+
+    private void untake(NodeMessage message) {
+        var device = devices.get(message.device);
+        var waiter = new Waiter(message.transferId, message.source, message.node);
+        if (device.freeSlots > 0) {
+            // A slot has been freed while the transfer was taken.
+            device.freeSlots--;
+            send(waiter.node, grant(waiter));
+            return;
+        }
+        device.waiting.put(waiter.transferId, waiter);
+        // Like a new arrival: the cycle it was taken into may have been the only one it closed.
+        startProbe(message.device, waiter);
+    }
+
+    private void prepared(NodeMessage message) {
+        var cycle = cycles.get(message.cycleId);
+        if (++cycle.prepared < cycle.size) {
+            return;
+        }
+        cycles.remove(message.cycleId);
+        for (var taken : cycle.replies) {
+            send(taken.node, new NodeMessage(Type.PERFORM, taken.transferId, NONE, NONE, NONE, NONE));
+        }
+    }
+
+    /**
+     * Transfer executed on this node, with the replies addressed to it.
+     */
+    private final class Execution {
+        final long id = nextId();
+        final ComponentTransfer transfer;
+        final int component;
+        final int source;
+        final int destination;
+        final BlockingQueue<NodeMessage> inbox = new LinkedBlockingQueue<>();
+        // Replies received while waiting for another one (e.g. a cycle announced before the reservation is).
+        final ArrayDeque<NodeMessage> early = new ArrayDeque<>();
+        boolean claimed = false;
+        boolean interrupted = false;
+
+        Execution(ComponentTransfer transfer) throws TransferException {
+            // Check illegal transfer (null -> null).
+            if (transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() == null) {
+                throw new IllegalTransferType(transfer.getComponentId());
+            }
+            this.transfer = transfer;
+            this.component = transfer.getComponentId().getId();
+            this.source = deviceOf(transfer.getSourceDeviceId());
+            this.destination = deviceOf(transfer.getDestinationDeviceId());
+            executing.put(id, inbox);
+        }
+
+        private int deviceOf(DeviceId deviceId) throws DeviceDoesNotExist {
+            if (deviceId == null) {
+                return NONE;
+            }
+            if (!deviceOwners.containsKey(deviceId.getId())) {
+                throw new DeviceDoesNotExist(deviceId);
+            }
+            return deviceId.getId();
+        }
+
+        NodeMessage message(Type type) {
+            return new NodeMessage(type, id, node, component, source, destination);
+        }
+
+        void sendClaim() {
+            send(homeOf(component), message(Type.CLAIM));
+        }
+
+        void awaitClaim() throws TransferException {
+            var reply = receive(Type.CLAIMED);
+            switch (reply.status) {
+                case OK:
+                    claimed = true;
+                    return;
+                case COMPONENT_ALREADY_EXISTS:
+                    throw new ComponentAlreadyExists(transfer.getComponentId(), transfer.getDestinationDeviceId());
+                case COMPONENT_DOES_NOT_EXIST:
+                    throw new ComponentDoesNotExist(transfer.getComponentId(), transfer.getSourceDeviceId());
+                case COMPONENT_IS_BEING_OPERATED_ON:
+                    throw new ComponentIsBeingOperatedOn(transfer.getComponentId());
+                case COMPONENT_DOES_NOT_NEED_TRANSFER:
+                    throw new ComponentDoesNotNeedTransfer(transfer.getComponentId(), transfer.getDestinationDeviceId());
+                default:
+                    throw new IllegalStateException("unexpected status of a claim: " + reply.status);
+            }
+        }
+
+        /**
+         * Reverts the claim of a transfer, which has not taken any slot.
+         */
+        void unclaim() {
+            send(homeOf(component), message(Type.UNCLAIM));
+            receive(Type.UNCLAIMED);
+            claimed = false;
+        }
+
+        /**
+         * @return the first reply of one of the types, waiting for it without giving up on interrupts
+         */
+        NodeMessage receive(Type... types) {
+            while (true) {
+                try {
+                    return receiveInterruptibly(types);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        NodeMessage receiveInterruptibly(Type... types) throws InterruptedException {
+            var message = takeEarly(types);
+            while (message == null) {
+                message = keep(inbox.take(), types);
+            }
+            return message;
+        }
+
+        /**
+         * @return the first reply of one of the types, or null if none arrives before the deadline
+         */
+        NodeMessage receive(long deadline, Type... types) throws InterruptedException {
+            var message = takeEarly(types);
+            while (message == null) {
+                var received = inbox.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (received == null) {
+                    return null;
+                }
+                message = keep(received, types);
+            }
+            return message;
+        }
+
+        private NodeMessage takeEarly(Type... types) {
+            for (var iterator = early.iterator(); iterator.hasNext(); ) {
+                var message = iterator.next();
+                if (isOneOf(message, types)) {
+                    iterator.remove();
+                    return message;
+                }
+            }
+            return null;
+        }
+
+        // Returns the message if it's of one of the types, otherwise keeps it for later.
+        private NodeMessage keep(NodeMessage message, Type... types) {
+            if (isOneOf(message, types)) {
+                return message;
+            }
+            early.add(message);
+            return null;
+        }
+
+        private boolean isOneOf(NodeMessage message, Type... types) {
+            for (var type : types) {
+                if (message.type == type) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class OwnedDevice {
+        int freeSlots;
+        // Transfers waiting for a slot, in the order of arrival, by id.
+        final LinkedHashMap<Long, Waiter> waiting = new LinkedHashMap<>();
+
+        OwnedDevice(int freeSlots) {
+            this.freeSlots = freeSlots;
+        }
+    }
+
+    private static final class Waiter {
+        final long transferId;
+        final int source;
+        // Node executing the transfer.
+        final int node;
+        // Probes which have passed this transfer, null if none has.
+        Set<Long> probes = null;
+        // Whether a cycle with this transfer as the lowest one is being taken.
+        boolean taking = false;
+
+        Waiter(long transferId, int source, int node) {
+            this.transferId = transferId;
+            this.source = source;
+            this.node = node;
+        }
+
+        /**
+         * @return false if the probe has already passed this transfer
+         */
+        boolean visit(long probeId) {
+            if (probes == null) {
+                probes = new HashSet<>();
+            }
+            return probes.add(probeId);
+        }
+    }
+
+    private static final class DirectoryEntry {
+        int device;
+        boolean transferred;
+
+        DirectoryEntry(int device, boolean transferred) {
+            this.device = device;
+            this.transferred = transferred;
+        }
+    }
+
+    private static final class CycleState {
+        final int size;
+        final List<NodeMessage> replies = new ArrayList<>();
+        boolean complete = true;
+        int prepared = 0;
+
+        CycleState(int size) {
+            this.size = size;
+        }
+    }
+}
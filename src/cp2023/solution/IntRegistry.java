@@ -0,0 +1,38 @@
+package cp2023.solution;
+
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe map from int ids to objects (components and devices of the system).
+ * Lookups don't lock and don't allocate, so they can be done on the admission path.
+ */
+interface IntRegistry<V> {
+
+    /**
+     * @return value registered under the key, or null
+     */
+    V get(int key);
+
+    /**
+     * Registers the value, unless the key is already taken.
+     * @return value already registered under the key, or null if the value was registered
+     */
+    V putIfAbsent(int key, V value);
+
+    /**
+     * Removes the key, but only if it's registered with this very value.
+     * @return whether the value was removed
+     */
+    boolean remove(int key, V value);
+
+    int size();
+
+    /**
+     * Runs the action for every registered value. Values registered or removed meanwhile may be skipped.
+     */
+    void forEachValue(Consumer<? super V> action);
+
+    static <V> IntRegistry<V> create(int expectedSize, boolean offHeap) {
+        return offHeap ? new OffHeapIntRegistry<>(expectedSize) : new OpenAddressingIntRegistry<>(expectedSize);
+    }
+}
@@ -0,0 +1,11 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Transfer which was in progress when a durable storage system went down. Its component has been restored
+ * on the source device (an interrupted addition didn't happen at all), the transfer can be simply retried.
+ */
+public record InterruptedTransfer(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+}
@@ -0,0 +1,66 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Transport between nodes running in one JVM, messages are passed by reference.
+ */
+public final class LoopbackTransport implements Transport {
+    private final int node;
+    private final LoopbackTransport[] network;
+    private Consumer<NodeMessage> receiver = null;
+    // Messages which arrived before start().
+    private List<NodeMessage> early = new ArrayList<>();
+
+    private LoopbackTransport(int node, LoopbackTransport[] network) {
+        this.node = node;
+        this.network = network;
+    }
+
+    /**
+     * @return connected transports of the given number of nodes, indexed by node
+     */
+    public static LoopbackTransport[] network(int nodes) {
+        var network = new LoopbackTransport[nodes];
+        for (int i = 0; i < nodes; i++) {
+            network[i] = new LoopbackTransport(i, network);
+        }
+        return network;
+    }
+
+    @Override
+    public int getNode() {
+        return node;
+    }
+
+    @Override
+    public synchronized void start(Consumer<NodeMessage> receiver) {
+        // Under the lock, so that no later message overtakes the early ones.
+        early.forEach(receiver);
+        early = null;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(int node, NodeMessage message) {
+        network[node].deliver(message);
+    }
+
+    private void deliver(NodeMessage message) {
+        Consumer<NodeMessage> receiver;
+        synchronized (this) {
+            if (this.receiver == null) {
+                early.add(message);
+                return;
+            }
+            receiver = this.receiver;
+        }
+        receiver.accept(message);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,39 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+
+import java.util.Map;
+
+/**
+ * Point-in-time view of {@link TransferMetrics}, all durations in nanoseconds.
+ * Counters are cumulative since the system was created.
+ */
+public record MetricsSnapshot(
+        // Validation and admission of a transfer, including waiting for the device locks.
+        Histogram admission,
+        // From admission until the transfer is allowed to run prepare() (zero if a slot was free).
+        Histogram waitForPrepare,
+        Histogram prepare,
+        // From the end of prepare() until perform() may start (transfers in cycles and chains, and those held by a perform limit).
+        Histogram waitForPerform,
+        Histogram perform,
+        long completedTransfers,
+        long resolvedCycles,
+        // Number of transfers in each resolved cycle.
+        Histogram cycleLength,
+        // Transfers given the slot of a transfer which hadn't run perform() yet,
+        // see StorageSystemOptions.setEarlySlotRelease().
+        long earlySlotHandoffs,
+        // Those of them which were adds taking the slot of a delete.
+        long coalescedAdds,
+        // Rejected transfers by the reason, only the reasons seen so far.
+        Map<TransferStatus, Long> rejections,
+        Map<DeviceId, Device> devices) {
+
+    public record Histogram(long count, long mean, long p50, long p99, long p999, long max) {
+    }
+
+    public record Device(int waiting, int occupiedSlots, int totalSlots) {
+    }
+}
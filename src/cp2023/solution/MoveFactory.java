@@ -0,0 +1,15 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/**
+ * Creates the transfers of moves planned by the system itself (see {@link DeviceDrain}):
+ * the system chooses where a component goes, but only the client knows how to copy it there.
+ */
+@FunctionalInterface
+public interface MoveFactory {
+
+    ComponentTransfer move(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId);
+}
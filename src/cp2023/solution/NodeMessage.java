@@ -0,0 +1,144 @@
+package cp2023.solution;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Message between the nodes of a {@link DistributedStorageSystem}. Immutable, so that a {@link Transport}
+ * can pass it by reference. Which fields mean something depends on the type, see DistributedStorageSystem.
+ */
+public final class NodeMessage {
+    // Stands for a null DeviceId (the source of an add, the destination of a delete).
+    static final int NONE = Integer.MIN_VALUE;
+
+    enum Type {
+        // Executor -> directory of the component, and back.
+        CLAIM, CLAIMED, UNCLAIM, UNCLAIMED, FINISH, FINISHED,
+        // Executor -> owner of a device, and back.
+        RESERVE, RESERVED, GRANT, WITHDRAW, WITHDRAWN, RELEASE,
+        // Cycle detection and resolution, between owners of devices and the coordinator of the cycle.
+        PROBE, CYCLE_FOUND, TAKE, TAKEN, UNTAKE,
+        // Coordinator of a cycle -> executors of its transfers, and back.
+        CYCLE, PREPARED, PERFORM
+    }
+
+    final Type type;
+    // Id of the transfer, unique in the whole system.
+    final long transferId;
+    // Id of the probe or the cycle.
+    final long cycleId;
+    // Node to reply to (the executor of the transfer, or the coordinator of the cycle).
+    final int node;
+    final int component;
+    final int source;
+    final int destination;
+    // Device the message is about, for those which aren't about a transfer's own devices.
+    final int device;
+    final int status;
+    // Path of a probe: transfer pathTransfers[i] waits on device pathDevices[i].
+    final int[] pathDevices;
+    final long[] pathTransfers;
+
+    private static final int[] NO_DEVICES = new int[0];
+    private static final long[] NO_TRANSFERS = new long[0];
+
+    NodeMessage(Type type, long transferId, long cycleId, int node, int component, int source, int destination,
+                int device, int status, int[] pathDevices, long[] pathTransfers) {
+        this.type = type;
+        this.transferId = transferId;
+        this.cycleId = cycleId;
+        this.node = node;
+        this.component = component;
+        this.source = source;
+        this.destination = destination;
+        this.device = device;
+        this.status = status;
+        this.pathDevices = pathDevices == null ? NO_DEVICES : pathDevices;
+        this.pathTransfers = pathTransfers == null ? NO_TRANSFERS : pathTransfers;
+    }
+
+    NodeMessage(Type type, long transferId, int node, int component, int source, int destination) {
+        this(type, transferId, 0, node, component, source, destination, NONE, 0, NO_DEVICES, NO_TRANSFERS);
+    }
+
+    /**
+     * @return reply to this message, about the same transfer
+     */
+    NodeMessage reply(Type type, int status) {
+        return new NodeMessage(type, transferId, cycleId, node, component, source, destination, device, status,
+                NO_DEVICES, NO_TRANSFERS);
+    }
+
+    /**
+     * @return copy of this probe, with the transfer waiting on the device appended to the path,
+     *         of the given type and about the next device
+     */
+    NodeMessage extendPath(int waitingDevice, long waitingTransferId, Type type, int nextDevice) {
+        int length = pathDevices.length;
+        var devices = Arrays.copyOf(pathDevices, length + 1);
+        var transfers = Arrays.copyOf(pathTransfers, length + 1);
+        devices[length] = waitingDevice;
+        transfers[length] = waitingTransferId;
+        return new NodeMessage(type, transferId, cycleId, node, component, source, destination, nextDevice,
+                status, devices, transfers);
+    }
+
+    /**
+     * @return copy of this message, about the given transfer and device
+     */
+    NodeMessage about(long transferId, int device) {
+        return new NodeMessage(type, transferId, cycleId, node, component, source, destination, device, status,
+                pathDevices, pathTransfers);
+    }
+
+    NodeMessage withType(Type type) {
+        return new NodeMessage(type, transferId, cycleId, node, component, source, destination, device, status,
+                pathDevices, pathTransfers);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeLong(transferId);
+        out.writeLong(cycleId);
+        out.writeInt(node);
+        out.writeInt(component);
+        out.writeInt(source);
+        out.writeInt(destination);
+        out.writeInt(device);
+        out.writeInt(status);
+        out.writeInt(pathDevices.length);
+        for (int i = 0; i < pathDevices.length; i++) {
+            out.writeInt(pathDevices[i]);
+            out.writeLong(pathTransfers[i]);
+        }
+    }
+
+    public static NodeMessage readFrom(DataInput in) throws IOException {
+        var type = Type.values()[in.readUnsignedByte()];
+        long transferId = in.readLong();
+        long cycleId = in.readLong();
+        int node = in.readInt();
+        int component = in.readInt();
+        int source = in.readInt();
+        int destination = in.readInt();
+        int device = in.readInt();
+        int status = in.readInt();
+        int length = in.readInt();
+        var pathDevices = length == 0 ? NO_DEVICES : new int[length];
+        var pathTransfers = length == 0 ? NO_TRANSFERS : new long[length];
+        for (int i = 0; i < length; i++) {
+            pathDevices[i] = in.readInt();
+            pathTransfers[i] = in.readLong();
+        }
+        return new NodeMessage(type, transferId, cycleId, node, component, source, destination, device, status,
+                pathDevices, pathTransfers);
+    }
+
+    @Override
+    public String toString() {
+        return type + "{transfer=" + transferId + ", cycle=" + cycleId + ", node=" + node + ", component=" + component
+                + ", device=" + device + ", status=" + status + "}";
+    }
+}
@@ -0,0 +1,267 @@
+package cp2023.solution;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+import static cp2023.solution.OpenAddressingIntRegistry.capacityFor;
+import static cp2023.solution.OpenAddressingIntRegistry.hash;
+import static cp2023.solution.OpenAddressingIntRegistry.segmentIndex;
+
+/**
+ * Variant of {@link OpenAddressingIntRegistry}, which keeps its hash index outside the Java heap.
+ * <p>
+ * The index maps keys to positions in a compact array of values (the only part the garbage collector
+ * has to look at), so for large catalogs the heap holds one reference per value and nothing else.
+ * Segments, locking and probing work the same way as in the on-heap registry.
+ */
+class OffHeapIntRegistry<V> implements IntRegistry<V> {
+    // Index entry: int key, int position of the value (or FREE / DELETED).
+    private static final int ENTRY_BYTES = 2 * Integer.BYTES;
+    private static final int FREE = -1;
+    private static final int DELETED = -2;
+
+    private final Segment[] segments = new Segment[1 << OpenAddressingIntRegistry.SEGMENT_BITS];
+
+    OffHeapIntRegistry(int expectedSize) {
+        int capacity = capacityFor(expectedSize >> OpenAddressingIntRegistry.SEGMENT_BITS);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object value = segment.table.find(key, h);
+            if (segment.lock.validate(stamp)) {
+                return (V) value;
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return (V) segment.table.find(key, h);
+        }
+        finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Registered value cannot be null");
+        }
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.writeLock();
+        try {
+            return (V) segment.putIfAbsent(key, h, value);
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(int key, V value) {
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, h, value);
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (var segment : segments) {
+            long stamp = segment.lock.readLock();
+            size += segment.size;
+            segment.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        var values = new ArrayList<>();
+        for (var segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                for (Object value : segment.table.values) {
+                    if (value != null) {
+                        values.add(value);
+                    }
+                }
+            }
+            finally {
+                segment.lock.unlockRead(stamp);
+            }
+            values.forEach(value -> action.accept((V) value));
+            values.clear();
+        }
+    }
+
+    /**
+     * Index and values of a segment, replaced together when the segment grows.
+     */
+    private static final class Table {
+        final ByteBuffer index;
+        final int capacity;
+        final Object[] values;
+
+        Table(int capacity, Object[] values) {
+            this.capacity = capacity;
+            this.index = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < capacity; i++) {
+                setPosition(i, FREE);
+            }
+            this.values = values;
+        }
+
+        int key(int i) {
+            return index.getInt(i * ENTRY_BYTES);
+        }
+
+        int position(int i) {
+            return index.getInt(i * ENTRY_BYTES + Integer.BYTES);
+        }
+
+        void setKey(int i, int key) {
+            index.putInt(i * ENTRY_BYTES, key);
+        }
+
+        void setPosition(int i, int position) {
+            index.putInt(i * ENTRY_BYTES + Integer.BYTES, position);
+        }
+
+        // Can run concurrently with writers (the caller validates the result), so a torn position
+        // must not take it out of bounds.
+        Object find(int key, int h) {
+            int mask = capacity - 1;
+            for (int i = h & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                int position = position(i);
+                if (position == FREE) {
+                    return null;
+                }
+                if (position >= 0 && key(i) == key) {
+                    return position < values.length ? values[position] : null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        Table table;
+        int size = 0;
+        // Index entries which are not free (live or deleted).
+        int used = 0;
+        // Positions of the values array freed by remove(), reused before the array grows.
+        int[] freePositions = new int[4];
+        int freeCount = 0;
+        int nextPosition = 0;
+
+        Segment(int capacity) {
+            table = new Table(capacity, new Object[capacity / 2]);
+        }
+
+        Object putIfAbsent(int key, int h, Object value) {
+            if (freeCount == 0 && nextPosition == table.values.length) {
+                // The values array is full, grow it with the index (readers must see both in one table).
+                table = rehash(2 * table.values.length);
+            }
+            var t = table;
+            int mask = t.capacity - 1;
+            int firstDeleted = -1;
+            int i = h & mask;
+            for (int position; (position = t.position(i)) != FREE; i = (i + 1) & mask) {
+                if (position == DELETED) {
+                    if (firstDeleted < 0) {
+                        firstDeleted = i;
+                    }
+                }
+                else if (t.key(i) == key) {
+                    return t.values[position];
+                }
+            }
+
+            if (firstDeleted >= 0) {
+                i = firstDeleted;
+            }
+            else {
+                used++;
+            }
+            int position = freeCount > 0 ? freePositions[--freeCount] : nextPosition++;
+            t.values[position] = value;
+            // The position is published last, so a reader probing this entry never finds a stale value.
+            t.setKey(i, key);
+            t.setPosition(i, position);
+            size++;
+            // Live entries never exceed half of the index, but deleted ones pile up until the next rehash.
+            if (4 * used > 3 * t.capacity) {
+                table = rehash(t.values.length);
+            }
+            return null;
+        }
+
+        boolean remove(int key, int h, Object value) {
+            var t = table;
+            int mask = t.capacity - 1;
+            for (int i = h & mask, position; (position = t.position(i)) != FREE; i = (i + 1) & mask) {
+                if (position >= 0 && t.key(i) == key) {
+                    if (t.values[position] != value) {
+                        return false;
+                    }
+                    t.setPosition(i, DELETED);
+                    t.values[position] = null;
+                    if (freeCount == freePositions.length) {
+                        freePositions = Arrays.copyOf(freePositions, 2 * freeCount);
+                    }
+                    freePositions[freeCount++] = position;
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return new table with the live entries of the current one, to be published by the caller
+         */
+        private Table rehash(int valuesLength) {
+            var old = table;
+            var resized = new Table(capacityFor(valuesLength), Arrays.copyOf(old.values, valuesLength));
+            int mask = resized.capacity - 1;
+            for (int j = 0; j < old.capacity; j++) {
+                int position = old.position(j);
+                if (position >= 0) {
+                    int key = old.key(j);
+                    int i = hash(key) & mask;
+                    while (resized.position(i) != FREE) {
+                        i = (i + 1) & mask;
+                    }
+                    resized.setKey(i, key);
+                    resized.setPosition(i, position);
+                }
+            }
+            used = size;
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * {@link IntRegistry} backed by open-addressing (linear probing) tables of primitive keys,
+ * so there are no entry objects and no boxed keys.
+ * <p>
+ * Keys are spread over segments, each with its own table and StampedLock. Writers take the write lock,
+ * readers probe the table optimistically and only take the read lock if a writer got in the way.
+ */
+class OpenAddressingIntRegistry<V> implements IntRegistry<V> {
+    static final int SEGMENT_BITS = 5;
+    private static final int MIN_CAPACITY = 8;
+    private static final Object DELETED = new Object();
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    OpenAddressingIntRegistry(int expectedSize) {
+        int capacity = capacityFor(expectedSize >> SEGMENT_BITS);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    // Fibonacci hashing, the top bits pick the segment and the bottom bits the slot within it.
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int segmentIndex(int hash) {
+        return hash >>> (Integer.SIZE - SEGMENT_BITS);
+    }
+
+    /**
+     * @return power of two table capacity, which keeps the load factor of size entries at most 1/2
+     */
+    static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, 2 * size - 1)) << 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Object value = segment.table.find(key, h);
+            if (segment.lock.validate(stamp)) {
+                return (V) value;
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return (V) segment.table.find(key, h);
+        }
+        finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Registered value cannot be null");
+        }
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.writeLock();
+        try {
+            return (V) segment.putIfAbsent(key, h, value);
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(int key, V value) {
+        int h = hash(key);
+        var segment = segments[segmentIndex(h)];
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, h, value);
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (var segment : segments) {
+            long stamp = segment.lock.readLock();
+            size += segment.size;
+            segment.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        var values = new ArrayList<>();
+        for (var segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                for (Object value : segment.table.values) {
+                    if (value != null && value != DELETED) {
+                        values.add(value);
+                    }
+                }
+            }
+            finally {
+                segment.lock.unlockRead(stamp);
+            }
+            // The action runs without the lock, it may as well use the registry.
+            values.forEach(value -> action.accept((V) value));
+            values.clear();
+        }
+    }
+
+    /**
+     * Keys and values of a segment, replaced together when the segment grows.
+     * A slot is free if its value is null, and deleted if its value is DELETED.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        // Can run concurrently with writers (the caller validates the result), so it only reads each slot once
+        // and never probes more than the whole table.
+        Object find(int key, int h) {
+            int mask = values.length - 1;
+            for (int i = h & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                Object value = values[i];
+                if (value == null) {
+                    return null;
+                }
+                if (value != DELETED && keys[i] == key) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        // Read optimistically, so fields of the table are final and the reader sees a consistent pair of arrays.
+        Table table;
+        int size = 0;
+        // Slots which are not free (live or deleted), probes stop only at free slots.
+        int used = 0;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        Object putIfAbsent(int key, int h, Object value) {
+            var keys = table.keys;
+            var values = table.values;
+            int mask = values.length - 1;
+            int firstDeleted = -1;
+            int i = h & mask;
+            while (values[i] != null) {
+                if (values[i] == DELETED) {
+                    if (firstDeleted < 0) {
+                        firstDeleted = i;
+                    }
+                }
+                else if (keys[i] == key) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+
+            if (firstDeleted >= 0) {
+                i = firstDeleted;
+            }
+            else {
+                used++;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            // Keep at least a quarter of the slots free, so that probes end quickly.
+            if (4 * used > 3 * values.length) {
+                rehash();
+            }
+            return null;
+        }
+
+        boolean remove(int key, int h, Object value) {
+            var keys = table.keys;
+            var values = table.values;
+            int mask = values.length - 1;
+            for (int i = h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (values[i] != DELETED && keys[i] == key) {
+                    if (values[i] != value) {
+                        return false;
+                    }
+                    values[i] = DELETED;
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Grows the table (or just drops the deleted slots) to the load factor of 1/2.
+        private void rehash() {
+            var old = table;
+            var resized = new Table(capacityFor(size));
+            int mask = resized.values.length - 1;
+            for (int j = 0; j < old.values.length; j++) {
+                Object value = old.values[j];
+                if (value != null && value != DELETED) {
+                    int i = hash(old.keys[j]) & mask;
+                    while (resized.values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    resized.keys[i] = old.keys[j];
+                    resized.values[i] = value;
+                }
+            }
+            table = resized;
+            used = size;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cp2023.solution;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many perform()s run on a device at once (see {@link StorageSystemOptions#setPerformLimit(int)}).
+ * Transfers over the limit wait in FIFO order without holding a thread: entering takes a callback,
+ * which is run right away if the limit allows, otherwise by the transfer which leaves and passes its place on.
+ */
+class PerformGate {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int limit;
+    private int running = 0;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+    PerformGate(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @param entered run by this thread, or by the one which passes its place on in exit(), so it mustn't throw:
+     *                a failure belongs to the transfer which has entered, not to the one which happens to run it
+     */
+    void enter(Runnable entered) {
+        lock.lock();
+        try {
+            if (running == limit) {
+                waiting.add(entered);
+                return;
+            }
+            running++;
+        }
+        finally {
+            lock.unlock();
+        }
+        entered.run();
+    }
+
+    void exit() {
+        Runnable next;
+        lock.lock();
+        try {
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        next.run();
+    }
+}
@@ -0,0 +1,525 @@
+package cp2023.solution;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Write-ahead log of component placement, which lets a storage system be restored after a crash.
+ * <p>
+ * The log directory holds generations of two kinds of files:
+ * <ul>
+ *     <li>wal-N: memory-mapped log of transfer records (start, finish, abort), appended in order,</li>
+ *     <li>snapshot-N: placement of all components as of the beginning of wal-N (or later, see below).</li>
+ * </ul>
+ * Recovery loads the newest snapshot and replays it with the WAL files of its generation and later ones,
+ * so it only reads the tail of the log, not the history of the catalog.
+ * <p>
+ * Finish records are applied to the component (by the caller-supplied action) under the log lock,
+ * so the order of records is the order of placement changes. When a WAL file fills up, the log switches
+ * to a new generation and takes a snapshot of the components in the background. The snapshot may see
+ * changes newer than the start of its generation, but those are replayed from the new WAL anyway,
+ * and replaying a finish record is idempotent.
+ * <p>
+ * Only finish records are made durable before a transfer completes, with group commit:
+ * one thread forces the file for all the records appended so far, the others wait for it.
+ */
+class PlacementLog {
+    private static final String WAL_PREFIX = "wal-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final int SNAPSHOT_MAGIC = 0x43503233;
+
+    // Record: kind with flags, component, source device, destination device, check.
+    private static final int RECORD_BYTES = 5 * Integer.BYTES;
+    // A file has to take at least the start and the finish of one transfer.
+    static final int MIN_FILE_SIZE = 2 * RECORD_BYTES;
+    private static final int START = 1;
+    private static final int FINISH = 2;
+    private static final int ABORT = 3;
+    private static final int KIND_MASK = 0xF;
+    private static final int HAS_SOURCE = 0x10;
+    private static final int HAS_DESTINATION = 0x20;
+
+    private final Path directory;
+    private final int fileSize;
+    private final IntRegistry<Component> components;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // Guarded by the lock.
+    private MappedByteBuffer wal;
+    private long generation;
+    // Bytes appended and made durable since the log was opened, over all generations.
+    private long appended = 0;
+    private long durable = 0;
+    private boolean syncing = false;
+    // First failure of a background snapshot, reported by close().
+    private volatile IOException snapshotFailure;
+    // Start records of the transfers in progress, copied to every new generation.
+    private final Map<Integer, int[]> inFlight = new HashMap<>();
+
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "placement-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Placement and interrupted transfers read from an existing log.
+     */
+    static final class Recovery {
+        final int[] componentIds;
+        final int[] deviceIds;
+        final List<InterruptedTransfer> interruptedTransfers;
+        final long lastGeneration;
+
+        private Recovery(int[] componentIds, int[] deviceIds,
+                         List<InterruptedTransfer> interruptedTransfers, long lastGeneration) {
+            this.componentIds = componentIds;
+            this.deviceIds = deviceIds;
+            this.interruptedTransfers = interruptedTransfers;
+            this.lastGeneration = lastGeneration;
+        }
+    }
+
+    /**
+     * Opens the log for appending, in a new generation after lastGeneration.
+     * @param components registry, whose placement is snapshotted; if the log is new (lastGeneration == 0),
+     *                   it's snapshotted right away, so that it's never lost
+     */
+    PlacementLog(Path directory, int fileSize, IntRegistry<Component> components, long lastGeneration) {
+        if (fileSize < MIN_FILE_SIZE)
+            throw new IllegalArgumentException("Log file size must hold at least two records");
+        this.directory = directory;
+        this.fileSize = fileSize - fileSize % RECORD_BYTES;
+        this.components = components;
+        this.generation = lastGeneration + 1;
+        try {
+            Files.createDirectories(directory);
+            if (lastGeneration == 0) {
+                writeSnapshot(generation);
+            }
+            else {
+                scheduleSnapshot(generation);
+            }
+            wal = mapWal(generation);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Logs the start of a transfer, which has just claimed its component. Not made durable by itself.
+     * @throws IllegalStateException if a new generation couldn't take all transfers in progress (this one too)
+     *                               and still the end of one of them; nothing is logged then
+     */
+    void logStart(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+        int[] record = record(START, componentId, sourceDeviceId, destinationDeviceId);
+        lock.lock();
+        try {
+            // Checked here, so that rotate() always has the room for the transfers in progress.
+            if ((long) (inFlight.size() + 2) * RECORD_BYTES > fileSize) {
+                throw new IllegalStateException("Log file size is too small for the transfers in progress");
+            }
+            append(record);
+            inFlight.put(record[1], record);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs that an admitted transfer has been given up before it started.
+     */
+    void logAbort(ComponentId componentId) {
+        int[] record = record(ABORT, componentId, null, null);
+        lock.lock();
+        try {
+            append(record);
+            inFlight.remove(record[1]);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs the end of a transfer and runs apply (which updates the component) in the order of the log.
+     * @return position to pass to {@link #awaitDurable(long)}
+     */
+    long logFinish(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId,
+                   Runnable apply) {
+        int[] record = record(FINISH, componentId, sourceDeviceId, destinationDeviceId);
+        lock.lock();
+        try {
+            append(record);
+            inFlight.remove(record[1]);
+            apply.run();
+            return appended;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything up to the position is on disk. The first waiter forces the file for everyone
+     * (including records appended while it waited for the lock), the others wait for it.
+     */
+    void awaitDurable(long position) {
+        lock.lock();
+        try {
+            while (durable < position) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                var buffer = wal;
+                long target = appended;
+                lock.unlock();
+                try {
+                    buffer.force();
+                }
+                finally {
+                    lock.lock();
+                    syncing = false;
+                    durable = Math.max(durable, target);
+                    synced.signalAll();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the log and stops taking snapshots. The log is consistent even if it's never closed.
+     * @throws UncheckedIOException if a background snapshot has failed (the log is still consistent,
+     *                              recovery just replays more of it)
+     */
+    void close() {
+        lock.lock();
+        try {
+            wal.force();
+            durable = appended;
+        }
+        finally {
+            lock.unlock();
+        }
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (snapshotFailure != null) {
+            throw new UncheckedIOException("Placement snapshot failed", snapshotFailure);
+        }
+    }
+
+    private static int[] record(int kind, ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+        int flags = kind;
+        int source = 0;
+        int destination = 0;
+        if (sourceDeviceId != null) {
+            flags |= HAS_SOURCE;
+            source = sourceDeviceId.getId();
+        }
+        if (destinationDeviceId != null) {
+            flags |= HAS_DESTINATION;
+            destination = destinationDeviceId.getId();
+        }
+        return new int[] { flags, componentId.getId(), source, destination };
+    }
+
+    // Records of a torn write (or the zeroed end of the file) don't match their check.
+    private static int check(int flags, int component, int source, int destination, long generation) {
+        int h = flags * 0x9E3779B9 ^ component;
+        h = h * 0x85EBCA6B ^ source;
+        h = h * 0xC2B2AE35 ^ destination;
+        return h * 0x9E3779B9 ^ (int) generation ^ (int) (generation >>> 32);
+    }
+
+    // Called with the lock held.
+    private void append(int[] record) {
+        if (wal.remaining() < RECORD_BYTES) {
+            rotate();
+        }
+        wal.putInt(record[0]).putInt(record[1]).putInt(record[2]).putInt(record[3])
+                .putInt(check(record[0], record[1], record[2], record[3], generation));
+        appended += RECORD_BYTES;
+    }
+
+    /**
+     * Moves to the next generation: the current file is forced, and the new one starts with the transfers
+     * in progress (their start records are about to be compacted away with the old file).
+     * If it fails, the log is left in the current generation. Called with the lock held.
+     */
+    private void rotate() {
+        if ((long) (inFlight.size() + 1) * RECORD_BYTES > fileSize) {
+            throw new IllegalStateException("Log file size is too small for the transfers in progress");
+        }
+        MappedByteBuffer next;
+        try {
+            next = mapWal(generation + 1);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        wal.force();
+        durable = appended;
+        generation++;
+        wal = next;
+        for (int[] record : inFlight.values()) {
+            wal.putInt(record[0]).putInt(record[1]).putInt(record[2]).putInt(record[3])
+                    .putInt(check(record[0], record[1], record[2], record[3], generation));
+            appended += RECORD_BYTES;
+        }
+        scheduleSnapshot(generation);
+    }
+
+    private MappedByteBuffer mapWal(long generation) throws IOException {
+        try (var channel = FileChannel.open(directory.resolve(WAL_PREFIX + generation),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    private void scheduleSnapshot(long generation) {
+        snapshotter.execute(() -> {
+            try {
+                writeSnapshot(generation);
+            }
+            catch (IOException | UncheckedIOException e) {
+                // The older snapshot and the WAL files it needs are kept, so nothing is lost.
+                if (snapshotFailure == null) {
+                    snapshotFailure = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the placement of all components (which are on some device) as snapshot-N,
+     * then deletes the files of older generations. If writing fails, the temporary file is deleted.
+     */
+    private void writeSnapshot(long generation) throws IOException {
+        var temporary = directory.resolve(SNAPSHOT_PREFIX + generation + ".tmp");
+        try {
+            writeSnapshotFile(temporary, generation);
+        }
+        catch (IOException | UncheckedIOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_PREFIX + generation), StandardCopyOption.ATOMIC_MOVE);
+
+        for (long older : generations(directory, SNAPSHOT_PREFIX)) {
+            if (older < generation) {
+                Files.deleteIfExists(directory.resolve(SNAPSHOT_PREFIX + older));
+            }
+        }
+        for (long older : generations(directory, WAL_PREFIX)) {
+            if (older < generation) {
+                Files.deleteIfExists(directory.resolve(WAL_PREFIX + older));
+            }
+        }
+    }
+
+    private void writeSnapshotFile(Path temporary, long generation) throws IOException {
+        var crc = new CRC32();
+        int[] count = { 0 };
+        try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(generation);
+            components.forEachValue(component -> {
+                var location = component.getLocation();
+                if (location instanceof UnlimitedDevice) {
+                    // Being added, or already deleted.
+                    return;
+                }
+                if (buffer.remaining() < 2 * Integer.BYTES) {
+                    flush(channel, buffer, crc);
+                }
+                buffer.putInt(component.getComponentId().getId()).putInt(location.getDeviceId().getId());
+                count[0]++;
+            });
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer, crc);
+            }
+            buffer.putInt(count[0]);
+            flush(channel, buffer, crc);
+            buffer.putLong(crc.getValue());
+            flush(channel, buffer, null);
+            channel.force(true);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) {
+        buffer.flip();
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    private static TreeSet<Long> generations(Path directory, String prefix) throws IOException {
+        var generations = new TreeSet<Long>();
+        try (var files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && !name.endsWith(".tmp"))
+                    .forEach(name -> generations.add(Long.parseLong(name.substring(prefix.length()))));
+        }
+        return generations;
+    }
+
+    /**
+     * Reads the placement from the log in the directory.
+     * @return recovered state, or null if there is no log
+     */
+    static Recovery recover(Path directory) {
+        try {
+            if (!Files.isDirectory(directory)) {
+                return null;
+            }
+            var snapshots = generations(directory, SNAPSHOT_PREFIX);
+            if (snapshots.isEmpty()) {
+                return null;
+            }
+            long base = snapshots.last();
+            int[][] placement = readSnapshot(directory.resolve(SNAPSHOT_PREFIX + base), base);
+
+            // Changes since the snapshot, by component: destination device, or null if deleted.
+            var changes = new HashMap<Integer, Integer>();
+            var inFlight = new HashMap<Integer, int[]>();
+            long lastGeneration = base;
+            for (long generation : generations(directory, WAL_PREFIX).tailSet(base)) {
+                replayWal(directory.resolve(WAL_PREFIX + generation), generation, changes, inFlight);
+                lastGeneration = generation;
+            }
+
+            var componentIds = new ArrayList<Integer>();
+            var deviceIds = new ArrayList<Integer>();
+            for (int i = 0; i < placement[0].length; i++) {
+                int component = placement[0][i];
+                if (!changes.containsKey(component)) {
+                    componentIds.add(component);
+                    deviceIds.add(placement[1][i]);
+                }
+            }
+            for (var change : changes.entrySet()) {
+                if (change.getValue() != null) {
+                    componentIds.add(change.getKey());
+                    deviceIds.add(change.getValue());
+                }
+            }
+
+            var interrupted = new ArrayList<InterruptedTransfer>();
+            for (int[] record : inFlight.values()) {
+                interrupted.add(new InterruptedTransfer(new ComponentId(record[1]),
+                        (record[0] & HAS_SOURCE) != 0 ? new DeviceId(record[2]) : null,
+                        (record[0] & HAS_DESTINATION) != 0 ? new DeviceId(record[3]) : null));
+            }
+            return new Recovery(componentIds.stream().mapToInt(Integer::intValue).toArray(),
+                    deviceIds.stream().mapToInt(Integer::intValue).toArray(), interrupted, lastGeneration);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int[][] readSnapshot(Path file, long generation) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+            int header = Integer.BYTES + Long.BYTES;
+            int footer = Integer.BYTES + Long.BYTES;
+            if (buffer.limit() < header + footer || buffer.getInt(0) != SNAPSHOT_MAGIC
+                    || buffer.getLong(Integer.BYTES) != generation) {
+                throw new IOException("Corrupted placement snapshot " + file);
+            }
+            int count = buffer.getInt(buffer.limit() - footer);
+            var crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit(buffer.limit() - Long.BYTES));
+            if ((long) count * 2 * Integer.BYTES != buffer.limit() - header - footer
+                    || crc.getValue() != buffer.getLong(buffer.limit() - Long.BYTES)) {
+                throw new IOException("Corrupted placement snapshot " + file);
+            }
+
+            int[][] placement = { new int[count], new int[count] };
+            buffer.position(header);
+            for (int i = 0; i < count; i++) {
+                placement[0][i] = buffer.getInt();
+                placement[1][i] = buffer.getInt();
+            }
+            return placement;
+        }
+    }
+
+    private static void replayWal(Path file, long generation,
+                                  Map<Integer, Integer> changes, Map<Integer, int[]> inFlight) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+            while (buffer.remaining() >= RECORD_BYTES) {
+                int flags = buffer.getInt();
+                int component = buffer.getInt();
+                int source = buffer.getInt();
+                int destination = buffer.getInt();
+                if (flags == 0 || buffer.getInt() != check(flags, component, source, destination, generation)) {
+                    // End of the log, possibly a torn record which was never made durable.
+                    break;
+                }
+                switch (flags & KIND_MASK) {
+                    case START:
+                        inFlight.put(component, new int[] { flags, component, source, destination });
+                        break;
+                    case ABORT:
+                        inFlight.remove(component);
+                        break;
+                    case FINISH:
+                        inFlight.remove(component);
+                        changes.put(component, (flags & HAS_DESTINATION) != 0 ? destination : null);
+                        break;
+                    default:
+                        throw new IOException("Corrupted placement log " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves components to a target placement, even when the devices are (nearly) full.
+ * <p>
+ * The plan has the fewest possible moves, one for each misplaced component: where there is no free slot,
+ * the moves are grouped into cycles (swaps, rotations), which the system runs without one.
+ * Moves are scheduled in waves, in which every device is the source of at most movesPerDevice moves,
+ * and the destination of at most as many, so that a wave keeps as many devices busy as it can
+ * without making them share their bandwidth. Each wave is run as one batch ({@link StorageSystemImpl#executeAll}),
+ * whose admission finds its cycles.
+ */
+public class Rebalancer {
+    // How long to wait before replanning a wave rejected because of a concurrent transfer.
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_REJECTED_WAVES = 1000;
+
+    private final StorageSystemImpl system;
+    private final MoveFactory moves;
+    private final int movesPerDevice;
+
+    public record Move(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+    }
+
+    /**
+     * @param moves creates the transfers of the planned moves
+     * @param movesPerDevice how many moves from (and to) each device can run at once
+     */
+    public Rebalancer(StorageSystemImpl system, MoveFactory moves, int movesPerDevice) {
+        if (system == null || moves == null)
+            throw new IllegalArgumentException("System and move factory cannot be null");
+        if (movesPerDevice < 1)
+            throw new IllegalArgumentException("Rebalancer needs movesPerDevice >= 1");
+        this.system = system;
+        this.moves = moves;
+        this.movesPerDevice = movesPerDevice;
+    }
+
+    /**
+     * Plans the moves from the current placement to the target one, without running them.
+     * @param targetPlacement device of each component to move, components not listed stay where they are
+     *                        (and so do the listed ones which don't exist)
+     * @return waves of moves, to be run one after another
+     * @throws IllegalArgumentException if the target placement doesn't fit in the devices
+     */
+    public List<List<Move>> plan(Map<ComponentId, DeviceId> targetPlacement) {
+        return new Planner(targetPlacement).plan(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves the components to the target placement, one wave at a time. The plan is made anew
+     * before each wave, so it keeps up with concurrent transfers: a wave rejected because one of them
+     * got in the way is simply planned again.
+     * @return number of moves run
+     * @throws IllegalArgumentException if the target placement doesn't fit in the devices
+     * @throws TransferException if a wave is rejected for a reason that retrying won't change
+     *                           (e.g. a closed device), or keeps being rejected
+     */
+    public long rebalance(Map<ComponentId, DeviceId> targetPlacement) throws TransferException {
+        long moved = 0;
+        int rejectedWaves = 0;
+        while (true) {
+            var planner = new Planner(targetPlacement);
+            var waves = planner.plan(1);
+            if (waves.isEmpty()) {
+                if (planner.pending == 0) {
+                    return moved;
+                }
+                // The free slots are reserved by other transfers for now.
+                LockSupport.parkNanos(RETRY_NANOS);
+                continue;
+            }
+            var wave = waves.get(0);
+            var transfers = new ArrayList<ComponentTransfer>(wave.size());
+            for (var move : wave) {
+                transfers.add(moves.move(move.componentId(), move.sourceDeviceId(), move.destinationDeviceId()));
+            }
+            try {
+                system.executeAll(transfers);
+                moved += wave.size();
+                rejectedWaves = 0;
+            }
+            catch (TransferException e) {
+                if (!isTransient(e) || ++rejectedWaves == MAX_REJECTED_WAVES) {
+                    throw e;
+                }
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+        }
+    }
+
+    // Rejections caused by other transfers of the same components, which a new plan takes into account,
+    // and aborts of moves which have been in a cycle with a failed transfer.
+    private static boolean isTransient(TransferException e) {
+        switch (e.getStatus()) {
+            case COMPONENT_IS_BEING_OPERATED_ON:
+            case COMPONENT_DOES_NOT_EXIST:
+            case COMPONENT_DOES_NOT_NEED_TRANSFER:
+            case ABORTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Planning state, with devices numbered by their index in {@link StorageSystemImpl#getDevices()}.
+     */
+    private final class Planner {
+        private final List<DeviceId> deviceIds;
+        private final Map<DeviceId, Integer> deviceIndex = new HashMap<>();
+        // Free slots of each device, as they will be after the waves planned so far.
+        private final int[] freeSlots;
+        // Pending moves, by source device; planned ones are replaced with null.
+        private final List<List<Move>> outbound = new ArrayList<>();
+        private final List<List<Integer>> outboundDestinations = new ArrayList<>();
+        private int pending = 0;
+
+        // State of the wave being planned.
+        private final int[] movesFrom;
+        private final int[] movesTo;
+        private final int[] cursor;
+        private final boolean[] dead;
+
+        Planner(Map<ComponentId, DeviceId> targetPlacement) {
+            deviceIds = system.getDevices();
+            int n = deviceIds.size();
+            freeSlots = new int[n];
+            var finalCount = new int[n];
+            for (int i = 0; i < n; i++) {
+                deviceIndex.put(deviceIds.get(i), i);
+                freeSlots[i] = system.getFreeSlots(deviceIds.get(i));
+                outbound.add(new ArrayList<>());
+                outboundDestinations.add(new ArrayList<>());
+            }
+
+            for (var entry : system.getPlacement().entrySet()) {
+                var componentId = entry.getKey();
+                int source = deviceIndex.get(entry.getValue());
+                var targetId = targetPlacement.get(componentId);
+                int destination = targetId == null ? source : indexOf(targetId);
+                finalCount[destination]++;
+                if (destination != source) {
+                    outbound.get(source).add(new Move(componentId, entry.getValue(), targetId));
+                    outboundDestinations.get(source).add(destination);
+                    pending++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (finalCount[i] > system.getTotalSlots(deviceIds.get(i))) {
+                    throw new IllegalArgumentException("Target placement doesn't fit in device " + deviceIds.get(i));
+                }
+            }
+
+            movesFrom = new int[n];
+            movesTo = new int[n];
+            cursor = new int[n];
+            dead = new boolean[n];
+        }
+
+        private int indexOf(DeviceId deviceId) {
+            var index = deviceIndex.get(deviceId);
+            if (index == null) {
+                throw new IllegalArgumentException("Device " + deviceId + " does not exist");
+            }
+            return index;
+        }
+
+        List<List<Move>> plan(int maxWaves) {
+            var waves = new ArrayList<List<Move>>();
+            while (pending > 0 && waves.size() < maxWaves) {
+                var wave = planWave();
+                if (wave.isEmpty()) {
+                    // Only possible if other transfers hold the free slots, the final counts fit.
+                    break;
+                }
+                waves.add(wave);
+            }
+            return waves;
+        }
+
+        private List<Move> planWave() {
+            Arrays.fill(movesFrom, 0);
+            Arrays.fill(movesTo, 0);
+            var wave = new ArrayList<Move>();
+            var freedSlots = new int[freeSlots.length];
+
+            // Moves to free slots first, they don't depend on anything.
+            for (int source = 0; source < outbound.size(); source++) {
+                var sourceMoves = outbound.get(source);
+                for (int i = 0; i < sourceMoves.size() && movesFrom[source] < movesPerDevice; i++) {
+                    int destination = outboundDestinations.get(source).get(i);
+                    if (sourceMoves.get(i) != null && freeSlots[destination] > 0 && movesTo[destination] < movesPerDevice) {
+                        freeSlots[destination]--;
+                        freedSlots[source]++;
+                        take(source, i, destination, wave);
+                    }
+                }
+            }
+
+            // Then cycles, which need no free slot, among the devices with some bandwidth left.
+            Arrays.fill(cursor, 0);
+            Arrays.fill(dead, false);
+            for (int start = 0; start < outbound.size(); start++) {
+                while (!dead[start] && findCycle(start, wave)) {
+                }
+            }
+
+            for (int i = 0; i < freeSlots.length; i++) {
+                freeSlots[i] += freedSlots[i];
+            }
+            return wave;
+        }
+
+        /**
+         * Walks the pending moves from the start device until the walk closes a cycle, which is added to the wave.
+         * Devices from which the walk can't go on can't be on any cycle, so they're marked dead for this wave.
+         * @return whether a cycle has been found
+         */
+        private boolean findCycle(int start, List<Move> wave) {
+            // Path of the walk: pathDevices[i] is left by the pathMoves[i]-th move of its pending ones.
+            var pathDevices = new ArrayList<Integer>();
+            var pathMoves = new ArrayList<Integer>();
+            var onPath = new HashMap<Integer, Integer>();
+            int device = start;
+            onPath.put(device, 0);
+            while (true) {
+                int move = nextMove(device);
+                if (move < 0) {
+                    dead[device] = true;
+                    onPath.remove(device);
+                    if (pathDevices.isEmpty()) {
+                        return false;
+                    }
+                    device = pathDevices.remove(pathDevices.size() - 1);
+                    pathMoves.remove(pathMoves.size() - 1);
+                    // The move leads to a dead device now, the next call skips it.
+                    continue;
+                }
+                int next = outboundDestinations.get(device).get(move);
+                pathDevices.add(device);
+                pathMoves.add(move);
+                var cycleStart = onPath.get(next);
+                if (cycleStart != null) {
+                    for (int i = cycleStart; i < pathDevices.size(); i++) {
+                        int source = pathDevices.get(i);
+                        int index = pathMoves.get(i);
+                        take(source, index, outboundDestinations.get(source).get(index), wave);
+                    }
+                    return true;
+                }
+                onPath.put(next, pathDevices.size());
+                device = next;
+            }
+        }
+
+        /**
+         * @return index of the next pending move from the device that can join the wave, or -1
+         */
+        private int nextMove(int device) {
+            if (movesFrom[device] >= movesPerDevice) {
+                return -1;
+            }
+            var sourceMoves = outbound.get(device);
+            for (; cursor[device] < sourceMoves.size(); cursor[device]++) {
+                int i = cursor[device];
+                int destination = outboundDestinations.get(device).get(i);
+                // Capacity only ever goes down within a wave, so a skipped move stays skipped.
+                if (sourceMoves.get(i) != null && !dead[destination] && movesTo[destination] < movesPerDevice) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void take(int source, int index, int destination, List<Move> wave) {
+            wave.add(outbound.get(source).set(index, null));
+            movesFrom[source]++;
+            movesTo[destination]++;
+            pending--;
+        }
+    }
+}
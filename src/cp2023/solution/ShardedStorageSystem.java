@@ -0,0 +1,63 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Storage system with its devices split into shards (e.g. racks), for systems in which most transfers,
+ * and so most cycles, stay within one shard.
+ * <p>
+ * Transfers only lock their own devices either way, the difference is in the cycle detection:
+ * each shard has its own wait-for graph, searched under its own lock, so escalations in different shards
+ * run in parallel. A transfer between shards, or one whose search reaches a device of another shard,
+ * is escalated to the coordinator instead: a search of the whole system, as in {@link StorageSystemImpl}.
+ * Device locks keep the two kinds of searches apart, so the coordinator doesn't stop the shards.
+ * Batches ({@link #executeAll}) within one shard lock only the devices of the shard.
+ */
+public class ShardedStorageSystem extends StorageSystemImpl {
+    /**
+     * @param shardOf shard of each device, any int, devices with equal values are in the same shard
+     */
+    public ShardedStorageSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                ToIntFunction<DeviceId> shardOf) throws IllegalArgumentException {
+        this(deviceTotalSlots, componentPlacement, shardOf, new StorageSystemOptions());
+    }
+
+    public ShardedStorageSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                ToIntFunction<DeviceId> shardOf,
+                                StorageSystemOptions options) throws IllegalArgumentException {
+        super(deviceTotalSlots, componentPlacement, options, checkShardOf(shardOf));
+    }
+
+    private static ToIntFunction<DeviceId> checkShardOf(ToIntFunction<DeviceId> shardOf) {
+        if (shardOf == null)
+            throw new IllegalArgumentException("Shard function cannot be null");
+        return shardOf;
+    }
+
+    @Override
+    public int getShardCount() {
+        return super.getShardCount();
+    }
+
+    /**
+     * @return number of admissions (or batches) resolved by the wait-for graph of a single shard
+     */
+    @Override
+    public long getShardEscalations() {
+        return super.getShardEscalations();
+    }
+
+    /**
+     * @return number of admissions (or batches) which had to go through the coordinator
+     */
+    @Override
+    public long getSystemEscalations() {
+        return super.getSystemEscalations();
+    }
+}
@@ -0,0 +1,184 @@
+package cp2023.solution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Transport over TCP, with one connection for the messages from each node to each other node
+ * (which keeps them in order). Meant for nodes on one machine or a trusted network, there is no security.
+ */
+public final class SocketTransport implements Transport {
+    // How long send() waits for another node to start listening.
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long CONNECT_RETRY_MILLIS = 50;
+
+    private final int node;
+    private final Map<Integer, InetSocketAddress> addresses;
+    private final ServerSocket serverSocket;
+    private final Map<Integer, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<Socket, Boolean> sockets = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Starts listening on the address of this node right away, so that the others can connect before start().
+     * @param addresses addresses of all nodes, by node
+     */
+    public SocketTransport(int node, Map<Integer, InetSocketAddress> addresses) throws IOException {
+        if (!addresses.containsKey(node))
+            throw new IllegalArgumentException("No address of node " + node);
+        this.node = node;
+        this.addresses = Map.copyOf(addresses);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(addresses.get(node));
+    }
+
+    @Override
+    public int getNode() {
+        return node;
+    }
+
+    @Override
+    public void start(Consumer<NodeMessage> receiver) {
+        var acceptor = new Thread(() -> accept(receiver), "transport-accept-" + node);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept(Consumer<NodeMessage> receiver) {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                throw new UncheckedIOException("panic: accepting a connection failed", e);
+            }
+            sockets.put(socket, Boolean.TRUE);
+            var reader = new Thread(() -> read(socket, receiver), "transport-read-" + node);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void read(Socket socket, Consumer<NodeMessage> receiver) {
+        try (var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                receiver.accept(NodeMessage.readFrom(in));
+            }
+        }
+        catch (EOFException e) {
+            // The other node has closed the connection.
+        }
+        catch (IOException e) {
+            if (!closed) {
+                throw new UncheckedIOException("panic: connection to node " + node + " broken", e);
+            }
+        }
+    }
+
+    /**
+     * Connection to another node, opened by the first message sent to it. Messages of many threads go through it,
+     * each has to be written whole, so they're written under its lock.
+     */
+    private final class Connection {
+        final int node;
+        final ReentrantLock lock = new ReentrantLock();
+        // Guarded by lock, null until connected (again, if connecting has failed).
+        DataOutputStream out;
+
+        Connection(int node) {
+            this.node = node;
+        }
+
+        void send(NodeMessage message) {
+            lock.lock();
+            try {
+                if (out == null) {
+                    out = connect(node);
+                }
+                message.writeTo(out);
+                out.flush();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Sending to node " + node + " failed", e);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void send(int node, NodeMessage message) {
+        // Only creates the connection in the map, it connects (retrying while the other node doesn't listen yet)
+        // under its own lock, so senders to other nodes don't wait for it.
+        connections.computeIfAbsent(node, Connection::new).send(message);
+    }
+
+    private DataOutputStream connect(int node) {
+        var address = addresses.get(node);
+        if (address == null)
+            throw new IllegalArgumentException("No address of node " + node);
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+        while (true) {
+            var socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address);
+                sockets.put(socket, Boolean.TRUE);
+                return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            catch (IOException e) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ignored) {
+                }
+                // The other node may not be listening yet.
+                if (closed || System.nanoTime() > deadline) {
+                    throw new UncheckedIOException("Connecting to node " + node + " failed", e);
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Interrupted while connecting to node " + node));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ignored) {
+        }
+        for (var socket : sockets.keySet()) {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
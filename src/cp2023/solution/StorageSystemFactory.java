@@ -7,8 +7,12 @@
  */
 package cp2023.solution;
 
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.ToIntFunction;
 
+import cp2023.base.AsyncStorageSystem;
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
 import cp2023.base.StorageSystem;
@@ -23,4 +27,68 @@ public final class StorageSystemFactory {
         return new StorageSystemImpl(deviceTotalSlots, componentPlacement);
     }
 
+    public static AsyncStorageSystem newAsyncSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor) {
+        // Same as newSystem(), but prepare() and perform() of asynchronous transfers run on the executor.
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement, executor);
+    }
+
+    public static AsyncStorageSystem newAsyncSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            StorageSystemOptions options) {
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement, options);
+    }
+
+    public static StorageSystem newDurableSystem(
+            Path logDirectory,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement) {
+        // Placement changes are logged in logDirectory. If it already holds a log, the placement is restored
+        // from it and componentPlacement is ignored (see StorageSystemImpl.getInterruptedTransfers()).
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement,
+                new StorageSystemOptions().setLogDirectory(logDirectory));
+    }
+
+    public static StorageSystem newShardedSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ToIntFunction<DeviceId> shardOf) {
+        // Devices with equal shardOf values (e.g. racks) share a cycle detector, see ShardedStorageSystem.
+        return new ShardedStorageSystem(deviceTotalSlots, componentPlacement, shardOf);
+    }
+
+    public static StorageSystem newDistributedNode(
+            int node,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<DeviceId, Integer> deviceNodes,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Transport transport) {
+        // One node of a system spread over many JVMs, each one owning the devices deviceNodes assigns to it.
+        // Every node gets the same configuration, see DistributedStorageSystem.
+        return new DistributedStorageSystem(node, deviceTotalSlots, deviceNodes, componentPlacement, transport);
+    }
+
+    public static StorageSystem newSystem(
+            int[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] componentIds,
+            int[] componentDeviceIds) {
+        // Device deviceIds[i] has deviceTotalSlots[i] slots, component componentIds[j] is on componentDeviceIds[j].
+        // Large catalogs don't need to be boxed into maps first.
+        return new StorageSystemImpl(deviceIds, deviceTotalSlots, componentIds, componentDeviceIds,
+                new StorageSystemOptions());
+    }
+
+    public static AsyncStorageSystem newAsyncSystem(
+            int[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] componentIds,
+            int[] componentDeviceIds,
+            StorageSystemOptions options) {
+        return new StorageSystemImpl(deviceIds, deviceTotalSlots, componentIds, componentDeviceIds, options);
+    }
+
 }
@@ -1,18 +1,57 @@
 package cp2023.solution;
 
+import cp2023.base.AsyncStorageSystem;
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
-import cp2023.base.StorageSystem;
+import cp2023.base.PlacementQuery;
+import cp2023.base.SizedTransfer;
+import cp2023.base.TransferStatus;
 import cp2023.exceptions.*;
 
 import java.util.*;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.Semaphore;
-
-public class StorageSystemImpl implements StorageSystem {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+public class StorageSystemImpl implements AsyncStorageSystem, PlacementQuery {
     public StorageSystemImpl(Map<DeviceId, Integer> deviceTotalSlots, Map<ComponentId, DeviceId> componentPlacement) throws IllegalArgumentException {
+        this(deviceTotalSlots, componentPlacement, new StorageSystemOptions());
+    }
+
+    /**
+     * @param executor runs prepare() and perform() of transfers submitted with {@link #executeAsync(ComponentTransfer)}
+     */
+    public StorageSystemImpl(Map<DeviceId, Integer> deviceTotalSlots,
+                             Map<ComponentId, DeviceId> componentPlacement,
+                             Executor executor) throws IllegalArgumentException {
+        this(deviceTotalSlots, componentPlacement, new StorageSystemOptions().setExecutor(executor));
+    }
+
+    public StorageSystemImpl(Map<DeviceId, Integer> deviceTotalSlots,
+                             Map<ComponentId, DeviceId> componentPlacement,
+                             StorageSystemOptions options) throws IllegalArgumentException {
+        this(deviceTotalSlots, componentPlacement, options, null);
+    }
+
+    /**
+     * @param shardOf shard of each device (see {@link ShardedStorageSystem}), or null if the system isn't sharded
+     */
+    protected StorageSystemImpl(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                StorageSystemOptions options,
+                                ToIntFunction<DeviceId> shardOf) throws IllegalArgumentException {
+        this.prepareExecutor = options.getPrepareExecutor();
+        this.performExecutor = options.getPerformExecutor();
+        this.earlySlotRelease = options.isEarlySlotRelease();
+        this.deviceMap = IntRegistry.create(deviceTotalSlots.size(), options.isOffHeapRegistries());
+        this.componentMap = IntRegistry.create(componentPlacement.size(), options.isOffHeapRegistries());
+
         // Validation:
         // - everything not null
         // - totalSlots > 0
@@ -28,309 +67,1679 @@ public class StorageSystemImpl implements StorageSystem {
 
             if (!(deviceId != null && freeSlots != null))
                 throw new IllegalArgumentException("DeviceID config cannot be null");
-            if (!(freeSlots >= 1))
-                throw new IllegalArgumentException("Device must have capacity >= 1");
 
-            deviceMap.put(deviceId, new Device(freeSlots, deviceId));
+            addDevice(deviceId, freeSlots, options);
         }
 
 
-        for (var entry : componentPlacement.entrySet()) {
-            var componentId = entry.getKey();
-            var deviceId = entry.getValue();
+        // A durable system with an existing log is restored from it, instead of componentPlacement.
+        var recovery = recover(options);
+        if (recovery == null) {
+            for (var entry : componentPlacement.entrySet()) {
+                var componentId = entry.getKey();
+                var deviceId = entry.getValue();
 
-            if (!(componentId != null && deviceId != null)) {
-                throw new IllegalArgumentException("Component placement config cannot be null");
+                if (!(componentId != null && deviceId != null)) {
+                    throw new IllegalArgumentException("Component placement config cannot be null");
+                }
+
+                placeComponent(componentId, deviceId, options.getComponentSize(componentId));
             }
+        }
+
+        devicesInLockOrder = sortDevices(deviceMap);
+        waitForGraph = new WaitForGraph(devicesInLockOrder);
+        shards = partition(devicesInLockOrder, shardOf);
+        placementLog = openLog(options, recovery);
+        interruptedTransfers = recovery == null ? List.of() : recovery.interruptedTransfers;
+    }
 
-            if (!deviceMap.containsKey(deviceId)) {
-                throw new IllegalArgumentException(
-                        "Component must be placed in an existing device (deviceId not found).");
+    /**
+     * Same as the Map-based constructor, but with the configuration given as parallel arrays of int ids:
+     * device deviceIds[i] has deviceTotalSlots[i] slots, component componentIds[j] is on device componentDeviceIds[j].
+     */
+    public StorageSystemImpl(int[] deviceIds,
+                             int[] deviceTotalSlots,
+                             int[] componentIds,
+                             int[] componentDeviceIds,
+                             StorageSystemOptions options) throws IllegalArgumentException {
+        if (deviceIds.length != deviceTotalSlots.length || componentIds.length != componentDeviceIds.length)
+            throw new IllegalArgumentException("Id and value arrays must have equal lengths");
+        this.prepareExecutor = options.getPrepareExecutor();
+        this.performExecutor = options.getPerformExecutor();
+        this.earlySlotRelease = options.isEarlySlotRelease();
+        this.deviceMap = IntRegistry.create(deviceIds.length, options.isOffHeapRegistries());
+        this.componentMap = IntRegistry.create(componentIds.length, options.isOffHeapRegistries());
+
+        // Same validation as above, but ids can be duplicated here.
+        for (int i = 0; i < deviceIds.length; i++) {
+            addDevice(new DeviceId(deviceIds[i]), deviceTotalSlots[i], options);
+        }
+        var recovery = recover(options);
+        if (recovery == null) {
+            for (int j = 0; j < componentIds.length; j++) {
+                var componentId = new ComponentId(componentIds[j]);
+                placeComponent(componentId, new DeviceId(componentDeviceIds[j]), options.getComponentSize(componentId));
             }
+        }
+
+        devicesInLockOrder = sortDevices(deviceMap);
+        waitForGraph = new WaitForGraph(devicesInLockOrder);
+        shards = partition(devicesInLockOrder, null);
+        placementLog = openLog(options, recovery);
+        interruptedTransfers = recovery == null ? List.of() : recovery.interruptedTransfers;
+    }
+
+    private void addDevice(DeviceId deviceId, int totalSlots, StorageSystemOptions options) {
+        if (!(totalSlots >= 1))
+            throw new IllegalArgumentException("Device must have capacity >= 1");
+
+        var device = new Device(totalSlots, deviceId, options.getWakeupPolicy(),
+                options.getByteCapacity(deviceId), options.getBandwidth(deviceId));
+        int performLimit = options.getPerformLimit(deviceId);
+        if (performLimit > 0) {
+            device.performGate = new PerformGate(performLimit);
+        }
+        if (deviceMap.putIfAbsent(deviceId.getId(), device) != null)
+            throw new IllegalArgumentException("Device " + deviceId + " is configured twice");
+    }
+
+    private void placeComponent(ComponentId componentId, DeviceId deviceId, long size) {
+        var device = deviceMap.get(deviceId.getId());
+        if (device == null) {
+            throw new IllegalArgumentException(
+                    "Component must be placed in an existing device (deviceId not found).");
+        }
+
+        // Check if the device is not full.
+        if (!device.tryOccupySlot()) {
+            throw new IllegalArgumentException("Too many components assigned to device " + deviceId);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("Component " + componentId + " has a negative size");
+        }
+        if (!device.tryReserveBytes(size)) {
+            throw new IllegalArgumentException("Components assigned to device " + deviceId + " exceed its byte capacity");
+        }
+
+        // Create new component object and assign it to device.
+        var component = new Component(componentId, device, size);
 
+        // Add component object to the registry.
+        if (componentMap.putIfAbsent(componentId.getId(), component) != null) {
+            throw new IllegalArgumentException("Component " + componentId + " is placed twice");
+        }
+        device.addResident(component);
+    }
 
-            // Get the device and check if it's not full.
-            var device = deviceMap.get(deviceId);
-            if (!device.hasFreeSlots()) {
-                throw new IllegalArgumentException("Too many components assigned to device " + deviceId);
+    /**
+     * Reads the placement log, if the system is durable and the log exists, and places the components it lists.
+     */
+    private PlacementLog.Recovery recover(StorageSystemOptions options) {
+        if (options.getLogDirectory() == null) {
+            return null;
+        }
+        var recovery = PlacementLog.recover(options.getLogDirectory());
+        if (recovery != null) {
+            for (int j = 0; j < recovery.componentIds.length; j++) {
+                var componentId = new ComponentId(recovery.componentIds[j]);
+                placeComponent(componentId, new DeviceId(recovery.deviceIds[j]), options.getComponentSize(componentId));
             }
+        }
+        return recovery;
+    }
+
+    private PlacementLog openLog(StorageSystemOptions options, PlacementLog.Recovery recovery) {
+        if (options.getLogDirectory() == null) {
+            return null;
+        }
+        return new PlacementLog(options.getLogDirectory(), options.getLogFileSize(), componentMap,
+                recovery == null ? 0 : recovery.lastGeneration);
+    }
 
-            // Create new component object and assign it to device.
-            var component = new Component(device);
-            component.setLocation(device);
-            device.occupyNewSlot();
+    private static Device[] sortDevices(IntRegistry<Device> deviceMap) {
+        var devices = new ArrayList<Device>(deviceMap.size());
+        deviceMap.forEachValue(devices::add);
+        devices.sort(Comparator.comparing(Device::getDeviceId));
+        return devices.toArray(new Device[0]);
+    }
+
+    /**
+     * Numbers the shards in the order of their first devices, and assigns each device to its shard.
+     * @return shards, each with the wait-for graph of its devices (none if shardOf is null)
+     */
+    private static Shard[] partition(Device[] devicesInLockOrder, ToIntFunction<DeviceId> shardOf) {
+        if (shardOf == null) {
+            return new Shard[0];
+        }
+        var shardNumbers = new HashMap<Integer, Integer>();
+        var shardDevices = new ArrayList<List<Device>>();
+        for (var device : devicesInLockOrder) {
+            int shard = shardNumbers.computeIfAbsent(shardOf.applyAsInt(device.getDeviceId()), key -> {
+                shardDevices.add(new ArrayList<>());
+                return shardDevices.size() - 1;
+            });
+            device.shard = shard;
+            shardDevices.get(shard).add(device);
+        }
 
-            // Add component object to map.
-            componentMap.put(componentId, component);
+        var shards = new Shard[shardDevices.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(new WaitForGraph(shardDevices.get(i).toArray(new Device[0]), i));
         }
+        return shards;
     }
 
+    // Enough for the cycles that are usually in progress at once, more are allocated (and dropped) as needed.
+    private static final int CYCLE_COORDINATOR_POOL_SIZE = 64;
+
     protected Device creationDevice = new UnlimitedDevice(new DeviceId(-111));
     protected Device deletionDevice = new UnlimitedDevice(new DeviceId(-222));
-    protected Map<DeviceId, Device> deviceMap = new HashMap<>();
-    protected Map<ComponentId, Component> componentMap = new HashMap<>();
-    protected Semaphore mutex = new Semaphore(1, true);
+    // Both keyed by the int ids, the device registry is only read after construction.
+    protected final IntRegistry<Device> deviceMap;
+    protected final IntRegistry<Component> componentMap;
+
+    // There is no global mutex: admissions and slot hand-offs only lock the source and destination devices.
+    // Cycle detection escalates to also locking the devices it visits (see WaitForGraph),
+    // and escalations are serialized among themselves: within a shard by the lock of the shard,
+    // and those which cross shards (or all of them, if the system isn't sharded) by the escalation lock.
+    protected final Device[] devicesInLockOrder;
+    protected final ReentrantLock escalationLock = new ReentrantLock();
+    // Only used under the escalation lock.
+    private final WaitForGraph waitForGraph;
+    private final Shard[] shards;
+    private final LongAdder shardEscalations = new LongAdder();
+    private final LongAdder systemEscalations = new LongAdder();
+    private final Executor prepareExecutor;
+    private final Executor performExecutor;
+    private final boolean earlySlotRelease;
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final CycleCoordinator.Pool cycleCoordinators = new CycleCoordinator.Pool(CYCLE_COORDINATOR_POOL_SIZE, this::releaseSlot);
+    // Null unless the system is durable.
+    private final PlacementLog placementLog;
+    private final List<InterruptedTransfer> interruptedTransfers;
+    // Drains in progress, by device, see drain().
+    private final Map<Device, DeviceDrain> drains = new ConcurrentHashMap<>();
 
     private Device getSourceDevice (DeviceId sourceDeviceId) throws DeviceDoesNotExist {
         return getDevice(sourceDeviceId, creationDevice);
     }
 
-    private Device getDestinationDevice (DeviceId destinationDeviceId) throws DeviceDoesNotExist {
-        return getDevice(destinationDeviceId, deletionDevice);
+    private Device getDestinationDevice (DeviceId destinationDeviceId) throws TransferException {
+        var device = getDevice(destinationDeviceId, deletionDevice);
+        // A transfer admitted just as the device is being closed may still get in, drains allow for that.
+        if (device.isClosed()) {
+            throw new DeviceIsClosed(destinationDeviceId);
+        }
+        return device;
     }
 
     private Device getDevice(DeviceId deviceId, Device alternativeDevice) throws DeviceDoesNotExist {
-        Device device;
-        if (deviceId != null) { // Device should exist in the system.
-            device = deviceMap.get(deviceId);
-            if (device == null) {
-                throw new DeviceDoesNotExist(deviceId);
-            }
-        }
-        else {
-            device = alternativeDevice;
+        var device = lookUpDevice(deviceId, alternativeDevice);
+        if (device == null) {
+            throw new DeviceDoesNotExist(deviceId);
         }
         return device;
     }
 
-    protected TransferWrapper createTransferWrapper(ComponentTransfer transfer) throws TransferException {
-        var sourceDeviceId = transfer.getSourceDeviceId();
-        var destinationDeviceId = transfer.getDestinationDeviceId();
-        var componentId = transfer.getComponentId();
+    /**
+     * @return the device, alternativeDevice if deviceId is null, or null if the device doesn't exist
+     */
+    private Device lookUpDevice(DeviceId deviceId, Device alternativeDevice) {
+        // Device should exist in the system.
+        return deviceId != null ? deviceMap.get(deviceId.getId()) : alternativeDevice;
+    }
 
-        // Check illegal transfer (null -> null).
-        if (sourceDeviceId == null && destinationDeviceId == null) {
-            throw new IllegalTransferType(componentId);
+    /**
+     * Checks the transfer against the component, without claiming it. Rejections don't need any lock,
+     * the component state is volatile: this is done once before locking, so that most invalid transfers
+     * never touch a device lock, and once more under the source lock, before claiming the component.
+     * @param component component registered under the id of the transfer, null if there is none
+     */
+    private void checkComponent(ComponentTransfer transfer, Component component,
+                                Device sourceDevice, Device destinationDevice) throws TransferException {
+        var status = componentStatus(transfer, component, sourceDevice, destinationDevice);
+        if (status != TransferStatus.OK) {
+            throw rejection(transfer, status);
         }
+    }
 
-        // Set the source device (possibly to artificial 'creation' device - for 'add' type transfers).
-        Device sourceDevice = getSourceDevice(sourceDeviceId);
+    /**
+     * Same as checkComponent(), but returns the reason of a rejection, so that tryExecute() doesn't build exceptions.
+     */
+    private TransferStatus componentStatus(ComponentTransfer transfer, Component component,
+                                           Device sourceDevice, Device destinationDevice) {
+        if (sourceDevice == creationDevice) {
+            // Component should be new.
+            if (component != null) {
+                return TransferStatus.COMPONENT_ALREADY_EXISTS;
+            }
+            if (addedSize(transfer) < 0) {
+                return TransferStatus.ILLEGAL_COMPONENT_SIZE;
+            }
+            return TransferStatus.OK;
+        }
 
-        // Set the destination device.
-        Device destinationDevice = getDestinationDevice(destinationDeviceId);
+        // Component should already exist.
+        if (component == null) {
+            return TransferStatus.COMPONENT_DOES_NOT_EXIST;
+        }
+
+        // Component should not be transferred at the moment.
+        if (component.isTransferred()) {
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+
+        // Component should be on the source device.
+        if (component.getLocation() != sourceDevice) {
+            return TransferStatus.COMPONENT_DOES_NOT_EXIST;
+        }
+
+        // Component should not be on the destination device.
+        if (component.getLocation() == destinationDevice) {
+            return TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER;
+        }
+        return TransferStatus.OK;
+    }
+
+    // Exception of a rejection found by componentStatus().
+    private static TransferException rejection(ComponentTransfer transfer, TransferStatus status) {
+        var componentId = transfer.getComponentId();
+        switch (status) {
+            case COMPONENT_ALREADY_EXISTS:
+                return new ComponentAlreadyExists(componentId);
+            case ILLEGAL_COMPONENT_SIZE:
+                return new IllegalComponentSize(componentId, addedSize(transfer));
+            case COMPONENT_DOES_NOT_EXIST:
+                return new ComponentDoesNotExist(componentId, transfer.getSourceDeviceId());
+            case COMPONENT_IS_BEING_OPERATED_ON:
+                return new ComponentIsBeingOperatedOn(componentId);
+            case COMPONENT_DOES_NOT_NEED_TRANSFER:
+                return new ComponentDoesNotNeedTransfer(componentId, transfer.getDestinationDeviceId());
+            default:
+                throw new IllegalStateException("Unexpected rejection " + status);
+        }
+    }
+
+    /**
+     * Validates the transfer and marks its component as being transferred.
+     * Should be run with the source device locked.
+     * @param component component looked up (and checked) before locking, see checkComponent()
+     * @param future if not null, the transfer will be run asynchronously and its completion reported to future
+     */
+    protected TransferWrapper createTransferWrapper(ComponentTransfer transfer,
+                                                    Device sourceDevice,
+                                                    Device destinationDevice,
+                                                    Component component,
+                                                    CompletableFuture<Void> future) throws TransferException {
+        var sourceDeviceId = transfer.getSourceDeviceId();
+        var destinationDeviceId = transfer.getDestinationDeviceId();
+        var componentId = transfer.getComponentId();
 
-        // Set the component and check for other errors.
-        Component component;
         if (sourceDeviceId == null) {
             // Add component.
 
-            // Component should be new.
-            if (componentMap.containsKey(componentId)) {
-                throw new ComponentAlreadyExists(componentId);
+            long size = addedSize(transfer);
+            if (!destinationDevice.tryReserveBytes(size)) {
+                throw new DeviceIsOutOfSpace(destinationDeviceId, componentId, size);
             }
 
-            component = new Component(sourceDevice);
+            // Component should be new, so register it right away (and atomically),
+            // no other transfer can operate on it until it's uploaded.
+            component = new Component(componentId, sourceDevice, size);
+            component.setTransferred(true);
+            if (componentMap.putIfAbsent(componentId.getId(), component) != null) {
+                destinationDevice.releaseBytes(size);
+                throw new ComponentAlreadyExists(componentId);
+            }
         }
         else {
             // Move or delete component.
 
-            // Component should already exist.
-            if (!componentMap.containsKey(componentId)) {
-                throw new ComponentDoesNotExist(componentId, sourceDeviceId);
-            }
-            component = componentMap.get(componentId);
-
-            // Component should not be transferred at the moment.
-            if (component.isTransferred()) {
-                throw new ComponentIsBeingOperatedOn(componentId);
-            }
+            // The component may have been claimed since it was looked up, but not replaced by another instance
+            // that is still on the source device: that takes a delete, which leaves the old instance elsewhere.
+            // So if the check passes now, the instance is the current one.
+            checkComponent(transfer, component, sourceDevice, destinationDevice);
 
-            // Component should be on the source device.
-            if (component.getLocation() != sourceDevice) {
-                throw new ComponentDoesNotExist(componentId, sourceDeviceId);
+            // The space is reserved for the whole transfer, even if it has to wait for a slot,
+            // and stays taken on the source device until the component leaves it.
+            if (!destinationDevice.tryReserveBytes(component.getSize())) {
+                throw new DeviceIsOutOfSpace(destinationDeviceId, componentId, component.getSize());
             }
 
-            if (destinationDevice != null) {
-                // Move component.
-
-                // Component should not be on the destination device.
-                if (component.getLocation() == destinationDevice) {
-                    throw new ComponentDoesNotNeedTransfer(componentId, destinationDeviceId);
-                }
-            }
+            // The source device is locked, and the component can only leave it through
+            // a transfer admitted under this lock, so it's safe to claim it now.
+            component.setTransferred(true);
         }
 
         // Reaching this point means we have a valid transfer.
+        if (future != null) {
+            return new AsyncTransferWrapper(sourceDevice, destinationDevice, component, transfer, this, future);
+        }
         return new TransferWrapper(sourceDevice, destinationDevice, component, transfer);
     }
 
+    // Size of the component added by the transfer.
+    private static long addedSize(ComponentTransfer transfer) {
+        return transfer instanceof SizedTransfer ? ((SizedTransfer) transfer).getComponentSize() : 0;
+    }
 
+    enum Admission {
+        // The destination slot is reserved, the transfer can run right away.
+        RUN,
+        // The transfer is on the waiting list of its destination device.
+        WAIT,
+        // The transfer closes a cycle of waiting transfers, see TransferWrapper.getCycle().
+        CYCLE
+    }
 
     /**
-     * @param transfer new transfer to be executed
-     * @throws TransferException if the transfer is not valid
+     * Validates the transfer, and either reserves a slot for it, puts it on the waiting list
+     * or finds a cycle it closes. Only locks the devices involved, unless it's possible that there is a cycle.
      */
-    @Override
-    public void execute(ComponentTransfer transfer) throws TransferException {
-        try {
-            mutex.acquire();
+    private TransferWrapper admit(ComponentTransfer transfer, CompletableFuture<Void> future) throws TransferException {
+        checkTransferType(transfer);
 
-            TransferWrapper transferWrapper;
-            try {
-                transferWrapper = createTransferWrapper(transfer);
-            }
-            catch (TransferException e) {
-                // E.g. if the transfer was wrong, then release the mutex anyway.
-                mutex.release();
-                throw e;
-            }
+        // Set the source device (possibly to artificial 'creation' device - for 'add' type transfers).
+        // The set of devices never changes, so this doesn't need any lock.
+        Device sourceDevice = getSourceDevice(transfer.getSourceDeviceId());
 
-            // Set the state of this component to being transferred.
-            transferWrapper.component.setTransferred(true);
+        // Set the destination device.
+        Device destinationDevice = getDestinationDevice(transfer.getDestinationDeviceId());
 
+        // Reject what we can before taking any lock.
+        var component = componentMap.get(transfer.getComponentId().getId());
+        checkComponent(transfer, component, sourceDevice, destinationDevice);
 
-            if (transferWrapper.destinationDevice.hasFreeSlots()) {
-                // Update destination device
-                transferWrapper.destinationDevice.occupyNewSlot();
-                // and run this transfer without mutex.
-                mutex.release();
+        return admit(transfer, sourceDevice, destinationDevice, component, future);
+    }
 
-                transfer.prepare();
-                transfer.perform(); transferWrapper.markAsFinished();
+    /**
+     * Same as admit(), for a transfer whose devices and component have been looked up and checked already.
+     */
+    private TransferWrapper admit(ComponentTransfer transfer, Device sourceDevice, Device destinationDevice,
+                                  Component component, CompletableFuture<Void> future) throws TransferException {
+        TransferWrapper transferWrapper;
+        boolean mayCloseCycle = false;
+
+        // Fast path: claim the component (under the source lock), and take a free slot on the destination
+        // without locking it. This is all that adds (whose source is never locked) and deletes usually need.
+        sourceDevice.lock();
+        try {
+            transferWrapper = createTransferWrapper(transfer, sourceDevice, destinationDevice, component, future);
+        }
+        finally {
+            sourceDevice.unlock();
+        }
+        logStart(transferWrapper);
+        if (destinationDevice.tryOccupySlot()) {
+            transferWrapper.admission = Admission.RUN;
+            return transferWrapper;
+        }
 
-                // Acquire mutex to update the state of sourceDevice and possible run another waiting transfer.
-                mutex.acquire();
-                releaseNextTransferIfWaitingAndUpdateTheDevice(transferWrapper); // (releases the mutex)
+        // Slow path: the destination is full, so the transfer waits or closes a cycle.
+        // A slot can only be given back under the destination lock, and only if nobody waits for it,
+        // so after rechecking the slots under the lock, this transfer can't miss one.
+        Device.lockBoth(sourceDevice, destinationDevice);
+        try {
+            if (destinationDevice.tryOccupySlot() || takeDepartingSlot(transferWrapper)) {
+                transferWrapper.admission = Admission.RUN;
+            }
+            else if (!sourceDevice.hasWaiting() || !destinationDevice.hasOutboundWaiting()) {
+                // Nothing waits for a slot on the source device, or no transfer from the destination device
+                // waits anywhere, so this transfer can't close a cycle and we can wait without looking
+                // at the rest of the system. (Any other transfer that could close a cycle with this one
+                // has to lock the source or the destination device too, so it will see this one.)
+                destinationDevice.enqueueWaiting(transferWrapper);
+                transferWrapper.admission = Admission.WAIT;
             }
             else {
-                // There are 2 cases:
-                // (1) there is a cycle, created by this transfer
-                // (2) the transfer has to wait for prepare() and maybe for perform() too (if it's in a cycle).
-
-                var cycle = findCycle(transferWrapper);
-                if (cycle != null) { /* (1) there is a cycle, created by this transfer */
-                    // Prepare and perform the whole cycle.
-                    mutex.release();
-                    transfer.prepare();
-
-                    // Make a cyclePerformBarrier to run perform() on transfers only when all of them have already run prepare().
-                    CyclicBarrier cyclePerformBarrier = new CyclicBarrier(cycle.size() + 1);
-
-                    for (var otherTransferWrapper : cycle) {
-                        otherTransferWrapper.setInCycle(true);
-                        otherTransferWrapper.setCycleBarrier(cyclePerformBarrier);
-                        otherTransferWrapper.waitPrepare.release();
-                    }
+                mayCloseCycle = true;
+            }
+        }
+        finally {
+            Device.unlockBoth(sourceDevice, destinationDevice);
+        }
 
-                    // Wait until all transfers in cycle are prepared.
-                    cyclePerformBarrier.await();
+        if (mayCloseCycle) {
+            // The component is already claimed by this transfer, so we only have to recheck the slots.
+            escalate(transferWrapper);
+        }
 
-                    transfer.perform(); transferWrapper.markAsFinished();
-                    // Other transfers in cycle will run their perform() as well, because of released cyclePerformBarrier.
-                }
-                else { /* (2) the transfer has to wait for prepare() */
-                    // Add this transfer to destinationDevice's waiting list.
-                    transferWrapper.destinationDevice.waiting.add(transferWrapper);
-                    mutex.release();
+        return transferWrapper;
+    }
+
+    /**
+     * Gives the transfer the slot of a transfer leaving its destination, which has been allowed to run
+     * but hasn't run perform() yet (see startChain()). Should be run with the destination locked.
+     * @return whether the transfer has got a slot
+     */
+    private boolean takeDepartingSlot(TransferWrapper transferWrapper) {
+        // An overcommitted device keeps the slots of the departing transfers, see Device.overcommitSlot().
+        if (transferWrapper.destinationDevice.isOvercommitted()) {
+            return false;
+        }
+        var upstream = transferWrapper.destinationDevice.pollDeparting();
+        if (upstream == null) {
+            return false;
+        }
+        handOverSlot(upstream, transferWrapper);
+        return true;
+    }
 
-                    transferWrapper.waitPrepare.acquire();
-                    transfer.prepare();
+    /**
+     * Gives the source slot of upstream to downstream, before upstream has run perform().
+     * Should be run with the source device of upstream locked.
+     */
+    private void handOverSlot(TransferWrapper upstream, TransferWrapper downstream) {
+        upstream.downstream = downstream;
+        downstream.hasUpstream = true;
+        metrics.recordEarlySlotHandoff(
+                downstream.sourceDevice == creationDevice && upstream.destinationDevice == deletionDevice);
+    }
 
-                    if (transferWrapper.isInCycle()) {
-                        assert transferWrapper.getCycleBarrier() != null;
-                        transferWrapper.getCycleBarrier().await();
-                    }
+    /**
+     * Called when a transfer (not in a cycle) is allowed to run, before it's granted prepare(). Passes its source slot
+     * on right away, to the next transfer waiting for it, which is allowed to run prepare() too, and so on down
+     * the chain of waiting transfers, so that all of them prepare at once and only their perform()s run one after another
+     * (each one after its upstream's, see TransferWrapper.arriveForPerform()). If nobody waits for the slot,
+     * the transfer is marked as departing, and the next transfer to come takes its slot (see takeDepartingSlot()).
+     * Deletes, which are always allowed to run right away, thus free their slots for adds (and moves) at once.
+     * Does nothing unless early slot release is on, see {@link StorageSystemOptions#setEarlySlotRelease(boolean)}.
+     */
+    private void startChain(TransferWrapper transferWrapper) {
+        if (!earlySlotRelease) {
+            return;
+        }
+        var current = transferWrapper;
+        while (true) {
+            var next = passSlotEarly(current);
+            // Granted only after its own slot is taken care of, so that it can't end before that.
+            if (current != transferWrapper) {
+                current.grantPrepare();
+            }
+            if (next == null) {
+                return;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * @return transfer given the source slot of transferWrapper, or null if it's been marked as departing instead
+     */
+    private TransferWrapper passSlotEarly(TransferWrapper transferWrapper) {
+        var sourceDevice = transferWrapper.sourceDevice;
+        if (sourceDevice == creationDevice) {
+            return null;
+        }
+        TransferWrapper next;
+        sourceDevice.lock();
+        try {
+            // An overcommitted device keeps the slot, it's repaid when the transfer ends.
+            next = sourceDevice.isOvercommitted() ? null : sourceDevice.dequeueWaiting();
+            if (next == null) {
+                sourceDevice.addDeparting(transferWrapper);
+            }
+            else {
+                handOverSlot(transferWrapper, next);
+            }
+        }
+        finally {
+            sourceDevice.unlock();
+        }
+        return next;
+    }
 
-                    // transferWrapper.waitPerform.acquire();
-                    transfer.perform(); transferWrapper.markAsFinished();
-                    // if we shouldn't run perform() in mutex, than let's do markAsFinished() update just after the function call
-
-                    if (!transferWrapper.isInCycle()) {
-                        mutex.acquire();
-                        // No other transfer has been scheduled to be performed just after this one,
-                        // so we can run the longest-waiting one, if there is one.
-                        releaseNextTransferIfWaitingAndUpdateTheDevice(transferWrapper);
-                        mutex.release();
-                    } // Otherwise do nothing, since there will be next transfer coming to this sourceDevice in a moment.
+    /**
+     * Admits the transfer with a search of the wait-for graph: of its shard, if it stays inside one
+     * and so does the cycle it closes, otherwise of the whole system.
+     */
+    private void escalate(TransferWrapper transferWrapper) {
+        var destinationDevice = transferWrapper.destinationDevice;
+        var shard = commonShard(transferWrapper.sourceDevice, destinationDevice);
+        if (shard != null) {
+            shard.lock.lock();
+            shard.waitForGraph.begin(destinationDevice);
+            try {
+                if (admitWithCycleSearch(transferWrapper, shard.waitForGraph)) {
+                    shardEscalations.increment();
+                    return;
                 }
             }
+            finally {
+                shard.waitForGraph.end();
+                shard.lock.unlock();
+            }
+        }
 
+        systemEscalations.increment();
+        escalationLock.lock();
+        waitForGraph.begin(destinationDevice);
+        try {
+            admitWithCycleSearch(transferWrapper, waitForGraph);
+        }
+        finally {
+            waitForGraph.end();
+            escalationLock.unlock();
+        }
+    }
 
-            // After all steps, the transfer was successful, and we can finally update
-            // the component's state and location.
-//            mutex.acquire();
-//            transferWrapper.markAsFinished();
-//            mutex.release();
+    /**
+     * @return shard of all the devices (ignoring the artificial ones), or null if there is no such shard
+     */
+    private Shard commonShard(Device... devices) {
+        int shard = WaitForGraph.ANY_SHARD;
+        for (var device : devices) {
+            if (device.shard == WaitForGraph.ANY_SHARD) {
+                continue;
+            }
+            if (shard != WaitForGraph.ANY_SHARD && device.shard != shard) {
+                return null;
+            }
+            shard = device.shard;
+        }
+        return shard == WaitForGraph.ANY_SHARD || shard >= shards.length ? null : shards[shard];
+    }
 
+    private TransferWrapper admitMeasured(ComponentTransfer transfer, CompletableFuture<Void> future) throws TransferException {
+        return admitMeasured(transfer, null, null, null, future);
+    }
 
+    /**
+     * @param sourceDevice source device of a transfer already looked up and checked before locking (along with
+     *                     destinationDevice and component, see tryExecute()), or null if admit() has to do that
+     */
+    private TransferWrapper admitMeasured(ComponentTransfer transfer, Device sourceDevice, Device destinationDevice,
+                                          Component component, CompletableFuture<Void> future) throws TransferException {
+        long startedAt = System.nanoTime();
+        TransferWrapper transferWrapper;
+        try {
+            transferWrapper = sourceDevice == null ? admit(transfer, future)
+                    : admit(transfer, sourceDevice, destinationDevice, component, future);
+        }
+        catch (TransferException e) {
+            metrics.recordRejection(e.getStatus());
+            throw e;
+        }
+        transferWrapper.admittedAt = System.nanoTime();
+        metrics.admission.record(transferWrapper.admittedAt - startedAt);
+        return transferWrapper;
+    }
 
-        } catch (InterruptedException | BrokenBarrierException e) {
-            throw new RuntimeException("panic: unexpected thread interruption");
+    private void checkTransferType(ComponentTransfer transfer) throws IllegalTransferType {
+        // Check illegal transfer (null -> null).
+        if (transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() == null) {
+            throw new IllegalTransferType(transfer.getComponentId());
         }
     }
 
     /**
-     * Resumes the longest-waiting transfer from the sourceDevice of transferWrapper.
-     * Should be run with mutex acquired; after this function mutex is released.
-     * @param transferWrapper transferWrapper with sourceDevice, which may contain other transfers waiting
+     * Reserves a slot for an already validated transfer, or finds a cycle it closes, or puts it on the waiting list.
+     * Should be run under the lock guarding the graph, inside a search of it.
+     * @return false if nothing has been done, because the search would have to leave the shard of the graph
      */
-    private void releaseNextTransferIfWaitingAndUpdateTheDevice(TransferWrapper transferWrapper) {
-        if (!transferWrapper.sourceDevice.waiting.isEmpty()) {
-            var nextTransferWrapper = transferWrapper.sourceDevice.waiting.removeFirst();
-            mutex.release();
-            nextTransferWrapper.waitPrepare.release();
+    private boolean admitWithCycleSearch(TransferWrapper transferWrapper, WaitForGraph graph) {
+        var destinationDevice = transferWrapper.destinationDevice;
+        if (destinationDevice.tryOccupySlot() || takeDepartingSlot(transferWrapper)) {
+            transferWrapper.admission = Admission.RUN;
+            return true;
+        }
+
+        var cycle = graph.findCycle(transferWrapper);
+        if (graph.hasLeftShard()) {
+            return false;
+        }
+        if (cycle == null) {
+            destinationDevice.enqueueWaiting(transferWrapper);
+            transferWrapper.admission = Admission.WAIT;
         }
         else {
-            transferWrapper.sourceDevice.releaseNewSlot();
-            mutex.release();
+            cycle.add(transferWrapper);
+            metrics.recordCycle(cycle.size());
+            cycleCoordinators.acquire(cycle);
+            transferWrapper.admission = Admission.CYCLE;
         }
+        return true;
     }
 
+    /**
+     * Validates and claims all transfers in one critical section, and then admits them: either all of them
+     * are admitted, or none is and the exception of the first invalid one is thrown.
+     * Admitting them one after another (with every device locked) finds all cycles within the batch as well.
+     */
+    private List<AsyncTransferWrapper> admitAll(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        long startedAt = System.nanoTime();
+        try {
+            var transferWrappers = admitAllUnmeasured(transfers);
+            long admittedAt = System.nanoTime();
+            for (var transferWrapper : transferWrappers) {
+                transferWrapper.admittedAt = admittedAt;
+                metrics.admission.record(admittedAt - startedAt);
+            }
+            return transferWrappers;
+        }
+        catch (TransferException e) {
+            metrics.recordRejection(e.getStatus());
+            throw e;
+        }
+    }
 
-    private List<TransferWrapper> findCycleDFS(Device currentDevice, Set<Device> visited, Device cycleNode) {
-        visited.add(currentDevice);
-
-        var iter = currentDevice.waiting.iterator();
-        while (iter.hasNext()) {
-            var transferWrapper = iter.next();
+    private List<AsyncTransferWrapper> admitAllUnmeasured(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        // Everything that doesn't need a lock goes first.
+        var sourceDevices = new Device[transfers.size()];
+        var destinationDevices = new Device[transfers.size()];
+        var components = new Component[transfers.size()];
+        int i = 0;
+        for (var transfer : transfers) {
+            checkTransferType(transfer);
+            sourceDevices[i] = getSourceDevice(transfer.getSourceDeviceId());
+            destinationDevices[i] = getDestinationDevice(transfer.getDestinationDeviceId());
+            components[i] = componentMap.get(transfer.getComponentId().getId());
+            checkComponent(transfer, components[i], sourceDevices[i], destinationDevices[i]);
+            i++;
+        }
 
-            var nextDevice = transferWrapper.sourceDevice;
-            if (!visited.contains(nextDevice)) {
-                var maybeCycle = findCycleDFS(nextDevice, visited, cycleNode);
+        // A batch within one shard only locks the devices of the shard. If a search has to leave the shard,
+        // the rest of the batch is admitted with every device locked (claiming is all-or-nothing either way).
+        var devices = Arrays.copyOf(sourceDevices, 2 * transfers.size());
+        System.arraycopy(destinationDevices, 0, devices, transfers.size(), transfers.size());
+        var shard = commonShard(devices);
+        var transferWrappers = new ArrayList<AsyncTransferWrapper>(transfers.size());
+        var graph = shard != null ? shard.waitForGraph : waitForGraph;
+        var graphLock = shard != null ? shard.lock : escalationLock;
+        graphLock.lock();
+        graph.beginAll();
+        try {
+            claimAll(transfers, sourceDevices, destinationDevices, components, transferWrappers);
+        }
+        finally {
+            graph.end();
+            graphLock.unlock();
+        }
+        // Nothing else can see the claimed transfers until they're admitted, so their starts are logged
+        // in between, without holding any lock.
+        logStarts(transferWrappers);
+
+        int admitted = 0;
+        if (shard != null) {
+            shard.lock.lock();
+            shard.waitForGraph.beginAll();
+            try {
+                while (admitted < transferWrappers.size()
+                        && admitWithCycleSearch(transferWrappers.get(admitted), shard.waitForGraph)) {
+                    admitted++;
+                }
+            }
+            finally {
+                shard.waitForGraph.end();
+                shard.lock.unlock();
+            }
+            if (admitted == transferWrappers.size()) {
+                shardEscalations.increment();
+                return transferWrappers;
+            }
+        }
 
-                if (maybeCycle != null) {
-                    // Add current transfer to the cycle.
-                    maybeCycle.add(transferWrapper);
-                    // Remove this transfer from waiting list on this device.
-                    iter.remove();
+        systemEscalations.increment();
+        escalationLock.lock();
+        waitForGraph.beginAll();
+        try {
+            for (; admitted < transferWrappers.size(); admitted++) {
+                admitWithCycleSearch(transferWrappers.get(admitted), waitForGraph);
+            }
+        }
+        finally {
+            waitForGraph.end();
+            escalationLock.unlock();
+        }
+        return transferWrappers;
+    }
 
-                    return maybeCycle;
-                }
+    /**
+     * Validates all transfers and claims their components, or none of them if any is invalid.
+     * Should be run with all their devices locked.
+     */
+    private void claimAll(Collection<? extends ComponentTransfer> transfers,
+                          Device[] sourceDevices,
+                          Device[] destinationDevices,
+                          Component[] components,
+                          List<AsyncTransferWrapper> transferWrappers) throws TransferException {
+        int i = 0;
+        try {
+            for (var transfer : transfers) {
+                transferWrappers.add((AsyncTransferWrapper) createTransferWrapper(
+                        transfer, sourceDevices[i], destinationDevices[i], components[i], new CompletableFuture<>()));
+                i++;
+            }
+        }
+        catch (TransferException e) {
+            // Nothing but the components has been touched yet, so let them go.
+            for (var transferWrapper : transferWrappers) {
+                unclaim(transferWrapper);
             }
-            else if (nextDevice == cycleNode) {
-                // Start the cycle.
-                var cycle = new ArrayList<TransferWrapper>();
+            throw e;
+        }
+    }
 
-                // Add current transfer to the cycle.
-                cycle.add(transferWrapper);
-                // Remove this transfer from waiting list on this device.
-                iter.remove();
+    /**
+     * Logs the start of a transfer, which has claimed its component, but hasn't taken a slot nor started waiting,
+     * so nothing else can grant it to run (and log its finish) before this. Run without any device lock,
+     * so that admissions only queue on the lock of the log for the append. If the log fails, the claim is reverted.
+     */
+    private void logStart(TransferWrapper transferWrapper) {
+        if (placementLog == null) {
+            return;
+        }
+        var transfer = transferWrapper.transfer;
+        try {
+            placementLog.logStart(transfer.getComponentId(), transfer.getSourceDeviceId(),
+                    transfer.getDestinationDeviceId());
+        }
+        catch (RuntimeException e) {
+            revertClaim(transferWrapper);
+            throw e;
+        }
+    }
 
-                return cycle;
+    /**
+     * Same as logStart() for a batch, all-or-nothing: if the log fails, every claim is reverted.
+     */
+    private void logStarts(List<? extends TransferWrapper> transferWrappers) {
+        if (placementLog == null) {
+            return;
+        }
+        int logged = 0;
+        try {
+            for (; logged < transferWrappers.size(); logged++) {
+                var transfer = transferWrappers.get(logged).transfer;
+                placementLog.logStart(transfer.getComponentId(), transfer.getSourceDeviceId(),
+                        transfer.getDestinationDeviceId());
+            }
+        }
+        catch (RuntimeException e) {
+            for (int i = 0; i < transferWrappers.size(); i++) {
+                if (i < logged) {
+                    unclaim(transferWrappers.get(i));
+                }
+                else {
+                    revertClaim(transferWrappers.get(i));
+                }
             }
-            //else {
-                // it's ok, we do nothing, we already visited this device with no effect,
-                // we're here again probably because of multiple transfers from this device
-//                System.out.println("WEIRD-ERROR the cycle should be only found when trying to visit cycleNode");
-//                throw new UnexpectedException("The cycle should be only found when trying to visit cycleNode");
-            //}
+            throw e;
         }
-        return null;
     }
 
-    private List<TransferWrapper> findCycle(TransferWrapper firstTransfer) {
-        HashSet<Device> visited = new HashSet<>();
-        visited.add(firstTransfer.destinationDevice);
+    /**
+     * Reverts createTransferWrapper() (and the start logged by logStart()) for a transfer, which has not taken any slot.
+     */
+    private void unclaim(TransferWrapper transferWrapper) {
+        if (placementLog != null) {
+            placementLog.logAbort(transferWrapper.component.getComponentId());
+        }
+        revertClaim(transferWrapper);
+    }
 
-        var cycle = findCycleDFS(firstTransfer.sourceDevice, visited, firstTransfer.destinationDevice);
-        if (cycle != null) {
-//            cycle.add(firstTransfer); this is the real beginning of the cycle
-            // Reverse to get the right order,
-            // with [the first transfer freed after firstTransfer] at the beginning.
-            Collections.reverse(cycle);
+    // Reverts createTransferWrapper(), the start of the transfer isn't logged (or its abort already is).
+    private void revertClaim(TransferWrapper transferWrapper) {
+        var component = transferWrapper.component;
+        transferWrapper.destinationDevice.releaseBytes(component.getSize());
+        if (transferWrapper.sourceDevice == creationDevice) {
+            componentMap.remove(component.getComponentId().getId(), component);
+        }
+        else {
+            component.setTransferred(false);
         }
+        wakeDrains();
+    }
+
+    /**
+     * @param transfer new transfer to be executed
+     * @throws TransferException if the transfer is not valid, or TransferInterrupted if the thread has been
+     *                           interrupted while the transfer waited for a slot (then it's withdrawn)
+     */
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        execute(transfer, false, 0);
+    }
 
-        return cycle;
+    /**
+     * Same as {@link #execute(ComponentTransfer)}, but returns the reason of a rejection. Rejections found
+     * before locking (most of them) are returned without building an exception.
+     */
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer) {
+        return tryExecute(transfer, false, 0);
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer, long timeout, TimeUnit unit) {
+        return tryExecute(transfer, true, System.nanoTime() + unit.toNanos(timeout));
     }
 
+    // Finds the rejections admit() finds before taking any lock, and then admits the transfer with what it has looked up.
+    private TransferStatus tryExecute(ComponentTransfer transfer, boolean timed, long deadline) {
+        var status = TransferStatus.OK;
+        Device sourceDevice = null;
+        Device destinationDevice = null;
+        Component component = null;
+        if (transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() == null) {
+            status = TransferStatus.ILLEGAL_TRANSFER_TYPE;
+        }
+        else {
+            sourceDevice = lookUpDevice(transfer.getSourceDeviceId(), creationDevice);
+            destinationDevice = lookUpDevice(transfer.getDestinationDeviceId(), deletionDevice);
+            if (sourceDevice == null || destinationDevice == null) {
+                status = TransferStatus.DEVICE_DOES_NOT_EXIST;
+            }
+            else if (destinationDevice.isClosed()) {
+                status = TransferStatus.DEVICE_IS_CLOSED;
+            }
+            else {
+                component = componentMap.get(transfer.getComponentId().getId());
+                status = componentStatus(transfer, component, sourceDevice, destinationDevice);
+            }
+        }
+        if (status != TransferStatus.OK) {
+            metrics.recordRejection(status);
+            return status;
+        }
+
+        try {
+            run(admitMeasured(transfer, sourceDevice, destinationDevice, component, null), timed, deadline);
+            return TransferStatus.OK;
+        }
+        catch (TransferException e) {
+            return e.getStatus();
+        }
+    }
+
+    /**
+     * Same as {@link #execute(ComponentTransfer)}, but withdraws the transfer and throws TransferTimedOut
+     * if it has waited for a slot longer than the timeout.
+     */
+    @Override
+    public void execute(ComponentTransfer transfer, long timeout, TimeUnit unit) throws TransferException {
+        execute(transfer, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private void execute(ComponentTransfer transfer, boolean timed, long deadline) throws TransferException {
+        run(admitMeasured(transfer, null), timed, deadline);
+    }
+
+    // Runs an admitted transfer on the calling thread.
+    private void run(TransferWrapper transferWrapper, boolean timed, long deadline) throws TransferException {
+        var transfer = transferWrapper.transfer;
+        // Once admitted, the transfer is counted on by others (its cycle, the transfers waiting for its slot),
+        // so an interrupt doesn't stop it, it's only passed on to the caller at the end.
+        boolean interrupted = false;
+
+        try {
+            if (transferWrapper.admission == Admission.RUN) {
+                startChain(transferWrapper);
+            }
+            else if (transferWrapper.admission == Admission.CYCLE) {
+                // Let all transfers of the cycle (this one too) run prepare() at once.
+                transferWrapper.getCycle().grantPrepare();
+                interrupted = transferWrapper.awaitGrantUninterruptibly();
+            }
+            else if (transferWrapper.admission == Admission.WAIT) {
+                // Wait until either some transfer frees a slot for this one, or it's run in a cycle.
+                interrupted = awaitSlot(transferWrapper, timed, deadline);
+            }
+
+            transferWrapper.prepareStartedAt = System.nanoTime();
+            try {
+                transfer.prepare();
+            }
+            catch (RuntimeException | Error e) {
+                if (transferWrapper.isInCycle()) {
+                    abortInCycle(transferWrapper);
+                }
+                else {
+                    rollBack(transferWrapper, false);
+                }
+                throw e;
+            }
+            transferWrapper.preparedAt = System.nanoTime();
+
+            if (transferWrapper.isInCycle()) {
+                // Run perform() only when all transfers of the cycle have already run prepare().
+                transferWrapper.getCycle().arrive();
+                interrupted |= transferWrapper.awaitGrantUninterruptibly();
+                if (transferWrapper.aborted) {
+                    throw abort(transferWrapper);
+                }
+            }
+            else if (transferWrapper.hasUpstream) {
+                // Run perform() only after the transfer whose slot this one has taken has run its perform().
+                arriveForPerform(transferWrapper);
+                interrupted |= transferWrapper.awaitGrantUninterruptibly();
+                if (transferWrapper.aborted) {
+                    throw abort(transferWrapper);
+                }
+            }
+
+            awaitPerformGates(transferWrapper);
+            transferWrapper.performStartedAt = System.nanoTime();
+            try {
+                transfer.perform();
+            }
+            catch (RuntimeException | Error e) {
+                exitPerformGates(transferWrapper);
+                if (transferWrapper.isInCycle()) {
+                    failInCycle(transferWrapper);
+                }
+                else {
+                    rollBack(transferWrapper, true);
+                }
+                throw e;
+            }
+            long logPosition = finish(transferWrapper);
+            exitPerformGates(transferWrapper);
+
+            if (!transferWrapper.isInCycle()) {
+                // No other transfer has been scheduled to be performed just after this one,
+                // so we can run the next waiting one, if there is one.
+                releaseNextTransferIfWaitingAndUpdateTheDevice(transferWrapper);
+            }
+            else {
+                // The next transfer of the cycle takes the slot on this sourceDevice.
+                transferWrapper.getCycle().performed();
+            }
+
+            // The new placement is reported durable only after the slot has been passed on.
+            awaitDurable(logPosition);
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Rolls back a transfer whose prepare() has failed, and calls its cycle off: the other transfers of the cycle
+     * can't run without it, so they're rolled back as well once they've run prepare() (see abort()).
+     * Nothing has moved yet, and every transfer of a cycle keeps its own slot, so slots are not affected.
+     */
+    private void abortInCycle(TransferWrapper transferWrapper) {
+        unclaim(transferWrapper);
+        transferWrapper.getCycle().fail(transferWrapper);
+    }
+
+    /**
+     * Rolls back a transfer of a cycle whose perform() has failed, while the rest of the cycle goes on, since
+     * the others may have run perform() already. Its component stays on the source device, which the transfer
+     * of the cycle taking its slot moves in to all the same, so the device is overcommitted by a slot until
+     * a component leaves it. The destination slot is left free, it's given away once all transfers
+     * of the cycle have run perform() (see CycleCoordinator.performed()).
+     */
+    private void failInCycle(TransferWrapper transferWrapper) {
+        unclaim(transferWrapper);
+        var sourceDevice = transferWrapper.sourceDevice;
+        sourceDevice.lock();
+        try {
+            sourceDevice.overcommitSlot();
+        }
+        finally {
+            sourceDevice.unlock();
+        }
+        transferWrapper.failed = true;
+        transferWrapper.getCycle().performed();
+    }
+
+    /**
+     * Rolls back a transfer whose cycle has been called off, or whose upstream transfer has failed (see rollBack()).
+     * In the latter case its destination slot is the source slot of the upstream transfer, whose component
+     * stays there, so there is no slot to give back.
+     * @return exception to report it with
+     */
+    private TransferAborted abort(TransferWrapper transferWrapper) {
+        unclaim(transferWrapper);
+        if (!transferWrapper.isInCycle()) {
+            abortDownstream(transferWrapper);
+        }
+        metrics.recordRejection(TransferStatus.ABORTED);
+        return new TransferAborted(transferWrapper.component.getComponentId());
+    }
+
+    /**
+     * Rolls back a transfer (not in a cycle) whose prepare() or perform() has failed. Its component stays where
+     * it is, and so the source slot stays taken: the transfer given it early (see startChain()) is aborted,
+     * and so on down the chain. The destination slot is passed on to the next transfer waiting for it,
+     * or given back to the device; if the transfer has got it early, only after its upstream transfer has left.
+     * @param performing whether perform() has failed, the upstream transfer (if any) has left then
+     */
+    private void rollBack(TransferWrapper transferWrapper, boolean performing) {
+        unclaim(transferWrapper);
+        abortDownstream(transferWrapper);
+        if (transferWrapper.hasUpstream && !performing) {
+            transferWrapper.failed = true;
+            arriveForPerform(transferWrapper);
+        }
+        else {
+            releaseSlot(transferWrapper.destinationDevice);
+        }
+    }
+
+    /**
+     * Aborts the transfer given the source slot of a rolled back transfer early, if there is one,
+     * otherwise stops offering the slot to new transfers.
+     */
+    private void abortDownstream(TransferWrapper transferWrapper) {
+        var sourceDevice = transferWrapper.sourceDevice;
+        if (sourceDevice == creationDevice) {
+            return;
+        }
+        TransferWrapper downstream;
+        sourceDevice.lock();
+        try {
+            downstream = transferWrapper.downstream;
+            if (downstream == null) {
+                sourceDevice.removeDeparting(transferWrapper);
+            }
+        }
+        finally {
+            sourceDevice.unlock();
+        }
+        if (downstream != null) {
+            // Arrives in place of this transfer, which will never run perform().
+            downstream.aborted = true;
+            arriveForPerform(downstream);
+        }
+    }
+
+    /**
+     * Arrival of a transfer with an upstream one, or of its upstream transfer, before its perform()
+     * (see TransferWrapper.arriveForPerform()). The second one lets the transfer run perform(),
+     * or aborts it if the upstream transfer has failed, or gives the slot on to the next transfer waiting for it,
+     * if the transfer itself has failed (and been rolled back) meanwhile.
+     */
+    private void arriveForPerform(TransferWrapper transferWrapper) {
+        if (!transferWrapper.arriveForPerform()) {
+            return;
+        }
+        if (transferWrapper.failed) {
+            // Aborted too, its destination slot stays taken by the component of the upstream transfer.
+            if (!transferWrapper.aborted) {
+                releaseSlot(transferWrapper.destinationDevice);
+            }
+        }
+        else if (transferWrapper.aborted) {
+            transferWrapper.grantAbort();
+        }
+        else {
+            transferWrapper.grantPerform();
+        }
+    }
+
+    /**
+     * Resumes the next waiting transfer (by the wake-up policy) with the slot of a rolled back transfer,
+     * or gives the slot back to the device if nobody waits for it (or the device is overcommitted).
+     */
+    private void releaseSlot(Device device) {
+        TransferWrapper nextTransferWrapper = null;
+        device.lock();
+        try {
+            if (!device.repaySlot()) {
+                nextTransferWrapper = device.dequeueWaiting();
+                if (nextTransferWrapper == null) {
+                    device.releaseNewSlot();
+                }
+            }
+        }
+        finally {
+            device.unlock();
+        }
+        if (nextTransferWrapper != null) {
+            startChain(nextTransferWrapper);
+            nextTransferWrapper.grantPrepare();
+        }
+        else {
+            wakeDrains();
+        }
+    }
+
+    // Same as abort(), for an asynchronous transfer, see AsyncTransferWrapper.grantAbort().
+    void abortAsync(AsyncTransferWrapper transferWrapper) {
+        transferWrapper.future.completeExceptionally(abort(transferWrapper));
+    }
+
+    /**
+     * Waits for the grant of a transfer on a waiting list. If the deadline passes (or the thread is interrupted),
+     * the transfer is withdrawn, unless it has been resumed in the meantime: then it has to run after all.
+     * @return whether the thread has been interrupted too late to withdraw the transfer
+     * @throws TransferInterrupted if the transfer has been withdrawn on an interrupt, which is kept set
+     */
+    private boolean awaitSlot(TransferWrapper transferWrapper, boolean timed, long deadline)
+            throws TransferTimedOut, TransferInterrupted {
+        try {
+            if (!timed) {
+                transferWrapper.awaitGrant();
+                return false;
+            }
+            if (transferWrapper.awaitGrant(deadline)) {
+                return false;
+            }
+            if (withdraw(transferWrapper)) {
+                metrics.recordRejection(TransferStatus.TIMED_OUT);
+                throw new TransferTimedOut(transferWrapper.component.getComponentId());
+            }
+            return transferWrapper.awaitGrantUninterruptibly();
+        }
+        catch (InterruptedException e) {
+            if (withdraw(transferWrapper)) {
+                Thread.currentThread().interrupt();
+                metrics.recordRejection(TransferStatus.INTERRUPTED);
+                throw new TransferInterrupted(transferWrapper.component.getComponentId());
+            }
+            transferWrapper.awaitGrantUninterruptibly();
+            return true;
+        }
+    }
+
+    /**
+     * Takes a transfer off the waiting list of its destination and releases its component,
+     * as if it has never been admitted. Slots are not affected, the transfer hasn't taken any.
+     * @return false if it's too late for that, because the transfer has been resumed or taken into a cycle
+     */
+    boolean withdraw(TransferWrapper transferWrapper) {
+        var destinationDevice = transferWrapper.destinationDevice;
+        destinationDevice.lock();
+        try {
+            if (!destinationDevice.isWaiting(transferWrapper)) {
+                return false;
+            }
+            destinationDevice.removeWaiting(transferWrapper);
+        }
+        finally {
+            destinationDevice.unlock();
+        }
+        unclaim(transferWrapper);
+        return true;
+    }
+
+    /**
+     * Same as {@link #execute(ComponentTransfer)}, but doesn't block the calling thread:
+     * prepare() and perform() are run by the prepare and perform executors of this system, as soon as the transfer is allowed to.
+     * @return future completed after perform(), or completed exceptionally if the transfer is not valid
+     *         or prepare()/perform() throws
+     */
+    @Override
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) {
+        try {
+            return submit(transfer);
+        }
+        catch (TransferException e) {
+            var future = new TransferFuture(this);
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Same as {@link #executeAsync(ComponentTransfer)}, but throws the rejection of an invalid transfer,
+     * so that the future only ever reports the failures of prepare()/perform().
+     */
+    CompletableFuture<Void> submit(ComponentTransfer transfer) throws TransferException {
+        var future = new TransferFuture(this);
+        var transferWrapper = admitMeasured(transfer, future);
+        future.transferWrapper = transferWrapper;
+
+        startAsync(transferWrapper);
+        return future;
+    }
+
+    /**
+     * Closes the device to inbound transfers and starts moving its components away, see {@link DeviceDrain}.
+     * The device stays closed after the drain, until {@link #reopenDevice(DeviceId)}.
+     * @param maxConcurrentMoves how many moves of the drain can be in progress at once
+     * @param moves creates the transfer which moves a component from the device to the chosen one
+     * @throws IllegalArgumentException if there is no such device, or maxConcurrentMoves is not positive
+     * @throws IllegalStateException if the device is being drained already
+     */
+    public DeviceDrain drain(DeviceId deviceId, int maxConcurrentMoves, MoveFactory moves) {
+        if (maxConcurrentMoves < 1)
+            throw new IllegalArgumentException("Drain needs maxConcurrentMoves >= 1");
+        if (moves == null)
+            throw new IllegalArgumentException("Move factory cannot be null");
+        var device = queriedDevice(deviceId);
+        var drain = new DeviceDrain(this, device, maxConcurrentMoves, moves, prepareExecutor);
+        if (drains.putIfAbsent(device, drain) != null)
+            throw new IllegalStateException("Device " + deviceId + " is being drained already");
+        device.setClosed(true);
+        drain.wake();
+        return drain;
+    }
+
+    // Called by a drain when it's done.
+    void endDrain(DeviceDrain drain) {
+        drains.remove(drain.getDevice(), drain);
+    }
+
+    /**
+     * Lets the drains look for components to move again, after a transfer has ended or been rolled back
+     * (which may have released a component, or freed a slot).
+     */
+    private void wakeDrains() {
+        if (!drains.isEmpty()) {
+            for (var drain : drains.values()) {
+                drain.wake();
+            }
+        }
+    }
+
+    /**
+     * Lets the device take inbound transfers again, after a drain.
+     * @throws IllegalArgumentException if there is no such device
+     */
+    public void reopenDevice(DeviceId deviceId) {
+        queriedDevice(deviceId).setClosed(false);
+        // Drains may move components to it now.
+        wakeDrains();
+    }
+
+    /**
+     * @return open device other than the excluded one, with space for the given bytes and the most free slots,
+     *         or null if none has any
+     */
+    Device mostFreeDevice(Device excluded, long bytes) {
+        Device best = null;
+        for (var device : devicesInLockOrder) {
+            if (device != excluded && !device.isClosed() && device.getFreeBytes() >= bytes
+                    && device.getFreeSlots() > (best == null ? 0 : best.getFreeSlots())) {
+                best = device;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Executes all transfers as a batch: they are validated and admitted together (see admitAll),
+     * then run concurrently by the executors of this system. Blocks until all of them are done.
+     * @throws TransferException if any of the transfers is not valid, then none of them is executed,
+     *                           or if some have been aborted (see {@link TransferAborted}) and none has failed
+     */
+    @Override
+    public void executeAll(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        var transferWrappers = admitAll(transfers);
+        for (var transferWrapper : transferWrappers) {
+            startAsync(transferWrapper);
+        }
+
+        RuntimeException failure = null;
+        TransferAborted aborted = null;
+        for (var transferWrapper : transferWrappers) {
+            try {
+                transferWrapper.future.join();
+            }
+            catch (CompletionException e) {
+                // Let all the others finish anyway, and rethrow the first failure of prepare()/perform().
+                // Aborts only follow from a failure, which may have been outside the batch though.
+                if (e.getCause() instanceof TransferAborted) {
+                    if (aborted == null) {
+                        aborted = (TransferAborted) e.getCause();
+                    }
+                }
+                else if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (aborted != null) {
+            throw aborted;
+        }
+    }
+
+    private void startAsync(TransferWrapper transferWrapper) {
+        if (transferWrapper.admission == Admission.RUN) {
+            startChain(transferWrapper);
+            transferWrapper.grantPrepare();
+        }
+        else if (transferWrapper.admission == Admission.CYCLE) {
+            transferWrapper.getCycle().grantPrepare();
+        } // Otherwise the transfer will be resumed by the one which frees a slot for it.
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return current metrics, with the queue depth and slot occupancy of every device
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return metrics.snapshot(Arrays.asList(devicesInLockOrder));
+    }
+
+    // Queries only read the registries (optimistically, see OpenAddressingIntRegistry)
+    // and volatile fields of components and devices, so they never wait for a transfer.
+
+    @Override
+    public DeviceId getLocation(ComponentId componentId) {
+        var component = componentMap.get(componentId.getId());
+        if (component == null) {
+            return null;
+        }
+        var location = queriedLocation(component);
+        return location == null ? null : location.getDeviceId();
+    }
+
+    @Override
+    public boolean isBeingTransferred(ComponentId componentId) {
+        var component = componentMap.get(componentId.getId());
+        return component != null && component.isTransferred();
+    }
+
+    @Override
+    public List<DeviceId> getDevices() {
+        var deviceIds = new ArrayList<DeviceId>(devicesInLockOrder.length);
+        for (var device : devicesInLockOrder) {
+            deviceIds.add(device.getDeviceId());
+        }
+        return deviceIds;
+    }
+
+    @Override
+    public int getTotalSlots(DeviceId deviceId) {
+        return queriedDevice(deviceId).getTotalSlots();
+    }
+
+    @Override
+    public int getFreeSlots(DeviceId deviceId) {
+        return queriedDevice(deviceId).getFreeSlots();
+    }
+
+    @Override
+    public long getFreeBytes(DeviceId deviceId) {
+        return queriedDevice(deviceId).getFreeBytes();
+    }
+
+    @Override
+    public List<ComponentId> getComponents(DeviceId deviceId) {
+        var device = queriedDevice(deviceId);
+        var componentIds = new ArrayList<ComponentId>();
+        for (var component : device.getResidents()) {
+            // A component moving in (or out) is listed on both devices for a moment.
+            if (component.getLocation() == device) {
+                componentIds.add(component.getComponentId());
+            }
+        }
+        return componentIds;
+    }
+
+    @Override
+    public Map<ComponentId, DeviceId> getPlacement() {
+        var placement = new HashMap<ComponentId, DeviceId>(2 * componentMap.size());
+        componentMap.forEachValue(component -> {
+            var location = queriedLocation(component);
+            if (location != null) {
+                placement.put(component.getComponentId(), location.getDeviceId());
+            }
+        });
+        return placement;
+    }
+
+    private Device queriedDevice(DeviceId deviceId) {
+        var device = deviceMap.get(deviceId.getId());
+        if (device == null) {
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist");
+        }
+        return device;
+    }
+
+    // Location of the component, or null if it's being added or has just been deleted.
+    private Device queriedLocation(Component component) {
+        var location = component.getLocation();
+        return location == creationDevice || location == deletionDevice ? null : location;
+    }
+
+    private void awaitDurable(long logPosition) {
+        if (placementLog != null) {
+            placementLog.awaitDurable(logPosition);
+        }
+    }
+
+    /**
+     * @return transfers which were in progress when the system went down, if it has been restored from its log
+     */
+    public List<InterruptedTransfer> getInterruptedTransfers() {
+        return interruptedTransfers;
+    }
+
+    /**
+     * Makes the placement log durable and stops its background snapshots. Does nothing if the system isn't durable.
+     * No transfer should be executed afterwards.
+     * @throws java.io.UncheckedIOException if a background snapshot of the log has failed
+     */
+    public void close() {
+        if (placementLog != null) {
+            placementLog.close();
+        }
+    }
+
+    // Number of escalations to a search of the wait-for graph: of one shard, and of the whole system.
+    long getShardEscalations() {
+        return shardEscalations.sum();
+    }
+
+    long getSystemEscalations() {
+        return systemEscalations.sum();
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    Executor getPrepareExecutor() {
+        return prepareExecutor;
+    }
+
+    /**
+     * Runs perform() of the transfer on the perform executor, as soon as both its devices allow one more.
+     */
+    void schedulePerform(AsyncTransferWrapper transferWrapper) {
+        enterPerformGates(transferWrapper, () -> {
+            try {
+                performExecutor.execute(() -> performAsync(transferWrapper));
+            }
+            catch (RuntimeException e) {
+                // Possibly run by the transfer which has let this one in, which mustn't get the failure.
+                exitPerformGates(transferWrapper);
+                failPerform(transferWrapper, e);
+            }
+        });
+    }
+
+    private static void awaitPerformGates(TransferWrapper transferWrapper) {
+        if (transferWrapper.sourceDevice.performGate == null && transferWrapper.destinationDevice.performGate == null) {
+            return;
+        }
+        var entered = new CompletableFuture<Void>();
+        enterPerformGates(transferWrapper, () -> entered.complete(null));
+        entered.join();
+    }
+
+    /**
+     * Runs entered once the transfer fits in the perform limits of both its devices (see PerformGate.enter()).
+     * The gates are entered in the lock order, so transfers waiting at each other's devices can't deadlock.
+     */
+    private static void enterPerformGates(TransferWrapper transferWrapper, Runnable entered) {
+        var first = transferWrapper.sourceDevice;
+        var second = transferWrapper.destinationDevice;
+        if (first.getDeviceId().compareTo(second.getDeviceId()) > 0) {
+            first = transferWrapper.destinationDevice;
+            second = transferWrapper.sourceDevice;
+        }
+        var firstGate = first.performGate;
+        var secondGate = second.performGate;
+        if (firstGate == null && secondGate == null) {
+            entered.run();
+        }
+        else if (secondGate == null) {
+            firstGate.enter(entered);
+        }
+        else if (firstGate == null) {
+            secondGate.enter(entered);
+        }
+        else {
+            firstGate.enter(() -> secondGate.enter(entered));
+        }
+    }
+
+    private static void exitPerformGates(TransferWrapper transferWrapper) {
+        if (transferWrapper.sourceDevice.performGate != null) {
+            transferWrapper.sourceDevice.performGate.exit();
+        }
+        if (transferWrapper.destinationDevice.performGate != null) {
+            transferWrapper.destinationDevice.performGate.exit();
+        }
+    }
+
+    // Continuation of an asynchronous transfer after it's allowed to run prepare().
+    void prepareAsync(AsyncTransferWrapper transferWrapper) {
+        transferWrapper.prepareStartedAt = System.nanoTime();
+        try {
+            transferWrapper.transfer.prepare();
+        }
+        catch (Throwable e) {
+            if (transferWrapper.isInCycle()) {
+                abortInCycle(transferWrapper);
+            }
+            else {
+                rollBack(transferWrapper, false);
+            }
+            transferWrapper.future.completeExceptionally(e);
+            return;
+        }
+        transferWrapper.preparedAt = System.nanoTime();
+
+        if (transferWrapper.isInCycle()) {
+            // perform() will be granted by the last transfer of the cycle to arrive.
+            transferWrapper.getCycle().arrive();
+        }
+        else if (transferWrapper.hasUpstream) {
+            // perform() will be scheduled once the upstream transfer has run its perform().
+            arriveForPerform(transferWrapper);
+        }
+        else {
+            // On to the perform stage.
+            schedulePerform(transferWrapper);
+        }
+    }
+
+    // Continuation of an asynchronous transfer after it's allowed to run perform().
+    void performAsync(AsyncTransferWrapper transferWrapper) {
+        transferWrapper.performStartedAt = System.nanoTime();
+        try {
+            transferWrapper.transfer.perform();
+        }
+        catch (Throwable e) {
+            exitPerformGates(transferWrapper);
+            failPerform(transferWrapper, e);
+            return;
+        }
+        long logPosition = finish(transferWrapper);
+        exitPerformGates(transferWrapper);
+
+        if (!transferWrapper.isInCycle()) {
+            releaseNextTransferIfWaitingAndUpdateTheDevice(transferWrapper);
+        }
+        else {
+            transferWrapper.getCycle().performed();
+        }
+        awaitDurable(logPosition);
+        transferWrapper.future.complete(null);
+    }
+
+    // Fails an asynchronous transfer whose perform() has thrown, or couldn't be scheduled.
+    private void failPerform(AsyncTransferWrapper transferWrapper, Throwable e) {
+        if (transferWrapper.isInCycle()) {
+            failInCycle(transferWrapper);
+        }
+        else {
+            rollBack(transferWrapper, true);
+        }
+        transferWrapper.future.completeExceptionally(e);
+    }
+
+    /**
+     * Updates the component's state and location after its perform() has ended.
+     * @return position of the change in the placement log, see {@link #awaitDurable(long)}
+     */
+    private long finish(TransferWrapper transferWrapper) {
+        transferWrapper.performedAt = System.nanoTime();
+        metrics.recordTransfer(transferWrapper);
+        long logPosition = 0;
+        if (placementLog != null) {
+            var transfer = transferWrapper.transfer;
+            logPosition = placementLog.logFinish(transfer.getComponentId(), transfer.getSourceDeviceId(),
+                    transfer.getDestinationDeviceId(), transferWrapper::markAsFinished);
+        }
+        else {
+            transferWrapper.markAsFinished();
+        }
+        transferWrapper.sourceDevice.releaseBytes(transferWrapper.component.getSize());
+        if (transferWrapper.destinationDevice == deletionDevice) {
+            componentMap.remove(transferWrapper.component.getComponentId().getId(), transferWrapper.component);
+        }
+        wakeDrains();
+        return logPosition;
+    }
+
+    /**
+     * Lets the transfer which has been given the slot early run perform(), if there is one (see startChain()).
+     * Otherwise resumes the next waiting transfer (by the wake-up policy) from the sourceDevice of transferWrapper,
+     * or gives the slot back to the device if nobody waits for it (or the device is overcommitted).
+     * @param transferWrapper transferWrapper with sourceDevice, which may contain other transfers waiting
+     */
+    private void releaseNextTransferIfWaitingAndUpdateTheDevice(TransferWrapper transferWrapper) {
+        var sourceDevice = transferWrapper.sourceDevice;
+        TransferWrapper nextTransferWrapper = null;
+        TransferWrapper downstream;
+
+        sourceDevice.lock();
+        try {
+            downstream = transferWrapper.downstream;
+            if (downstream == null) {
+                sourceDevice.removeDeparting(transferWrapper);
+                if (!sourceDevice.repaySlot()) {
+                    nextTransferWrapper = sourceDevice.dequeueWaiting();
+                    if (nextTransferWrapper == null) {
+                        sourceDevice.releaseNewSlot();
+                    }
+                }
+            }
+        }
+        finally {
+            sourceDevice.unlock();
+        }
+
+        if (downstream != null) {
+            arriveForPerform(downstream);
+        }
+        else if (nextTransferWrapper != null) {
+            startChain(nextTransferWrapper);
+            nextTransferWrapper.grantPrepare();
+        }
+        else {
+            wakeDrains();
+        }
+    }
+
+    /**
+     * Devices of a shard share a wait-for graph, its searches are serialized by the lock of the shard.
+     */
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final WaitForGraph waitForGraph;
+
+        Shard(WaitForGraph waitForGraph) {
+            this.waitForGraph = waitForGraph;
+        }
+    }
 }
@@ -0,0 +1,257 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToLongFunction;
+
+/**
+ * Optional settings of a storage system, the defaults are what {@link StorageSystemFactory#newSystem} uses.
+ */
+public final class StorageSystemOptions {
+    private Executor executor = ForkJoinPool.commonPool();
+    // Null if the stage runs on the executor.
+    private Executor prepareExecutor = null;
+    private Executor performExecutor = null;
+    private int performLimit = 0;
+    private final Map<DeviceId, Integer> devicePerformLimits = new HashMap<>();
+    private long byteCapacity = 0;
+    private final Map<DeviceId, Long> deviceByteCapacities = new HashMap<>();
+    private long bandwidth = 0;
+    private final Map<DeviceId, Long> deviceBandwidths = new HashMap<>();
+    private ToLongFunction<ComponentId> componentSizes = componentId -> 0;
+    private boolean earlySlotRelease = false;
+    private boolean offHeapRegistries = false;
+    private Path logDirectory = null;
+    private int logFileSize = 64 << 20;
+    private WakeupPolicy wakeupPolicy = WakeupPolicy.FIFO;
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor runs prepare() and perform() of asynchronous transfers, unless they have their own executors
+     */
+    public StorageSystemOptions setExecutor(Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor cannot be null");
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getPrepareExecutor() {
+        return prepareExecutor != null ? prepareExecutor : executor;
+    }
+
+    /**
+     * @param prepareExecutor runs prepare() of asynchronous transfers, instead of the executor; with a separate
+     *                        perform executor, the prepare() of a transfer overlaps with the perform() of another
+     *                        no matter how busy the other stage is
+     */
+    public StorageSystemOptions setPrepareExecutor(Executor prepareExecutor) {
+        if (prepareExecutor == null)
+            throw new IllegalArgumentException("Executor cannot be null");
+        this.prepareExecutor = prepareExecutor;
+        return this;
+    }
+
+    public Executor getPerformExecutor() {
+        return performExecutor != null ? performExecutor : executor;
+    }
+
+    /**
+     * @param performExecutor runs perform() of asynchronous transfers, instead of the executor
+     */
+    public StorageSystemOptions setPerformExecutor(Executor performExecutor) {
+        if (performExecutor == null)
+            throw new IllegalArgumentException("Executor cannot be null");
+        this.performExecutor = performExecutor;
+        return this;
+    }
+
+    /**
+     * @return how many perform()s can run on the device at once, 0 if there is no limit
+     */
+    public int getPerformLimit(DeviceId deviceId) {
+        return devicePerformLimits.getOrDefault(deviceId, performLimit);
+    }
+
+    /**
+     * @param performLimit how many perform()s can run on each device at once (as the source or the destination),
+     *                     0 (the default) for no limit; the others wait for their turn, in FIFO order
+     */
+    public StorageSystemOptions setPerformLimit(int performLimit) {
+        if (performLimit < 0)
+            throw new IllegalArgumentException("Perform limit cannot be negative");
+        this.performLimit = performLimit;
+        return this;
+    }
+
+    /**
+     * Same as {@link #setPerformLimit(int)}, but only for the device, takes precedence over the limit of all devices.
+     */
+    public StorageSystemOptions setPerformLimit(DeviceId deviceId, int performLimit) {
+        if (deviceId == null)
+            throw new IllegalArgumentException("DeviceID cannot be null");
+        if (performLimit < 0)
+            throw new IllegalArgumentException("Perform limit cannot be negative");
+        devicePerformLimits.put(deviceId, performLimit);
+        return this;
+    }
+
+    /**
+     * @return byte capacity of the device, 0 if it's only limited by its slots
+     */
+    public long getByteCapacity(DeviceId deviceId) {
+        return deviceByteCapacities.getOrDefault(deviceId, byteCapacity);
+    }
+
+    /**
+     * @param byteCapacity how many bytes of components each device can hold, 0 (the default) for no limit;
+     *                     a transfer to a device without space for its component is rejected, see
+     *                     {@link cp2023.exceptions.DeviceIsOutOfSpace}
+     */
+    public StorageSystemOptions setByteCapacity(long byteCapacity) {
+        if (byteCapacity < 0)
+            throw new IllegalArgumentException("Byte capacity cannot be negative");
+        this.byteCapacity = byteCapacity;
+        return this;
+    }
+
+    /**
+     * Same as {@link #setByteCapacity(long)}, but only for the device, takes precedence over the capacity of all devices.
+     */
+    public StorageSystemOptions setByteCapacity(DeviceId deviceId, long byteCapacity) {
+        if (deviceId == null)
+            throw new IllegalArgumentException("DeviceID cannot be null");
+        if (byteCapacity < 0)
+            throw new IllegalArgumentException("Byte capacity cannot be negative");
+        deviceByteCapacities.put(deviceId, byteCapacity);
+        return this;
+    }
+
+    /**
+     * @return bandwidth of the device in bytes per second, 0 if it's unknown
+     */
+    public long getBandwidth(DeviceId deviceId) {
+        return deviceBandwidths.getOrDefault(deviceId, bandwidth);
+    }
+
+    /**
+     * @param bandwidth bytes per second each device reads or writes, 0 (the default) if it's unknown;
+     *                  only used to estimate how long transfers take, see {@link WakeupPolicy#SHORTEST_FIRST}
+     */
+    public StorageSystemOptions setBandwidth(long bandwidth) {
+        if (bandwidth < 0)
+            throw new IllegalArgumentException("Bandwidth cannot be negative");
+        this.bandwidth = bandwidth;
+        return this;
+    }
+
+    /**
+     * Same as {@link #setBandwidth(long)}, but only for the device, takes precedence over the bandwidth of all devices.
+     */
+    public StorageSystemOptions setBandwidth(DeviceId deviceId, long bandwidth) {
+        if (deviceId == null)
+            throw new IllegalArgumentException("DeviceID cannot be null");
+        if (bandwidth < 0)
+            throw new IllegalArgumentException("Bandwidth cannot be negative");
+        deviceBandwidths.put(deviceId, bandwidth);
+        return this;
+    }
+
+    public long getComponentSize(ComponentId componentId) {
+        return componentSizes.applyAsLong(componentId);
+    }
+
+    /**
+     * @param componentSizes size in bytes of each component of the initial placement (or restored from the log),
+     *                       all of them are of size 0 by default; components added later have the size
+     *                       of their {@link cp2023.base.SizedTransfer}
+     */
+    public StorageSystemOptions setComponentSizes(ToLongFunction<ComponentId> componentSizes) {
+        if (componentSizes == null)
+            throw new IllegalArgumentException("Component sizes cannot be null");
+        this.componentSizes = componentSizes;
+        return this;
+    }
+
+    public boolean isEarlySlotRelease() {
+        return earlySlotRelease;
+    }
+
+    /**
+     * @param earlySlotRelease whether the slot of a transfer counts as free as soon as the transfer is allowed to run,
+     *                         rather than when its perform() ends: it's given to a transfer waiting for it,
+     *                         or to the next one to come, which can run prepare() right away and perform()
+     *                         after the one leaving. Above all this lets the adds to a full device take the slots
+     *                         of the deletes from it, which never wait themselves. Off by default, since then
+     *                         prepare() of a transfer may start before its slot is actually free, which the
+     *                         contract of {@link cp2023.base.StorageSystem} doesn't allow.
+     */
+    public StorageSystemOptions setEarlySlotRelease(boolean earlySlotRelease) {
+        this.earlySlotRelease = earlySlotRelease;
+        return this;
+    }
+
+    public boolean isOffHeapRegistries() {
+        return offHeapRegistries;
+    }
+
+    /**
+     * @param offHeapRegistries whether the id indexes of components and devices are kept outside the Java heap,
+     *                          which pays off for catalogs of millions of components
+     */
+    public StorageSystemOptions setOffHeapRegistries(boolean offHeapRegistries) {
+        this.offHeapRegistries = offHeapRegistries;
+        return this;
+    }
+
+    public Path getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * @param logDirectory directory of the placement log, which makes the system durable (null by default);
+     *                     if it already holds a log, the system is restored from it
+     */
+    public StorageSystemOptions setLogDirectory(Path logDirectory) {
+        this.logDirectory = logDirectory;
+        return this;
+    }
+
+    public int getLogFileSize() {
+        return logFileSize;
+    }
+
+    /**
+     * @param logFileSize size in bytes of each memory-mapped log file, a snapshot is taken whenever one fills up;
+     *                    it has to take the records of all transfers in progress at once (20 bytes each)
+     */
+    public StorageSystemOptions setLogFileSize(int logFileSize) {
+        if (logFileSize < PlacementLog.MIN_FILE_SIZE)
+            throw new IllegalArgumentException("Log file size must hold at least two records");
+        this.logFileSize = logFileSize;
+        return this;
+    }
+
+    public WakeupPolicy getWakeupPolicy() {
+        return wakeupPolicy;
+    }
+
+    /**
+     * @param wakeupPolicy decides which waiting transfer gets a freed slot, FIFO by default
+     */
+    public StorageSystemOptions setWakeupPolicy(WakeupPolicy wakeupPolicy) {
+        if (wakeupPolicy == null)
+            throw new IllegalArgumentException("Wake-up policy cannot be null");
+        this.wakeupPolicy = wakeupPolicy;
+        return this;
+    }
+}
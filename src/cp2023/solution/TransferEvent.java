@@ -0,0 +1,46 @@
+package cp2023.solution;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed for every finished transfer, when {@link TransferMetrics#setJfrEventsEnabled(boolean)}
+ * is on and a recording has the event enabled.
+ */
+@Name("cp2023.Transfer")
+@Label("Component Transfer")
+@Category("Storage System")
+@Description("A finished component transfer, with the time spent in each of its phases")
+class TransferEvent extends jdk.jfr.Event {
+    @Label("Component")
+    String component;
+
+    @Label("Source Device")
+    String sourceDevice;
+
+    @Label("Destination Device")
+    String destinationDevice;
+
+    @Label("Wait For Prepare")
+    @Timespan
+    long waitForPrepare;
+
+    @Label("Prepare")
+    @Timespan
+    long prepare;
+
+    @Label("Wait For Perform")
+    @Timespan
+    long waitForPerform;
+
+    @Label("Perform")
+    @Timespan
+    long perform;
+
+    @Label("Cycle Length")
+    @Description("Number of transfers in the cycle this transfer was run in, 0 if none")
+    int cycleLength;
+}
@@ -0,0 +1,26 @@
+package cp2023.solution;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Future of an asynchronous transfer. Cancelling it withdraws the transfer, but only while it waits
+ * for a slot: once it's been given one (or taken into a cycle, which counts on it), it runs to the end.
+ */
+class TransferFuture extends CompletableFuture<Void> {
+    private final StorageSystemImpl system;
+    // Set right after admission, before the future is handed out.
+    volatile TransferWrapper transferWrapper;
+
+    TransferFuture(StorageSystemImpl system) {
+        this.system = system;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        var transferWrapper = this.transferWrapper;
+        if (transferWrapper == null || !system.withdraw(transferWrapper)) {
+            return isCancelled();
+        }
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
@@ -0,0 +1,136 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a storage system. Recording is lock-free (histograms and LongAdders),
+ * reading is pull-style, through {@link StorageSystemImpl#getMetricsSnapshot()}.
+ */
+public class TransferMetrics {
+    final LatencyHistogram admission = new LatencyHistogram();
+    final LatencyHistogram waitForPrepare = new LatencyHistogram();
+    final LatencyHistogram prepare = new LatencyHistogram();
+    final LatencyHistogram waitForPerform = new LatencyHistogram();
+    final LatencyHistogram perform = new LatencyHistogram();
+    final LatencyHistogram cycleLength = new LatencyHistogram();
+
+    private final LongAdder completedTransfers = new LongAdder();
+    private final LongAdder resolvedCycles = new LongAdder();
+    private final LongAdder earlySlotHandoffs = new LongAdder();
+    private final LongAdder coalescedAdds = new LongAdder();
+    // By TransferStatus.ordinal(), the slot of OK is unused.
+    private final LongAdder[] rejections = new LongAdder[TransferStatus.values().length];
+
+    private volatile boolean jfrEventsEnabled = false;
+
+    public TransferMetrics() {
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Turns on committing a {@link TransferEvent} for every finished transfer
+     * (it's still up to the JFR recording settings whether it's recorded).
+     */
+    public void setJfrEventsEnabled(boolean jfrEventsEnabled) {
+        this.jfrEventsEnabled = jfrEventsEnabled;
+    }
+
+    void recordRejection(TransferStatus status) {
+        rejections[status.ordinal()].increment();
+    }
+
+    void recordCycle(int length) {
+        resolvedCycles.increment();
+        cycleLength.record(length);
+    }
+
+    /**
+     * @param coalesced whether an add has taken the slot of a delete
+     */
+    void recordEarlySlotHandoff(boolean coalesced) {
+        earlySlotHandoffs.increment();
+        if (coalesced) {
+            coalescedAdds.increment();
+        }
+    }
+
+    /**
+     * Records the phases of a transfer after its perform() has ended.
+     */
+    void recordTransfer(TransferWrapper transferWrapper) {
+        long waitForPrepareTime = transferWrapper.prepareStartedAt - transferWrapper.admittedAt;
+        long prepareTime = transferWrapper.preparedAt - transferWrapper.prepareStartedAt;
+        long waitForPerformTime = transferWrapper.performStartedAt - transferWrapper.preparedAt;
+        long performTime = transferWrapper.performedAt - transferWrapper.performStartedAt;
+
+        waitForPrepare.record(waitForPrepareTime);
+        prepare.record(prepareTime);
+        waitForPerform.record(waitForPerformTime);
+        perform.record(performTime);
+        completedTransfers.increment();
+
+        if (jfrEventsEnabled) {
+            var event = new TransferEvent();
+            if (event.shouldCommit()) {
+                event.component = String.valueOf(transferWrapper.transfer.getComponentId());
+                event.sourceDevice = String.valueOf(transferWrapper.transfer.getSourceDeviceId());
+                event.destinationDevice = String.valueOf(transferWrapper.transfer.getDestinationDeviceId());
+                event.waitForPrepare = waitForPrepareTime;
+                event.prepare = prepareTime;
+                event.waitForPerform = waitForPerformTime;
+                event.perform = performTime;
+                event.cycleLength = transferWrapper.getCycleLength();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @param devices devices to report the queue depth and slot occupancy of, each one is locked for a moment
+     */
+    MetricsSnapshot snapshot(Collection<Device> devices) {
+        var rejectionCounts = new EnumMap<TransferStatus, Long>(TransferStatus.class);
+        for (var status : TransferStatus.values()) {
+            long count = rejections[status.ordinal()].sum();
+            if (count > 0) {
+                rejectionCounts.put(status, count);
+            }
+        }
+
+        var deviceStats = new LinkedHashMap<DeviceId, MetricsSnapshot.Device>();
+        for (var device : devices) {
+            device.lock();
+            try {
+                deviceStats.put(device.getDeviceId(), new MetricsSnapshot.Device(
+                        device.waitingCount(), device.getTotalSlots() - device.getFreeSlots(), device.getTotalSlots()));
+            }
+            finally {
+                device.unlock();
+            }
+        }
+
+        return new MetricsSnapshot(
+                admission.snapshot(),
+                waitForPrepare.snapshot(),
+                prepare.snapshot(),
+                waitForPerform.snapshot(),
+                perform.snapshot(),
+                completedTransfers.sum(),
+                resolvedCycles.sum(),
+                cycleLength.snapshot(),
+                earlySlotHandoffs.sum(),
+                coalescedAdds.sum(),
+                Collections.unmodifiableMap(rejectionCounts),
+                Collections.unmodifiableMap(deviceStats));
+    }
+}
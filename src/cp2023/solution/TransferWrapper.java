@@ -1,47 +1,218 @@
 package cp2023.solution;
 
 import cp2023.base.ComponentTransfer;
+import cp2023.base.PrioritizedTransfer;
 
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.Semaphore;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
 
 public class TransferWrapper {
     /**
      * @return true, when this transfer will be performed in a cycle, and it shouldn't release space in its device and run another transfer.
      */
     public boolean isInCycle() {
-        return inCycle;
+        return cycle != null;
     }
 
-    public void setInCycle(boolean inCycle) {
-        this.inCycle = inCycle;
-    }
+    // The thread executing this transfer, it parks in awaitGrant() until the transfer is allowed to continue.
+    // Plain LockSupport instead of semaphores: nothing to allocate per transfer and nothing that could
+    // pin a virtual thread to its carrier.
+    private final Thread owner = Thread.currentThread();
+    // Grants given so far (to prepare, then to perform), and taken by the owner.
+    private volatile int grantsGiven = 0;
+    private int grantsTaken = 0;
+    // Arrivals before perform() of a transfer with an upstream one, see arriveForPerform().
+    private volatile int performArrivals = 0;
 
-    private boolean inCycle = false;
-    public Semaphore waitPrepare = new Semaphore(0);
+    private static final VarHandle GRANTS_GIVEN;
+    private static final VarHandle PERFORM_ARRIVALS;
+    static {
+        try {
+            GRANTS_GIVEN = MethodHandles.lookup().findVarHandle(TransferWrapper.class, "grantsGiven", int.class);
+            PERFORM_ARRIVALS = MethodHandles.lookup().findVarHandle(TransferWrapper.class, "performArrivals", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public TransferWrapper(Device sourceDevice, Device destinationDevice, Component component, ComponentTransfer transfer) {
         this.sourceDevice = sourceDevice;
         this.destinationDevice = destinationDevice;
         this.component = component;
         this.transfer = transfer;
+        // Read once, the wake-up policy compares them under the device lock.
+        if (transfer instanceof PrioritizedTransfer) {
+            var prioritized = (PrioritizedTransfer) transfer;
+            this.priority = prioritized.getPriority();
+            this.deadline = prioritized.getDeadline();
+        }
+        else {
+            this.priority = 0;
+            this.deadline = Long.MAX_VALUE;
+        }
+        this.estimatedNanos = Device.estimateNanos(component.getSize(), sourceDevice, destinationDevice);
     }
 
     public final Device sourceDevice;
     public final Device destinationDevice;
     public final Component component;
     public final ComponentTransfer transfer;
+    private final int priority;
+    private final long deadline;
+    private final long estimatedNanos;
+
+    /**
+     * @return how long the transfer of the component is expected to take, by the bandwidth of its devices
+     */
+    public long getEstimatedNanos() {
+        return estimatedNanos;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    // Set by StorageSystemImpl when the transfer is admitted.
+    StorageSystemImpl.Admission admission;
+
+    // Links of the waiting list of the destination device, and of the list of transfers waiting there
+    // from the same source device (see WaitForEdges). Guarded by the lock of the destination device.
+    TransferWrapper previousWaiting;
+    TransferWrapper nextWaiting;
+    TransferWrapper previousFromSource;
+    TransferWrapper nextFromSource;
+
+    // System.nanoTime() of the phases of the transfer, for TransferMetrics.
+    long admittedAt;
+    long prepareStartedAt;
+    long preparedAt;
+    long performStartedAt;
+    long performedAt;
+
+    // Set when the transfer has been given the source slot of a transfer which hasn't run perform() yet
+    // (its upstream, see StorageSystemImpl.startChain()), before it's allowed to run prepare().
+    boolean hasUpstream;
+    // The transfer given the source slot of this one early, guarded by the lock of the source device.
+    TransferWrapper downstream;
+
+    // The coordinator is reused once all transfers of the cycle have run perform() (or have been aborted),
+    // only its length is kept for later.
+    private CycleCoordinator cycle;
+    private int cycleLength;
+    public void setCycle(CycleCoordinator cycle) {
+        this.cycle = cycle;
+        this.cycleLength = cycle.size();
+    }
+    public CycleCoordinator getCycle() {
+        return cycle;
+    }
+    public int getCycleLength() {
+        return cycleLength;
+    }
+
+    // Set when the transfer has been rolled back, because it (or another transfer of its cycle) has failed in prepare(),
+    // or its upstream transfer has failed.
+    boolean aborted;
+    // Set when prepare() of a transfer with an upstream one has failed, before it arrives for perform(),
+    // or when perform() of a transfer of a cycle has failed, before it tells the cycle.
+    boolean failed;
+
+    /**
+     * Allows the transfer to run prepare(), the thread that executes it is waiting for this.
+     */
+    public void grantPrepare() {
+        grant();
+    }
+
+    /**
+     * Allows the transfer to run perform(), after all transfers of its cycle have run prepare().
+     */
+    public void grantPerform() {
+        grant();
+    }
+
+    /**
+     * Called by a transfer with an upstream one after its prepare(), and by the upstream transfer after its perform()
+     * (or instead of it, if it has failed): the second to arrive decides how the transfer goes on,
+     * see StorageSystemImpl.arriveForPerform().
+     * @return whether this has been the second arrival
+     */
+    boolean arriveForPerform() {
+        return (int) PERFORM_ARRIVALS.getAndAdd(this, 1) == 1;
+    }
+
+    /**
+     * Tells the transfer that its cycle has been called off, instead of allowing it to run perform().
+     */
+    public void grantAbort() {
+        aborted = true;
+        grant();
+    }
+
+    private void grant() {
+        GRANTS_GIVEN.getAndAdd(this, 1);
+        LockSupport.unpark(owner);
+    }
+
+    /**
+     * Blocks the owner thread until the next grant (to prepare, then to perform) is given.
+     */
+    public void awaitGrant() throws InterruptedException {
+        while (grantsGiven == grantsTaken) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        grantsTaken++;
+    }
 
-    private CyclicBarrier cycleBarrier;
-    public void setCycleBarrier(CyclicBarrier cycleBarrier) {
-        this.cycleBarrier = cycleBarrier;
+    /**
+     * Same as awaitGrant(), but keeps waiting if interrupted.
+     * @return whether the thread has been interrupted (its interrupt status is cleared)
+     */
+    public boolean awaitGrantUninterruptibly() {
+        boolean interrupted = false;
+        while (grantsGiven == grantsTaken) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        grantsTaken++;
+        return interrupted;
     }
-    public CyclicBarrier getCycleBarrier() {
-        return cycleBarrier;
+
+    /**
+     * Same as awaitGrant(), but gives up at the deadline (a System.nanoTime() value).
+     * @return whether the grant has been taken
+     */
+    public boolean awaitGrant(long deadline) throws InterruptedException {
+        while (grantsGiven == grantsTaken) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        grantsTaken++;
+        return true;
     }
 
     public void markAsFinished() {
-        component.setTransferred(false);
+        // Location first: whoever sees the component as not transferred must also see where it is now.
+        // The component is listed on its new device before it's moved there, and on the old one until after,
+        // so a listing (which checks the location) never misses it. Until it's released, no other transfer
+        // can change its residence, so the removal can't undo a later move back to the source.
+        destinationDevice.addResident(component);
         component.setLocation(destinationDevice);
+        sourceDevice.removeResident(component);
+        component.setTransferred(false);
     }
 }
@@ -0,0 +1,30 @@
+package cp2023.solution;
+
+import java.util.function.Consumer;
+
+/**
+ * Delivers messages between the nodes of a {@link DistributedStorageSystem}, numbered from 0.
+ * Messages from one node to another have to be delivered in the order they were sent, and none can be lost
+ * (the system doesn't survive the loss of a node, nor of a connection).
+ */
+public interface Transport extends AutoCloseable {
+    /**
+     * @return number of this node
+     */
+    int getNode();
+
+    /**
+     * Starts passing the messages sent to this node to the receiver, which doesn't block.
+     * Messages which arrived earlier are passed as well.
+     */
+    void start(Consumer<NodeMessage> receiver);
+
+    /**
+     * Sends the message to another node, without waiting for it to be delivered.
+     * @throws java.io.UncheckedIOException if the message can't be sent
+     */
+    void send(int node, NodeMessage message);
+
+    @Override
+    void close();
+}
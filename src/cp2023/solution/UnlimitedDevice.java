@@ -5,6 +5,8 @@ import cp2023.base.DeviceId;
 public class UnlimitedDevice extends Device {
     public UnlimitedDevice(DeviceId deviceId) {
         super(Integer.MAX_VALUE, deviceId);
+        // Adds and deletes of every shard go through the same artificial devices.
+        this.shard = WaitForGraph.ANY_SHARD;
     }
 
     @Override
@@ -12,13 +14,43 @@ public class UnlimitedDevice extends Device {
         return true;
     }
 
+    // The slot count never changes, so that all adds (or all deletes) don't contend on it.
     @Override
-    public void occupyNewSlot() {
-        freeSlots = Integer.MAX_VALUE;
+    public boolean tryOccupySlot() {
+        return true;
     }
 
     @Override
     public void releaseNewSlot() {
-        freeSlots = Integer.MAX_VALUE;
+    }
+
+    // Components only pass through, and their locations are never listed.
+    @Override
+    public void addResident(Component component) {
+    }
+
+    @Override
+    public void removeResident(Component component) {
+    }
+
+    // Adds (and deletes) don't wait for each other, so there is no point in counting them,
+    // and all of them would contend on one counter.
+    @Override
+    void countOutboundWaiting(int delta) {
+    }
+
+    // Nothing ever waits on an unlimited device, so there is no state to guard
+    // and all adds (or all deletes) don't have to serialize on a single lock.
+    @Override
+    void lock() {
+    }
+
+    @Override
+    boolean tryLock() {
+        return true;
+    }
+
+    @Override
+    void unlock() {
     }
 }
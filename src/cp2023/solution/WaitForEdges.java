@@ -0,0 +1,186 @@
+package cp2023.solution;
+
+import java.util.Arrays;
+
+/**
+ * Outgoing edges of a device in the wait-for graph: the source devices of the transfers
+ * waiting on this device, each with the list of such transfers (in the order of arrival).
+ * Kept up to date on every enqueue and dequeue, so the cycle search only walks distinct devices,
+ * and a cycle takes the first transfer waiting from a given source without scanning the waiting list.
+ * The lists are intrusive (see {@link TransferWrapper#previousFromSource}), so nothing is allocated per transfer.
+ * Edges are found by a linear scan while there are a few of them, and through an open-addressing index
+ * of the targets once there are more, so a device waited on from many sources still finds an edge in O(1).
+ * Not thread-safe, guarded by the lock of the owning device.
+ */
+class WaitForEdges {
+    // Up to this many edges a linear scan beats hashing.
+    private static final int SCAN_LIMIT = 8;
+
+    private Device[] targets = new Device[2];
+    private TransferWrapper[] first = new TransferWrapper[2];
+    private TransferWrapper[] last = new TransferWrapper[2];
+    private int size = 0;
+    // Linear probing table of (index of the edge + 1), 0 for an empty slot; null while size <= SCAN_LIMIT.
+    private int[] index = null;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Device get(int index) {
+        return targets[index];
+    }
+
+    /**
+     * @return the longest-waiting transfer from the target device, or null if there is none
+     */
+    public TransferWrapper firstFrom(Device target) {
+        int i = indexOf(target);
+        return i < 0 ? null : first[i];
+    }
+
+    /**
+     * Appends the transfer to the list of its source device, adding the edge if it's the first one.
+     */
+    public void add(TransferWrapper transferWrapper) {
+        int i = indexOf(transferWrapper.sourceDevice);
+        if (i >= 0) {
+            transferWrapper.previousFromSource = last[i];
+            last[i].nextFromSource = transferWrapper;
+            last[i] = transferWrapper;
+            return;
+        }
+
+        if (size == targets.length) {
+            targets = Arrays.copyOf(targets, 2 * size);
+            first = Arrays.copyOf(first, 2 * size);
+            last = Arrays.copyOf(last, 2 * size);
+        }
+        targets[size] = transferWrapper.sourceDevice;
+        first[size] = transferWrapper;
+        last[size] = transferWrapper;
+        size++;
+
+        if (index != null && 2 * size <= index.length) {
+            insert(size - 1);
+        }
+        else if (index != null || size > SCAN_LIMIT) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Unlinks the transfer from the list of its source device, removing the edge if it was the last one.
+     */
+    public void remove(TransferWrapper transferWrapper) {
+        int i = indexOf(transferWrapper.sourceDevice);
+        if (i < 0) {
+            throw new IllegalStateException("no such edge in the wait-for graph");
+        }
+
+        var previous = transferWrapper.previousFromSource;
+        var next = transferWrapper.nextFromSource;
+        if (previous == null) {
+            first[i] = next;
+        }
+        else {
+            previous.nextFromSource = next;
+        }
+        if (next == null) {
+            last[i] = previous;
+        }
+        else {
+            next.previousFromSource = previous;
+        }
+        transferWrapper.previousFromSource = null;
+        transferWrapper.nextFromSource = null;
+
+        if (first[i] == null) {
+            // Swap with the last edge, the order of edges doesn't matter.
+            if (index != null) {
+                unindex(i);
+            }
+            size--;
+            if (index != null && i != size) {
+                index[slotOf(size)] = i + 1;
+            }
+            targets[i] = targets[size];
+            first[i] = first[size];
+            last[i] = last[size];
+            targets[size] = null;
+            first[size] = null;
+            last[size] = null;
+            if (index != null && size <= SCAN_LIMIT / 2) {
+                index = null;
+            }
+        }
+    }
+
+    private int indexOf(Device target) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (targets[i] == target) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int mask = index.length - 1;
+        for (int slot = home(target, mask); index[slot] != 0; slot = (slot + 1) & mask) {
+            if (targets[index[slot] - 1] == target) {
+                return index[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int home(Device target, int mask) {
+        return OpenAddressingIntRegistry.hash(System.identityHashCode(target)) & mask;
+    }
+
+    // Slot of the index pointing at the edge, which has to be there.
+    private int slotOf(int edge) {
+        int mask = index.length - 1;
+        int slot = home(targets[edge], mask);
+        while (index[slot] != edge + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int edge) {
+        int mask = index.length - 1;
+        int slot = home(targets[edge], mask);
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = edge + 1;
+    }
+
+    // Keeps the load factor at most 1/2.
+    private void rebuildIndex() {
+        index = new int[OpenAddressingIntRegistry.capacityFor(2 * size)];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    // Removes the edge from the index, shifting back the entries probed past it.
+    private void unindex(int edge) {
+        int mask = index.length - 1;
+        int hole = slotOf(edge);
+        for (int slot = (hole + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int home = home(targets[index[slot] - 1], mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                index[hole] = index[slot];
+                hole = slot;
+            }
+        }
+        index[hole] = 0;
+    }
+}
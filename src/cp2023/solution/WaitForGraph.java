@@ -0,0 +1,238 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cycle search in the device wait-for graph (an edge D -> S means that a transfer from S waits for a slot on D).
+ * The edges themselves live in the devices ({@link Device#waitingSources}) and are maintained incrementally,
+ * this class only keeps the reusable state of the search (and of the cycle it finds), so that it doesn't allocate.
+ * <p>
+ * The search locks only the devices it visits, and keeps them locked until {@link #end()}, so its result
+ * stays valid. Other threads lock devices in the global order, which the search doesn't follow,
+ * so it only try-locks them, and falls back to locking every device (in order) if that fails.
+ * <p>
+ * A graph can be confined to one shard of devices: then it only ever locks the devices of the shard,
+ * and a search that would have to leave the shard gives up (see {@link #hasLeftShard()}),
+ * so that it can be repeated by a graph of the whole system. Searches of different graphs can run concurrently,
+ * the device locks they hold keep them from visiting the same devices.
+ * Not thread-safe, searches of one graph have to be serialized by the caller.
+ */
+class WaitForGraph {
+    // Shard of a graph which covers the whole system, and of the devices which belong to every shard.
+    static final int ANY_SHARD = -1;
+
+    private static final int LAZY_LOCKING_ATTEMPTS = 3;
+    // Every search attempt of every graph gets its own epoch, so that concurrent searches don't mistake
+    // each other's marks for their own.
+    private static final AtomicLong epochs = new AtomicLong();
+
+    private final Device[] devicesInLockOrder;
+    private final int shard;
+
+    private Device[] stack = new Device[16];
+    private int[] cursor = new int[16];
+    // Devices with visitMark == epoch have been visited in the current search.
+    private long epoch = 0;
+    private boolean leftShard = false;
+
+    // Transfers of the last cycle found, reused by every search.
+    private final ArrayList<TransferWrapper> cycle = new ArrayList<>();
+
+    private Device[] locked = new Device[16];
+    private int lockedCount = 0;
+    private boolean allLocked = false;
+
+    public WaitForGraph(Device[] devicesInLockOrder) {
+        this(devicesInLockOrder, ANY_SHARD);
+    }
+
+    /**
+     * @param devicesInLockOrder all devices of the shard (of the system, if shard is ANY_SHARD)
+     */
+    public WaitForGraph(Device[] devicesInLockOrder, int shard) {
+        this.devicesInLockOrder = devicesInLockOrder;
+        this.shard = shard;
+    }
+
+    /**
+     * Starts a search for cycles closed by a transfer to the target device, locking the target.
+     * The caller shouldn't hold any device lock.
+     */
+    public void begin(Device target) {
+        target.lock();
+        locked[lockedCount++] = target;
+    }
+
+    /**
+     * Starts a search (or many of them) with every device locked, in the global order.
+     * The caller shouldn't hold any device lock.
+     */
+    public void beginAll() {
+        lockAll();
+    }
+
+    /**
+     * Unlocks all devices locked since {@link #begin(Device)} or {@link #beginAll()}.
+     */
+    public void end() {
+        if (allLocked) {
+            for (int i = devicesInLockOrder.length - 1; i >= 0; i--) {
+                devicesInLockOrder[i].unlock();
+            }
+            allLocked = false;
+        }
+        else {
+            for (int i = lockedCount - 1; i >= 0; i--) {
+                locked[i].unlock();
+            }
+        }
+        Arrays.fill(locked, 0, lockedCount, null);
+        lockedCount = 0;
+        cycle.clear();
+    }
+
+    /**
+     * Finds a cycle of waiting transfers, which together with firstTransfer can be run without any free slot.
+     * The transfers of the cycle are removed from their waiting lists.
+     * @return transfers of the cycle, with [the first transfer freed after firstTransfer] at the beginning,
+     *         or null if there is no cycle, or if the search has left the shard of this graph;
+     *         the list is reused by the next search
+     */
+    public List<TransferWrapper> findCycle(TransferWrapper firstTransfer) {
+        var target = firstTransfer.destinationDevice;
+        leftShard = false;
+        for (int attempt = 0; attempt < LAZY_LOCKING_ATTEMPTS; attempt++) {
+            int depth = search(firstTransfer);
+            if (depth == LEFT_SHARD) {
+                leftShard = true;
+                return null;
+            }
+            if (depth >= 0) {
+                return depth == 0 ? null : extractCycle(depth, target);
+            }
+
+            // Some device on the way is locked by another thread, let it go and start over.
+            end();
+            begin(target);
+        }
+
+        end();
+        lockAll();
+        int depth = search(firstTransfer);
+        if (depth == LEFT_SHARD) {
+            leftShard = true;
+            return null;
+        }
+        return depth == 0 ? null : extractCycle(depth, target);
+    }
+
+    /**
+     * @return whether the last {@link #findCycle} has given up, because a cycle could go through another shard;
+     *         nothing has been changed then, and the search should be repeated by the graph of the whole system
+     */
+    public boolean hasLeftShard() {
+        return leftShard;
+    }
+
+    private void lockAll() {
+        for (var device : devicesInLockOrder) {
+            device.lock();
+        }
+        allLocked = true;
+    }
+
+    private static final int LEFT_SHARD = -2;
+
+    /**
+     * @return depth of the stack holding the path to the target, 0 if there is no path,
+     *         -1 if some device couldn't be locked, or LEFT_SHARD
+     */
+    private int search(TransferWrapper firstTransfer) {
+        var target = firstTransfer.destinationDevice;
+        var start = firstTransfer.sourceDevice;
+        if (isOutside(target) || isOutside(start)) {
+            return LEFT_SHARD;
+        }
+        if (!tryLock(start)) {
+            return -1;
+        }
+        if (start.waitingSources.isEmpty() || !target.hasOutboundWaiting()) {
+            return 0;
+        }
+
+        epoch = epochs.incrementAndGet();
+        target.visitMark = epoch;
+        start.visitMark = epoch;
+        int depth = 0;
+        stack[depth] = start;
+        cursor[depth] = 0;
+        depth++;
+
+        // Iterative DFS: cursor[i] is the next edge of stack[i] to look at.
+        while (depth > 0) {
+            var device = stack[depth - 1];
+            int edge = cursor[depth - 1];
+            if (edge == device.waitingSources.size()) {
+                stack[--depth] = null;
+                continue;
+            }
+            cursor[depth - 1] = edge + 1;
+
+            var nextDevice = device.waitingSources.get(edge);
+            if (nextDevice == target) {
+                return depth;
+            }
+            if (nextDevice.visitMark != epoch) {
+                if (isOutside(nextDevice)) {
+                    Arrays.fill(stack, 0, depth, null);
+                    return LEFT_SHARD;
+                }
+                if (!tryLock(nextDevice)) {
+                    Arrays.fill(stack, 0, depth, null);
+                    return -1;
+                }
+                nextDevice.visitMark = epoch;
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * depth);
+                    cursor = Arrays.copyOf(cursor, 2 * depth);
+                }
+                stack[depth] = nextDevice;
+                cursor[depth] = 0;
+                depth++;
+            }
+        }
+        return 0;
+    }
+
+    private boolean isOutside(Device device) {
+        return shard != ANY_SHARD && device.shard != shard && device.shard != ANY_SHARD;
+    }
+
+    // Each device is locked once per attempt: the target in begin(), the others when they're first visited.
+    private boolean tryLock(Device device) {
+        if (allLocked) {
+            return true;
+        }
+        if (!device.tryLock()) {
+            return false;
+        }
+        if (lockedCount == locked.length) {
+            locked = Arrays.copyOf(locked, 2 * lockedCount);
+        }
+        locked[lockedCount++] = device;
+        return true;
+    }
+
+    private List<TransferWrapper> extractCycle(int depth, Device target) {
+        cycle.clear();
+        for (int i = 0; i < depth; i++) {
+            var nextDevice = i + 1 < depth ? stack[i + 1] : target;
+            cycle.add(stack[i].removeWaitingFrom(nextDevice));
+        }
+        Arrays.fill(stack, 0, depth, null);
+        return cycle;
+    }
+}
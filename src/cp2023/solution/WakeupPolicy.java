@@ -0,0 +1,45 @@
+package cp2023.solution;
+
+/**
+ * Decides which of the transfers waiting on a device gets a freed slot.
+ * <p>
+ * The waiting list of a device is kept in the order of the policy: a new transfer is inserted
+ * behind all the transfers it doesn't precede, so taking the next one is constant time,
+ * and transfers that are equal for the policy are woken in the order of arrival.
+ * Insertion starts from the back of the list, so it's constant time for FIFO and cheap
+ * whenever most waiting transfers are of the same class.
+ * <p>
+ * Policies other than FIFO can starve transfers of low priority (or with late deadlines)
+ * as long as more urgent ones keep coming.
+ */
+@FunctionalInterface
+public interface WakeupPolicy {
+
+    /**
+     * @return whether transfer should be woken before other, which has arrived earlier
+     */
+    boolean precedes(TransferWrapper transfer, TransferWrapper other);
+
+    /**
+     * The longest-waiting transfer first.
+     */
+    WakeupPolicy FIFO = (transfer, other) -> false;
+
+    /**
+     * The highest priority class first (see {@link cp2023.base.PrioritizedTransfer#getPriority()}),
+     * the longest-waiting one within a class.
+     */
+    WakeupPolicy PRIORITY = (transfer, other) -> transfer.getPriority() > other.getPriority();
+
+    /**
+     * The earliest deadline first (see {@link cp2023.base.PrioritizedTransfer#getDeadline()}),
+     * transfers without a deadline last.
+     */
+    WakeupPolicy EARLIEST_DEADLINE_FIRST = (transfer, other) -> transfer.getDeadline() < other.getDeadline();
+
+    /**
+     * The shortest transfer first (see {@link TransferWrapper#getEstimatedNanos()}), so that small components
+     * don't wait behind big ones which would keep the slot for much longer.
+     */
+    WakeupPolicy SHORTEST_FIRST = (transfer, other) -> transfer.getEstimatedNanos() < other.getEstimatedNanos();
+}
@@ -0,0 +1,164 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.SizedTransfer;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.DeviceIsOutOfSpace;
+import cp2023.exceptions.IllegalComponentSize;
+import cp2023.exceptions.TransferTimedOut;
+
+/**
+ * Byte capacity of devices: space is reserved on the destination as soon as a transfer is admitted,
+ * even if it waits for a slot, and given back when the component leaves or the transfer is rolled back.
+ */
+public final class ByteCapacityTest {
+
+    public static void main(String[] args) {
+        Check.run("add without space is rejected", ByteCapacityTest::addWithoutSpaceIsRejected);
+        Check.run("waiting move holds its space", ByteCapacityTest::waitingMoveHoldsItsSpace);
+        Check.run("failed move gives its space back", ByteCapacityTest::failedMoveGivesItsSpaceBack);
+        Check.run("placement over the capacity is rejected", ByteCapacityTest::placementOverTheCapacityIsRejected);
+        Check.exit();
+    }
+
+    // Add of a component of the given size, which TestTransfer doesn't have.
+    private static final class SizedAdd implements SizedTransfer {
+        private final ComponentId componentId;
+        private final DeviceId destinationDeviceId;
+        private final long size;
+
+        SizedAdd(int componentId, int destinationDeviceId, long size) {
+            this.componentId = new ComponentId(componentId);
+            this.destinationDeviceId = new DeviceId(destinationDeviceId);
+            this.size = size;
+        }
+
+        @Override
+        public long getComponentSize() {
+            return size;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destinationDeviceId;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    // Devices of 100 bytes: device 1 holds component 1 of 60 bytes (and has a free slot),
+    // device 2 is full with component 2 of 30 bytes.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 2, new DeviceId(2), 1),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                new StorageSystemOptions().setByteCapacity(100)
+                        .setComponentSizes(componentId -> componentId.getId() == 1 ? 60 : 30));
+    }
+
+    private static void addWithoutSpaceIsRejected() throws Exception {
+        var system = newSystem();
+        try {
+            system.execute(new SizedAdd(3, 1, 41));
+            throw new AssertionError("add without space has not been rejected");
+        }
+        catch (DeviceIsOutOfSpace e) {
+            Check.equal(41L, e.getSize(), "size of the rejected component");
+        }
+        Check.equal(null, system.getLocation(new ComponentId(3)), "location of the rejected component 3");
+        Check.equal(40L, system.getFreeBytes(new DeviceId(1)), "free bytes of device 1");
+
+        try {
+            system.execute(new SizedAdd(3, 1, -1));
+            throw new AssertionError("add of a negative size has not been rejected");
+        }
+        catch (IllegalComponentSize e) {
+            // Expected.
+        }
+        Check.equal(TransferStatus.ILLEGAL_COMPONENT_SIZE, system.tryExecute(new SizedAdd(3, 1, -1)),
+                "status of an add of a negative size");
+
+        system.execute(new SizedAdd(3, 1, 40));
+        Check.equal(0L, system.getFreeBytes(new DeviceId(1)), "free bytes of the filled device 1");
+        system.execute(new TestTransfer(3, 1, null));
+        Check.equal(40L, system.getFreeBytes(new DeviceId(1)), "free bytes of device 1 after the delete");
+    }
+
+    private static void waitingMoveHoldsItsSpace() throws Exception {
+        var system = newSystem();
+        system.execute(new SizedAdd(3, 1, 20));
+        // Device 2 has no free slot, so the move of component 3 waits for one, with its 20 bytes reserved.
+        var waiting = system.executeAsync(new TestTransfer(3, 1, 2));
+        Check.equal(50L, system.getFreeBytes(new DeviceId(2)), "free bytes of device 2");
+        try {
+            system.execute(new TestTransfer(1, 1, 2));
+            throw new AssertionError("move without space has not been rejected");
+        }
+        catch (DeviceIsOutOfSpace e) {
+            // Expected, it doesn't wait for a slot.
+        }
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+
+        Check.isTrue(waiting.cancel(false), "waiting move is cancelled");
+        Check.equal(70L, system.getFreeBytes(new DeviceId(2)), "free bytes of device 2 after the cancel");
+        try {
+            system.execute(new TestTransfer(1, 1, 2), 10, TimeUnit.MILLISECONDS);
+            throw new AssertionError("move has not timed out");
+        }
+        catch (TransferTimedOut e) {
+            // Had space, but no slot.
+        }
+        Check.equal(70L, system.getFreeBytes(new DeviceId(2)), "free bytes of device 2 after the timeout");
+    }
+
+    private static void failedMoveGivesItsSpaceBack() throws Exception {
+        var system = newSystem();
+        var failure = new IllegalStateException("perform failed");
+        try {
+            system.execute(new TestTransfer(2, 2, 1, () -> {}, () -> { throw failure; }));
+            throw new AssertionError("failure has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            Check.equal(failure, e, "failure of the move");
+        }
+        Check.equal(40L, system.getFreeBytes(new DeviceId(1)), "free bytes of device 1");
+        Check.equal(70L, system.getFreeBytes(new DeviceId(2)), "free bytes of device 2");
+
+        system.execute(new TestTransfer(2, 2, 1));
+        Check.equal(10L, system.getFreeBytes(new DeviceId(1)), "free bytes of device 1 after the move");
+        Check.equal(100L, system.getFreeBytes(new DeviceId(2)), "free bytes of device 2 after the move");
+    }
+
+    private static void placementOverTheCapacityIsRejected() {
+        try {
+            new StorageSystemImpl(
+                    Map.of(new DeviceId(1), 2),
+                    Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(1)),
+                    new StorageSystemOptions().setByteCapacity(100).setComponentSizes(componentId -> 60));
+            throw new AssertionError("placement over the capacity has not been rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package cp2023.solution;
+
+import java.util.Objects;
+
+/**
+ * Assertions of the tests, which run without any test framework: each test class has a main()
+ * which runs its cases with {@link #run} and exits with a non-zero status if any of them fails.
+ */
+final class Check {
+    private static int failures = 0;
+
+    private Check() {
+    }
+
+    interface TestCase {
+        void run() throws Exception;
+    }
+
+    static void run(String name, TestCase testCase) {
+        try {
+            testCase.run();
+            System.out.println("ok      " + name);
+        }
+        catch (Throwable e) {
+            failures++;
+            System.out.println("FAILED  " + name);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    // Called at the end of main().
+    static void exit() {
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+    }
+
+    static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
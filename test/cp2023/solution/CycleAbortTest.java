@@ -0,0 +1,203 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferAborted;
+
+/**
+ * Cycles called off because prepare() of one of their transfers fails: the others are aborted,
+ * nothing moves, and the devices (and the pooled cycle coordinators) can run the cycle again.
+ * A transfer failing in perform() instead only fails itself: its component stays, and can be transferred again.
+ */
+public final class CycleAbortTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("failed prepare aborts the swap", CycleAbortTest::failedPrepareAbortsTheSwap);
+        Check.run("aborted cycles reuse coordinators", CycleAbortTest::abortedCyclesReuseCoordinators);
+        Check.run("failed perform keeps the component in the swap",
+                () -> failedPerformKeepsTheComponentInTheSwap(false));
+        Check.run("failed asynchronous perform keeps the component in the swap",
+                () -> failedPerformKeepsTheComponentInTheSwap(true));
+        Check.exit();
+    }
+
+    // Devices 1 to n with one slot each, holding components 1 to n.
+    private static StorageSystemImpl newSystem(int devices) {
+        var capacities = new HashMap<DeviceId, Integer>();
+        var placement = new HashMap<ComponentId, DeviceId>();
+        for (int d = 1; d <= devices; d++) {
+            capacities.put(new DeviceId(d), 1);
+            placement.put(new ComponentId(d), new DeviceId(d));
+        }
+        return new StorageSystemImpl(capacities, placement, new StorageSystemOptions());
+    }
+
+    // Component c moves to the next device of the ring.
+    private static TestTransfer rotation(int c, int devices, Runnable prepare) {
+        return new TestTransfer(c, c, c % devices + 1, prepare, () -> {});
+    }
+
+    private static void failedPrepareAbortsTheSwap() throws Exception {
+        var system = newSystem(2);
+        var first = new CompletableFuture<Throwable>();
+        var thread = new Thread(() -> {
+            try {
+                system.execute(rotation(1, 2, () -> {}));
+                first.complete(null);
+            }
+            catch (Throwable e) {
+                first.complete(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        awaitWaiting(system, 2);
+
+        var failure = new IllegalStateException("prepare failed");
+        try {
+            system.execute(rotation(2, 2, () -> { throw failure; }));
+            throw new AssertionError("failed prepare has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            Check.equal(failure, e, "failure of the closing transfer");
+        }
+        Check.isTrue(join(first) instanceof TransferAborted, "other transfer is aborted");
+        checkUnmoved(system, 2);
+
+        // The swap can still run.
+        var swap = new ArrayList<CompletableFuture<Void>>();
+        swap.add(system.executeAsync(rotation(1, 2, () -> {})));
+        swap.add(system.executeAsync(rotation(2, 2, () -> {})));
+        for (var transfer : swap) {
+            Check.equal(null, join(transfer), "failure of the swap");
+        }
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of component 2");
+    }
+
+    // More aborted cycles than the pool keeps coordinators, each one failing in a different transfer.
+    private static void abortedCyclesReuseCoordinators() throws Exception {
+        int devices = 3;
+        var system = newSystem(devices);
+        for (int round = 0; round < 200; round++) {
+            int failing = round % devices + 1;
+            var failure = new IllegalStateException("prepare of round " + round + " failed");
+            var transfers = new ArrayList<CompletableFuture<Void>>();
+            for (int c = 1; c <= devices; c++) {
+                Runnable prepare = c == failing ? () -> { throw failure; } : () -> {};
+                transfers.add(system.executeAsync(rotation(c, devices, prepare)));
+            }
+            for (int c = 1; c <= devices; c++) {
+                var thrown = join(transfers.get(c - 1));
+                if (c == failing) {
+                    Check.equal(failure, thrown, "failure of round " + round);
+                }
+                else {
+                    Check.isTrue(thrown instanceof TransferAborted, "transfer " + c + " of round " + round + " is aborted");
+                }
+            }
+            checkUnmoved(system, devices);
+        }
+        Check.equal(200L * (devices - 1), system.getMetricsSnapshot().rejections().get(TransferStatus.ABORTED),
+                "aborted transfers");
+
+        var transfers = new ArrayList<CompletableFuture<Void>>();
+        for (int c = 1; c <= devices; c++) {
+            transfers.add(system.executeAsync(rotation(c, devices, () -> {})));
+        }
+        for (var transfer : transfers) {
+            Check.equal(null, join(transfer), "failure of the last cycle");
+        }
+    }
+
+    // Component 1 waits to move to device 2, component 2 closes the swap and fails in perform().
+    private static void failedPerformKeepsTheComponentInTheSwap(boolean async) throws Exception {
+        var system = newSystem(2);
+        var first = new CompletableFuture<Throwable>();
+        var thread = new Thread(() -> {
+            try {
+                system.execute(rotation(1, 2, () -> {}));
+                first.complete(null);
+            }
+            catch (Throwable e) {
+                first.complete(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        awaitWaiting(system, 2);
+
+        var failure = new IllegalStateException("perform failed");
+        var failing = new TestTransfer(2, 2, 1, () -> {}, () -> { throw failure; });
+        if (async) {
+            Check.equal(failure, join(system.executeAsync(failing)), "failure of the closing transfer");
+        }
+        else {
+            try {
+                system.execute(failing);
+                throw new AssertionError("failed perform has not been thrown");
+            }
+            catch (IllegalStateException e) {
+                Check.equal(failure, e, "failure of the closing transfer");
+            }
+        }
+        Check.equal(null, join(first), "failure of the other transfer");
+
+        // Device 2 holds both components, one more than its slot.
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(2)), "location of component 2");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(2)), "component 2 is released");
+        Check.equal(-1, system.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+        Check.equal(1, system.getFreeSlots(new DeviceId(1)), "free slots of device 1");
+
+        // The retried move repays the slot of device 2, rather than giving it to the add waiting there.
+        var add = system.executeAsync(new TestTransfer(3, null, 2));
+        awaitWaiting(system, 2);
+        system.execute(new TestTransfer(2, 2, 1));
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of the retried component 2");
+        Check.equal(0, system.getFreeSlots(new DeviceId(1)), "free slots of device 1 after the retry");
+        Check.equal(0, system.getFreeSlots(new DeviceId(2)), "free slots of device 2 after the retry");
+        Check.isTrue(!add.isDone(), "add to device 2 has not waited");
+
+        system.execute(new TestTransfer(1, 2, null));
+        Check.equal(null, join(add), "failure of the add");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(3)), "location of component 3");
+    }
+
+    private static void checkUnmoved(StorageSystemImpl system, int devices) {
+        for (int c = 1; c <= devices; c++) {
+            var component = new ComponentId(c);
+            Check.equal(new DeviceId(c), system.getLocation(component), "location of component " + c);
+            Check.isTrue(!system.isBeingTransferred(component), "component " + c + " is released");
+            Check.equal(0, system.getFreeSlots(new DeviceId(c)), "free slots of device " + c);
+        }
+    }
+
+    private static void awaitWaiting(StorageSystemImpl system, int device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (system.getMetricsSnapshot().devices().get(new DeviceId(device)).waiting() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "nothing waits for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    // What the transfer (or the thread completing the future) has thrown, null if nothing.
+    private static Throwable join(CompletableFuture<?> future) throws Exception {
+        try {
+            var result = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return result instanceof Throwable ? (Throwable) result : null;
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+            return cause instanceof CompletionException ? cause.getCause() : cause;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.DeviceIsClosed;
+
+/**
+ * Drains of a device: components arriving from transfers which have waited on it are moved away too,
+ * a second drain of the device is rejected while the first one runs, and a failed move fails the drain.
+ */
+public final class DeviceDrainTest {
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final MoveFactory MOVES = (componentId, source, destination) ->
+            new TestTransfer(componentId.getId(), source.getId(), destination.getId());
+
+    public static void main(String[] args) {
+        Check.run("drain moves away what has waited for the device", DeviceDrainTest::drainMovesAwayWhatHasWaited);
+        Check.run("concurrent drain is rejected", DeviceDrainTest::concurrentDrainIsRejected);
+        Check.run("failed move fails the drain", DeviceDrainTest::failedMoveFailsTheDrain);
+        Check.exit();
+    }
+
+    // Device 1 is full with component 1, device 2 is empty, device 3 holds component 3.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 1, new DeviceId(2), 2, new DeviceId(3), 1),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(3), new DeviceId(3)),
+                new StorageSystemOptions());
+    }
+
+    private static void drainMovesAwayWhatHasWaited() throws Exception {
+        var system = newSystem();
+        var waiting = system.executeAsync(new TestTransfer(3, 3, 1));
+        awaitWaiting(system, 1);
+
+        var drain = system.drain(new DeviceId(1), 1, MOVES);
+        Check.isTrue(join(system.executeAsync(new TestTransfer(4, null, 1))) instanceof DeviceIsClosed,
+                "add to the drained device is rejected");
+        Check.equal(null, join(drain.getCompletion()), "failure of the drain");
+        Check.equal(null, join(waiting), "failure of the waiting transfer");
+
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(3)), "location of component 3");
+        Check.equal(2L, drain.getMovedComponents(), "moved components");
+        Check.equal(0, drain.getRemainingComponents(), "remaining components");
+        Check.equal(1, system.getFreeSlots(new DeviceId(1)), "free slots of device 1");
+
+        system.reopenDevice(new DeviceId(1));
+        Check.equal(null, join(system.executeAsync(new TestTransfer(4, null, 1))), "failure of the add after reopening");
+    }
+
+    private static void concurrentDrainIsRejected() throws Exception {
+        var system = newSystem();
+        var moving = new CountDownLatch(1);
+        var leave = new CountDownLatch(1);
+        var drain = system.drain(new DeviceId(1), 1, (componentId, source, destination) ->
+                new TestTransfer(componentId.getId(), source.getId(), destination.getId(), () -> {
+                    moving.countDown();
+                    try {
+                        leave.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }, () -> {}));
+        Check.isTrue(moving.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "move of the drain has not started");
+        try {
+            system.drain(new DeviceId(1), 1, MOVES);
+            throw new AssertionError("second drain has not been rejected");
+        }
+        catch (IllegalStateException e) {
+            // Expected, the first drain goes on.
+        }
+        Check.isTrue(!drain.isDone(), "first drain is done before its move");
+        leave.countDown();
+        Check.equal(null, join(drain.getCompletion()), "failure of the first drain");
+
+        // Once done, the device can be drained again (there's nothing left to move).
+        var again = system.drain(new DeviceId(1), 1, MOVES);
+        Check.equal(null, join(again.getCompletion()), "failure of the second drain");
+        Check.equal(0L, again.getMovedComponents(), "components moved by the second drain");
+    }
+
+    private static void failedMoveFailsTheDrain() throws Exception {
+        var system = newSystem();
+        var failure = new IllegalStateException("copy failed");
+        var drain = system.drain(new DeviceId(1), 1, (componentId, source, destination) ->
+                new TestTransfer(componentId.getId(), source.getId(), destination.getId(), () -> {}, () -> {
+                    throw failure;
+                }));
+        Check.equal(failure, join(drain.getCompletion()), "failure of the drain");
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+    }
+
+    private static void awaitWaiting(StorageSystemImpl system, int device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (system.getMetricsSnapshot().devices().get(new DeviceId(device)).waiting() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "nothing waits for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    // What the transfer (or the drain) has thrown, null if nothing.
+    private static Throwable join(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return null;
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+            return cause instanceof CompletionException ? cause.getCause() : cause;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferInterrupted;
+import cp2023.exceptions.TransferTimedOut;
+
+/**
+ * Edge chasing of DistributedStorageSystem: cycles are found among many waiting transfers
+ * whose probes find nothing, each is taken once, and nothing is left waiting.
+ */
+public final class DistributedStorageSystemTest {
+    private static final int NODES = 3;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("cycles among many non-cyclic waits", DistributedStorageSystemTest::cyclesAmongNonCyclicWaits);
+        Check.run("cycle found after many newer probes", DistributedStorageSystemTest::cycleFoundAfterNewerProbes);
+        Check.run("cycle after many withdrawn waits", DistributedStorageSystemTest::cycleAfterWithdrawnWaits);
+        Check.run("interrupted wait is withdrawn", DistributedStorageSystemTest::interruptedWaitIsWithdrawn);
+        Check.exit();
+    }
+
+    /**
+     * Each node owns a full target device with one component, and two full source devices. Every component
+     * of the sources moves to the target of its node (and is deleted from it right away), so they all wait
+     * for a slot there, and their probes find nothing. A move of the target's component to one of its sources
+     * closes a cycle with each transfer waiting from that source. Exactly one of these cycles has to be taken,
+     * then the deletes let all the other transfers through. More transfers wait than the nodes used to keep probes.
+     */
+    private static void cyclesAmongNonCyclicWaits() throws Exception {
+        int sourceSlots = 700;
+        var capacities = new HashMap<DeviceId, Integer>();
+        var owners = new HashMap<DeviceId, Integer>();
+        var placement = new HashMap<ComponentId, DeviceId>();
+        var moves = new ArrayList<TestTransfer>();
+        var closingMoves = new ArrayList<TestTransfer>();
+        int component = 0;
+        for (int n = 0; n < NODES; n++) {
+            int target = 100 * n;
+            capacities.put(new DeviceId(target), 1);
+            owners.put(new DeviceId(target), n);
+            placement.put(new ComponentId(component), new DeviceId(target));
+            closingMoves.add(new TestTransfer(component++, target, target + 1));
+            for (int s = 1; s <= 2; s++) {
+                // Sources owned by the other nodes, so that probes go between nodes.
+                var source = new DeviceId(target + s);
+                capacities.put(source, sourceSlots);
+                owners.put(source, (n + s) % NODES);
+                for (int i = 0; i < sourceSlots; i++) {
+                    placement.put(new ComponentId(component), source);
+                    moves.add(new TestTransfer(component++, source.getId(), target));
+                }
+            }
+        }
+
+        var systems = startNodes(capacities, owners, placement);
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var threads = new ArrayList<Thread>();
+        try {
+            for (var move : moves) {
+                var system = systems[threads.size() % NODES];
+                threads.add(start(failures, () -> {
+                    system.execute(move);
+                    system.execute(new TestTransfer(move.getComponentId().getId(),
+                            move.getDestinationDeviceId().getId(), null));
+                }));
+            }
+            for (int n = 0; n < NODES; n++) {
+                var system = systems[n];
+                var closingMove = closingMoves.get(n);
+                threads.add(start(failures, () -> system.execute(closingMove)));
+            }
+
+            joinAll(threads);
+            Check.equal(List.of(), new ArrayList<>(failures), "failures");
+        }
+        finally {
+            closeNodes(systems);
+        }
+    }
+
+    /**
+     * A swap between the devices of two nodes is found, but the report of the cycle is held back until more
+     * transfers have started waiting (and probing, in vain) than the nodes used to keep probes. It must still
+     * be taken. Then the component of a third full device is deleted, which lets all the waiting transfers through.
+     */
+    private static void cycleFoundAfterNewerProbes() throws Exception {
+        int waits = 4500;
+        var capacities = new HashMap<DeviceId, Integer>();
+        var owners = new HashMap<DeviceId, Integer>();
+        var placement = new HashMap<ComponentId, DeviceId>();
+        // Swapped devices 0 and 1, and target 2 and source 3 of the waiting transfers. The target is on the node
+        // which coordinates the swap (so it starts all the probes), the source on another one.
+        for (int d = 0; d < 3; d++) {
+            capacities.put(new DeviceId(d), 1);
+            owners.put(new DeviceId(d), d == 2 ? 0 : d);
+            placement.put(new ComponentId(d), new DeviceId(d));
+        }
+        capacities.put(new DeviceId(3), waits);
+        owners.put(new DeviceId(3), 1);
+        for (int c = 1; c <= waits; c++) {
+            placement.put(new ComponentId(100 + c), new DeviceId(3));
+        }
+
+        var network = LoopbackTransport.network(NODES);
+        var transports = new GatedTransport[NODES];
+        var systems = new DistributedStorageSystem[NODES];
+        for (int n = 0; n < NODES; n++) {
+            transports[n] = new GatedTransport(network[n]);
+            systems[n] = new DistributedStorageSystem(n, capacities, owners, placement, transports[n]);
+        }
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var threads = new ArrayList<Thread>();
+        try {
+            // The second move closes the cycle, its probe finds it at node 1. The move executed on node 0 has
+            // the lower id, so node 0 coordinates the cycle, and the report goes through the transport.
+            threads.add(start(failures, () -> systems[1].execute(new TestTransfer(0, 0, 1))));
+            awaitCondition(() -> GatedTransport.probes() == 1, "probe of the first move");
+            threads.add(start(failures, () -> systems[0].execute(new TestTransfer(1, 1, 0))));
+            awaitCondition(() -> GatedTransport.held() > 0, "report of the swap");
+
+            for (int c = 1; c <= waits; c++) {
+                var system = systems[c % NODES];
+                int moved = 100 + c;
+                threads.add(start(failures, () -> {
+                    system.execute(new TestTransfer(moved, 3, 2));
+                    system.execute(new TestTransfer(moved, 2, null));
+                }));
+            }
+            awaitCondition(() -> GatedTransport.probes() >= waits, "probes of the waiting transfers");
+            GatedTransport.open();
+
+            threads.add(start(failures, () -> systems[2].execute(new TestTransfer(2, 2, null))));
+            joinAll(threads);
+            Check.equal(List.of(), new ArrayList<>(failures), "failures");
+        }
+        finally {
+            GatedTransport.open();
+            closeNodes(systems);
+        }
+    }
+
+    /**
+     * Many moves to a full device time out and are withdrawn, after their probes. A swap between
+     * the two devices they waited on and came from is still found.
+     */
+    private static void cycleAfterWithdrawnWaits() throws Exception {
+        int waits = 1000;
+        var capacities = Map.of(new DeviceId(0), 1, new DeviceId(1), waits);
+        var owners = Map.of(new DeviceId(0), 0, new DeviceId(1), 1);
+        var placement = new HashMap<ComponentId, DeviceId>();
+        placement.put(new ComponentId(0), new DeviceId(0));
+        for (int c = 1; c <= waits; c++) {
+            placement.put(new ComponentId(c), new DeviceId(1));
+        }
+
+        var systems = startNodes(capacities, owners, placement);
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var threads = new ArrayList<Thread>();
+        try {
+            for (int c = 1; c <= waits; c++) {
+                var system = systems[c % NODES];
+                var move = new TestTransfer(c, 1, 0);
+                threads.add(start(failures, () -> {
+                    try {
+                        system.execute(move, 10, TimeUnit.MILLISECONDS);
+                        throw new AssertionError("move to a full device has not timed out");
+                    }
+                    catch (TransferTimedOut expected) {
+                    }
+                }));
+            }
+            joinAll(threads);
+            Check.equal(List.of(), new ArrayList<>(failures), "failures of the timed out moves");
+
+            threads.clear();
+            threads.add(start(failures, () -> systems[0].execute(new TestTransfer(1, 1, 0))));
+            threads.add(start(failures, () -> systems[1].execute(new TestTransfer(0, 0, 1))));
+            joinAll(threads);
+            Check.equal(List.of(), new ArrayList<>(failures), "failures of the swap");
+        }
+        finally {
+            closeNodes(systems);
+        }
+    }
+
+    /**
+     * A move to a full device by an interrupted thread is withdrawn with TransferInterrupted, the interrupt is kept,
+     * and the component can be moved again.
+     */
+    private static void interruptedWaitIsWithdrawn() throws Exception {
+        var capacities = Map.of(new DeviceId(0), 1, new DeviceId(1), 1);
+        var owners = Map.of(new DeviceId(0), 0, new DeviceId(1), 1);
+        var placement = Map.of(new ComponentId(0), new DeviceId(0), new ComponentId(1), new DeviceId(1));
+
+        var systems = startNodes(capacities, owners, placement);
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        try {
+            var waiting = start(failures, () -> {
+                Thread.currentThread().interrupt();
+                try {
+                    systems[2].execute(new TestTransfer(1, 1, 0));
+                    throw new AssertionError("move to a full device has not been interrupted");
+                }
+                catch (TransferInterrupted e) {
+                    Check.equal(TransferStatus.INTERRUPTED, e.getStatus(), "status");
+                    Check.isTrue(Thread.interrupted(), "interrupt is kept");
+                }
+            });
+            joinAll(List.of(waiting));
+            Check.equal(List.of(), new ArrayList<>(failures), "failures of the interrupted move");
+
+            var threads = new ArrayList<Thread>();
+            threads.add(start(failures, () -> systems[0].execute(new TestTransfer(0, 0, null))));
+            threads.add(start(failures, () -> systems[1].execute(new TestTransfer(1, 1, 0))));
+            joinAll(threads);
+            Check.equal(List.of(), new ArrayList<>(failures), "failures of the moves after it");
+        }
+        finally {
+            closeNodes(systems);
+        }
+    }
+
+    private static void awaitCondition(BooleanSupplier condition, String what)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            Check.isTrue(System.nanoTime() < deadline, "no " + what + " after " + TIMEOUT_SECONDS + "s");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Loopback transport which counts the probes delivered to other nodes, and holds back reports of cycles until it's opened.
+     * The counters and the gate are shared by all nodes.
+     */
+    private static final class GatedTransport implements Transport {
+        private static final Object lock = new Object();
+        private static boolean open = false;
+        private static int probes = 0;
+        private static final List<Runnable> held = new ArrayList<>();
+
+        private final Transport transport;
+
+        GatedTransport(Transport transport) {
+            this.transport = transport;
+            synchronized (lock) {
+                open = false;
+                probes = 0;
+                held.clear();
+            }
+        }
+
+        static int probes() {
+            synchronized (lock) {
+                return probes;
+            }
+        }
+
+        static int held() {
+            synchronized (lock) {
+                return held.size();
+            }
+        }
+
+        static void open() {
+            List<Runnable> released;
+            synchronized (lock) {
+                open = true;
+                released = new ArrayList<>(held);
+                held.clear();
+            }
+            released.forEach(Runnable::run);
+        }
+
+        @Override
+        public int getNode() {
+            return transport.getNode();
+        }
+
+        @Override
+        public void start(Consumer<NodeMessage> receiver) {
+            transport.start(receiver);
+        }
+
+        @Override
+        public void send(int node, NodeMessage message) {
+            synchronized (lock) {
+                if (message.type == NodeMessage.Type.CYCLE_FOUND && !open) {
+                    held.add(() -> transport.send(node, message));
+                    return;
+                }
+            }
+            transport.send(node, message);
+            if (message.type == NodeMessage.Type.PROBE) {
+                synchronized (lock) {
+                    probes++;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
+
+    private static DistributedStorageSystem[] startNodes(Map<DeviceId, Integer> capacities,
+                                                         Map<DeviceId, Integer> owners,
+                                                         Map<ComponentId, DeviceId> placement) {
+        var transports = LoopbackTransport.network(NODES);
+        var systems = new DistributedStorageSystem[NODES];
+        for (int n = 0; n < NODES; n++) {
+            systems[n] = new DistributedStorageSystem(n, capacities, owners, placement, transports[n]);
+        }
+        return systems;
+    }
+
+    private static void closeNodes(DistributedStorageSystem[] systems) {
+        for (var system : systems) {
+            system.close();
+        }
+    }
+
+    private interface Body {
+        void run() throws TransferException;
+    }
+
+    private static Thread start(ConcurrentLinkedQueue<Throwable> failures, Body body) {
+        var thread = new Thread(() -> {
+            try {
+                body.run();
+            }
+            catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Fails if any thread is still waiting after the timeout, which means a cycle has been missed.
+    private static void joinAll(List<Thread> threads) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        for (var thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            Check.isTrue(!thread.isAlive(), "a transfer is still waiting after " + TIMEOUT_SECONDS + "s");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferAborted;
+import cp2023.exceptions.TransferException;
+
+/**
+ * Failures in a chain of transfers which have been given the slots of each other early: devices 1, 2 and 3
+ * are full, component 1 waits to move from 1 to 2, component 2 from 2 to 3, and component 3 leaves 3 for
+ * the empty device 4, which passes the slots down the chain. Nothing may be left claimed or waiting.
+ */
+public final class EarlySlotReleaseTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("failed prepare aborts the chain", EarlySlotReleaseTest::failedPrepareAbortsTheChain);
+        Check.run("failed prepare down the chain gives the slot back", EarlySlotReleaseTest::failedPrepareDownTheChain);
+        Check.run("failed asynchronous prepare aborts the chain", EarlySlotReleaseTest::failedAsyncPrepareAbortsTheChain);
+        Check.exit();
+    }
+
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 1, new DeviceId(2), 1, new DeviceId(3), 1, new DeviceId(4), 1),
+                Map.of(new ComponentId(1), new DeviceId(1),
+                        new ComponentId(2), new DeviceId(2),
+                        new ComponentId(3), new DeviceId(3)),
+                new StorageSystemOptions().setEarlySlotRelease(true));
+    }
+
+    private static RuntimeException failure() {
+        return new IllegalStateException("prepare failed");
+    }
+
+    // The head of the chain fails, so component 3 stays on device 3 and neither move behind it can run.
+    private static void failedPrepareAbortsTheChain() throws Exception {
+        var system = newSystem();
+        var second = start(() -> system.execute(new TestTransfer(2, 2, 3)));
+        var third = start(() -> system.execute(new TestTransfer(1, 1, 2)));
+        awaitWaiting(system, 3);
+        awaitWaiting(system, 2);
+
+        var failure = failure();
+        try {
+            system.execute(new TestTransfer(3, 3, 4, () -> { throw failure; }, () -> {}));
+            throw new AssertionError("failed prepare has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            Check.equal(failure, e, "failure of the head");
+        }
+        Check.isTrue(join(second) instanceof TransferAborted, "second move is aborted");
+        Check.isTrue(join(third) instanceof TransferAborted, "third move is aborted");
+
+        checkPlacementAndSlots(system);
+    }
+
+    // The move of component 2 fails, so the chain is cut there: component 3 still moves away, and component 1,
+    // which would have taken the slot of component 2, is aborted. The slot freed on device 3 goes back to it.
+    private static void failedPrepareDownTheChain() throws Exception {
+        var system = newSystem();
+        var failure = failure();
+        var second = start(() -> system.execute(new TestTransfer(2, 2, 3, () -> { throw failure; }, () -> {})));
+        var third = start(() -> system.execute(new TestTransfer(1, 1, 2)));
+        awaitWaiting(system, 3);
+        awaitWaiting(system, 2);
+
+        // Component 3 only leaves after the move of component 2 has failed.
+        var secondFailed = new CountDownLatch(1);
+        var head = start(() -> system.execute(new TestTransfer(3, 3, 4, () -> {}, () -> {
+            try {
+                secondFailed.await();
+            }
+            catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        })));
+        Check.equal(failure, join(second), "failure of the second move");
+        secondFailed.countDown();
+        Check.equal(null, join(head), "failure of the head");
+        Check.isTrue(join(third) instanceof TransferAborted, "third move is aborted");
+
+        Check.equal(new DeviceId(4), system.getLocation(new ComponentId(3)), "location of component 3");
+        Check.equal(1, system.getFreeSlots(new DeviceId(3)), "free slots of device 3");
+        system.execute(new TestTransfer(2, 2, 3));
+        system.execute(new TestTransfer(1, 1, 2));
+    }
+
+    private static void failedAsyncPrepareAbortsTheChain() throws Exception {
+        var system = newSystem();
+        // Asynchronous transfers are admitted (and put on the waiting lists) before executeAsync() returns.
+        var second = system.executeAsync(new TestTransfer(2, 2, 3));
+        var third = system.executeAsync(new TestTransfer(1, 1, 2));
+        var failure = failure();
+        var head = system.executeAsync(new TestTransfer(3, 3, 4, () -> { throw failure; }, () -> {}));
+
+        Check.equal(failure, join(head), "failure of the head");
+        Check.isTrue(join(second) instanceof TransferAborted, "second move is aborted");
+        Check.isTrue(join(third) instanceof TransferAborted, "third move is aborted");
+
+        checkPlacementAndSlots(system);
+    }
+
+    // Nothing has moved, and the whole chain can run now.
+    private static void checkPlacementAndSlots(StorageSystemImpl system) throws TransferException {
+        for (int c = 1; c <= 3; c++) {
+            var component = new ComponentId(c);
+            Check.equal(new DeviceId(c), system.getLocation(component), "location of component " + c);
+            Check.isTrue(!system.isBeingTransferred(component), "component " + c + " is released");
+        }
+        Check.equal(1, system.getFreeSlots(new DeviceId(4)), "free slots of device 4");
+        system.execute(new TestTransfer(3, 3, 4));
+        system.execute(new TestTransfer(2, 2, 3));
+        system.execute(new TestTransfer(1, 1, 2));
+    }
+
+    private static void awaitWaiting(StorageSystemImpl system, int device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (system.getMetricsSnapshot().devices().get(new DeviceId(device)).waiting() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "nothing waits for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Body {
+        void run() throws TransferException;
+    }
+
+    // Runs the body on a new thread, the future gets what it has thrown (null if nothing).
+    private static CompletableFuture<Throwable> start(Body body) {
+        var result = new CompletableFuture<Throwable>();
+        var thread = new Thread(() -> {
+            try {
+                body.run();
+                result.complete(null);
+            }
+            catch (Throwable e) {
+                result.complete(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    // What the transfer (or a thread started by start()) has thrown, null if nothing.
+    private static Throwable join(CompletableFuture<?> future) throws Exception {
+        try {
+            var result = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return result instanceof Throwable ? (Throwable) result : null;
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+            return cause instanceof CompletionException ? cause.getCause() : cause;
+        }
+    }
+}
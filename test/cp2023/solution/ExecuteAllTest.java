@@ -0,0 +1,133 @@
+package cp2023.solution;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.exceptions.DeviceDoesNotExist;
+
+/**
+ * Batches validated as a whole: a batch with one invalid transfer runs none of them and claims no component,
+ * a valid one runs all of them (even if they form a cycle), and a failing transfer doesn't stop the others.
+ */
+public final class ExecuteAllTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("invalid transfer rejects the batch", ExecuteAllTest::invalidTransferRejectsTheBatch);
+        Check.run("claimed component rejects the batch", ExecuteAllTest::claimedComponentRejectsTheBatch);
+        Check.run("batch closing a cycle runs", ExecuteAllTest::batchClosingACycleRuns);
+        Check.run("failed transfer is thrown after the others", ExecuteAllTest::failedTransferIsThrownAfterTheOthers);
+        Check.exit();
+    }
+
+    // Devices 1 and 2 are full with components 1 and 2, device 3 has a free slot.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 1, new DeviceId(2), 1, new DeviceId(3), 1),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                new StorageSystemOptions());
+    }
+
+    private static void invalidTransferRejectsTheBatch() throws Exception {
+        var system = newSystem();
+        var prepared = new AtomicInteger();
+        Runnable prepare = prepared::incrementAndGet;
+        try {
+            system.executeAll(List.of(
+                    new TestTransfer(1, 1, 3, prepare, () -> {}),
+                    new TestTransfer(2, 2, 7, prepare, () -> {})));
+            throw new AssertionError("batch has not been rejected");
+        }
+        catch (DeviceDoesNotExist e) {
+            // Expected.
+        }
+        Check.equal(0, prepared.get(), "transfers prepared");
+        checkUnmoved(system);
+    }
+
+    // Component 2 is claimed by a transfer waiting for device 1, the batch moves component 1 away too.
+    private static void claimedComponentRejectsTheBatch() throws Exception {
+        var system = newSystem();
+        var waiting = system.executeAsync(new TestTransfer(2, 2, 1));
+        awaitWaiting(system, 1);
+        try {
+            system.executeAll(List.of(new TestTransfer(1, 1, 3), new TestTransfer(2, 2, 3)));
+            throw new AssertionError("batch has not been rejected");
+        }
+        catch (ComponentIsBeingOperatedOn e) {
+            // Expected.
+        }
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+        Check.isTrue(!waiting.isDone(), "waiting transfer is done");
+
+        // The first transfer of the batch hasn't taken the free slot either.
+        system.execute(new TestTransfer(1, 1, 3));
+        Check.equal(null, join(waiting), "failure of the waiting transfer");
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of component 2");
+    }
+
+    private static void batchClosingACycleRuns() throws Exception {
+        var system = newSystem();
+        system.executeAll(List.of(new TestTransfer(1, 1, 2), new TestTransfer(2, 2, 1)));
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of component 2");
+        Check.equal(1L, system.getMetricsSnapshot().resolvedCycles(), "resolved cycles");
+    }
+
+    private static void failedTransferIsThrownAfterTheOthers() throws Exception {
+        var system = newSystem();
+        var failure = new IllegalStateException("perform failed");
+        try {
+            system.executeAll(List.of(
+                    new TestTransfer(1, 1, 3, () -> {}, () -> { throw failure; }),
+                    new TestTransfer(2, 2, null),
+                    new TestTransfer(3, null, 2)));
+            throw new AssertionError("failure has not been thrown");
+        }
+        catch (IllegalStateException e) {
+            Check.equal(failure, e, "failure of the batch");
+        }
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+        Check.equal(null, system.getLocation(new ComponentId(2)), "location of the deleted component 2");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(3)), "location of the added component 3");
+        Check.equal(1, system.getFreeSlots(new DeviceId(3)), "free slots of device 3");
+    }
+
+    private static void checkUnmoved(StorageSystemImpl system) {
+        for (int c = 1; c <= 2; c++) {
+            var component = new ComponentId(c);
+            Check.equal(new DeviceId(c), system.getLocation(component), "location of component " + c);
+            Check.isTrue(!system.isBeingTransferred(component), "component " + c + " is released");
+        }
+        Check.equal(1, system.getFreeSlots(new DeviceId(3)), "free slots of device 3");
+    }
+
+    private static void awaitWaiting(StorageSystemImpl system, int device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (system.getMetricsSnapshot().devices().get(new DeviceId(device)).waiting() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "nothing waits for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    // What the transfer has thrown, null if nothing.
+    private static Throwable join(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return null;
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+            return cause instanceof CompletionException ? cause.getCause() : cause;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Perform limits: a transfer let in by another one leaving the gate fails on its own, without taking the other down.
+ */
+public final class PerformGateTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("failed hand-over fails the transfer let in", PerformGateTest::failedHandOverFailsTheTransferLetIn);
+        Check.exit();
+    }
+
+    // Two moves to device 2, which runs one perform() at a time. The perform executor rejects the second one,
+    // which is submitted by the first move as it leaves the gate.
+    private static void failedHandOverFailsTheTransferLetIn() throws Exception {
+        var submitted = new AtomicInteger();
+        Executor performExecutor = task -> {
+            if (submitted.incrementAndGet() == 2) {
+                throw new RejectedExecutionException("perform stage is shut down");
+            }
+            var thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        };
+        var system = new StorageSystemImpl(
+                Map.of(new DeviceId(1), 2, new DeviceId(2), 2),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(1)),
+                new StorageSystemOptions().setPerformExecutor(performExecutor).setPerformLimit(new DeviceId(2), 1));
+
+        var performing = new CountDownLatch(1);
+        var leave = new CountDownLatch(1);
+        var first = system.executeAsync(new TestTransfer(1, 1, 2, () -> {}, () -> {
+            performing.countDown();
+            try {
+                leave.await();
+            }
+            catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }));
+        Check.isTrue(performing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "first move has not started perform()");
+        var second = system.executeAsync(new TestTransfer(2, 1, 2));
+        // The second move has nothing to wait for but the gate.
+        Thread.sleep(50);
+        Check.isTrue(!second.isDone(), "second move has not waited at the gate");
+        leave.countDown();
+
+        Check.equal(null, join(first), "failure of the first move");
+        Check.isTrue(join(second) instanceof RejectedExecutionException, "second move fails with the rejection");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(1)), "location of component 1");
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of component 2");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(2)), "component 2 is released");
+        Check.equal(1, system.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+
+        // The gate has been left by both.
+        Check.equal(null, join(system.executeAsync(new TestTransfer(2, 1, 2))), "failure of the retried move");
+    }
+
+    // What the transfer has thrown, null if nothing.
+    private static Throwable join(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return null;
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause();
+            return cause instanceof CompletionException ? cause.getCause() : cause;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package cp2023.solution;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Replay of the placement log: a system opened on the log of another one has its placement.
+ */
+public final class PlacementLogTest {
+    private static final Map<DeviceId, Integer> DEVICES = Map.of(new DeviceId(1), 4, new DeviceId(2), 4);
+    private static final Map<ComponentId, DeviceId> PLACEMENT = Map.of(
+            new ComponentId(1), new DeviceId(1),
+            new ComponentId(2), new DeviceId(1),
+            new ComponentId(3), new DeviceId(1));
+
+    public static void main(String[] args) {
+        Check.run("replay across generations", PlacementLogTest::replayAcrossGenerations);
+        Check.run("replay stops at a torn record", PlacementLogTest::replayStopsAtTornRecord);
+        Check.run("transfer in progress is reported as interrupted", PlacementLogTest::transferInProgressIsInterrupted);
+        Check.run("full log rejects admission without a claim", PlacementLogTest::fullLogRejectsAdmission);
+        Check.run("log file size is validated", PlacementLogTest::logFileSizeIsValidated);
+        Check.exit();
+    }
+
+    private static StorageSystemImpl open(Path directory, int logFileSize) {
+        var options = new StorageSystemOptions().setLogDirectory(directory);
+        if (logFileSize > 0) {
+            options.setLogFileSize(logFileSize);
+        }
+        return new StorageSystemImpl(DEVICES, PLACEMENT, options);
+    }
+
+    // Adds, moves and deletes, in a log of 4 records per file, so it's replayed from a snapshot and several WAL files.
+    private static void replayAcrossGenerations() throws Exception {
+        var directory = Files.createTempDirectory("placement-log");
+        try {
+            var system = open(directory, 4 * 20);
+            system.execute(new TestTransfer(10, null, 2));
+            system.execute(new TestTransfer(1, 1, 2));
+            system.execute(new TestTransfer(2, 1, null));
+            system.execute(new TestTransfer(3, 1, 2));
+            system.execute(new TestTransfer(11, null, 1));
+            system.execute(new TestTransfer(1, 2, 1));
+            system.execute(new TestTransfer(10, 2, null));
+            var placement = system.getPlacement();
+            system.close();
+
+            var restored = open(directory, 4 * 20);
+            Check.equal(placement, restored.getPlacement(), "restored placement");
+            Check.equal(List.of(), restored.getInterruptedTransfers(), "interrupted transfers");
+            Check.equal(2, restored.getFreeSlots(new DeviceId(1)), "free slots of device 1");
+            Check.equal(3, restored.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+            restored.close();
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    // A record with a wrong check (as if written only partly before a crash) ends the log.
+    private static void replayStopsAtTornRecord() throws Exception {
+        var directory = Files.createTempDirectory("placement-log");
+        try {
+            var system = open(directory, 0);
+            system.execute(new TestTransfer(1, 1, 2));
+            var placement = system.getPlacement();
+            system.close();
+
+            var wal = Files.list(directory)
+                    .filter(file -> file.getFileName().toString().startsWith("wal-"))
+                    .max(Comparator.naturalOrder())
+                    .orElseThrow();
+            try (var channel = FileChannel.open(wal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Find the end of the log, and write a finish record there which moves component 2, with no check.
+                var record = ByteBuffer.allocate(20).order(ByteOrder.nativeOrder());
+                long position = 0;
+                while (true) {
+                    record.clear();
+                    channel.read(record, position);
+                    if (record.getInt(0) == 0) {
+                        break;
+                    }
+                    position += 20;
+                }
+                record.clear();
+                record.putInt(2 | 0x10 | 0x20).putInt(2).putInt(1).putInt(2).putInt(0).flip();
+                channel.write(record, position);
+            }
+
+            var restored = open(directory, 0);
+            Check.equal(placement, restored.getPlacement(), "restored placement");
+            restored.close();
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    private static void transferInProgressIsInterrupted() throws Exception {
+        var directory = Files.createTempDirectory("placement-log");
+        var preparing = new CountDownLatch(1);
+        var crash = new CountDownLatch(1);
+        var system = open(directory, 0);
+        var running = new Thread(() -> {
+            try {
+                system.execute(new TestTransfer(3, 1, 2, () -> {
+                    preparing.countDown();
+                    try {
+                        crash.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, () -> {}));
+            }
+            catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        try {
+            running.start();
+            preparing.await();
+
+            // Open the log while the move is in progress, as if the first system has crashed.
+            var restored = open(directory, 0);
+            Check.equal(List.of(new InterruptedTransfer(new ComponentId(3), new DeviceId(1), new DeviceId(2))),
+                    restored.getInterruptedTransfers(), "interrupted transfers");
+            Check.equal(new DeviceId(1), restored.getLocation(new ComponentId(3)), "location of the moved component");
+            restored.close();
+        }
+        finally {
+            crash.countDown();
+            running.join();
+            system.close();
+            delete(directory);
+        }
+    }
+
+    // A file of 2 records takes one transfer in progress: its start, and the finish of a transfer after a rotation.
+    private static void fullLogRejectsAdmission() throws Exception {
+        var directory = Files.createTempDirectory("placement-log");
+        var preparing = new CountDownLatch(1);
+        var finish = new CountDownLatch(1);
+        var system = open(directory, 2 * 20);
+        var running = new Thread(() -> {
+            try {
+                system.execute(new TestTransfer(1, 1, 2, () -> {
+                    preparing.countDown();
+                    try {
+                        finish.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, () -> {}));
+            }
+            catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        try {
+            running.start();
+            preparing.await();
+
+            try {
+                system.execute(new TestTransfer(2, 1, 2));
+                throw new AssertionError("admission has not failed");
+            }
+            catch (IllegalStateException e) {
+                Check.isTrue(e.getMessage().startsWith("Log file size is too small"), "failure: " + e.getMessage());
+            }
+            try {
+                system.executeAll(List.of(new TestTransfer(3, 1, 2), new TestTransfer(12, null, 1)));
+                throw new AssertionError("batch admission has not failed");
+            }
+            catch (IllegalStateException e) {
+                Check.isTrue(e.getMessage().startsWith("Log file size is too small"), "failure: " + e.getMessage());
+            }
+            for (int c : new int[] { 2, 3 }) {
+                Check.isTrue(!system.isBeingTransferred(new ComponentId(c)), "component " + c + " is released");
+            }
+            Check.equal(null, system.getLocation(new ComponentId(12)), "location of the rejected add");
+            Check.equal(3, system.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+
+            finish.countDown();
+            running.join();
+            system.execute(new TestTransfer(2, 1, 2));
+            system.execute(new TestTransfer(12, null, 1));
+            var placement = system.getPlacement();
+            system.close();
+
+            var restored = open(directory, 2 * 20);
+            Check.equal(placement, restored.getPlacement(), "restored placement");
+            Check.equal(List.of(), restored.getInterruptedTransfers(), "interrupted transfers");
+            restored.close();
+        }
+        finally {
+            finish.countDown();
+            running.join();
+            delete(directory);
+        }
+    }
+
+    private static void logFileSizeIsValidated() {
+        for (int size : new int[] { -1, 0, 39 }) {
+            try {
+                new StorageSystemOptions().setLogFileSize(size);
+                throw new AssertionError("log file size " + size + " has been accepted");
+            }
+            catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        new StorageSystemOptions().setLogFileSize(40);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (var file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
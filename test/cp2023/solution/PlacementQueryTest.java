@@ -0,0 +1,135 @@
+package cp2023.solution;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Queries of the placement: what they report while a transfer is in progress, and that polling
+ * never loses a component while others are moved around.
+ */
+public final class PlacementQueryTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("transfer in progress is reported", PlacementQueryTest::transferInProgressIsReported);
+        Check.run("unknown device is rejected", PlacementQueryTest::unknownDeviceIsRejected);
+        Check.run("polling sees every component", PlacementQueryTest::pollingSeesEveryComponent);
+        Check.exit();
+    }
+
+    // Device 1 holds components 1 and 2, device 2 is empty, both have two slots.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(2), 2, new DeviceId(1), 2),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(1)),
+                newOptions());
+    }
+
+    // Asynchronous transfers get a thread each, so that they can block at once however few the processors.
+    private static StorageSystemOptions newOptions() {
+        return new StorageSystemOptions().setExecutor(task -> {
+            var thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    private static void transferInProgressIsReported() throws Exception {
+        var system = newSystem();
+        var performing = new CountDownLatch(2);
+        var leave = new CountDownLatch(1);
+        Runnable perform = () -> {
+            performing.countDown();
+            try {
+                leave.await();
+            }
+            catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        };
+        var move = system.executeAsync(new TestTransfer(1, 1, 2, () -> {}, perform));
+        var add = system.executeAsync(new TestTransfer(3, null, 2, () -> {}, perform));
+        Check.isTrue(performing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "transfers have not started perform()");
+
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(1)), "location of the moving component 1");
+        Check.isTrue(system.isBeingTransferred(new ComponentId(1)), "component 1 is being transferred");
+        Check.equal(null, system.getLocation(new ComponentId(3)), "location of the component 3 being added");
+        Check.equal(0, system.getFreeSlots(new DeviceId(2)), "free slots of device 2, reserved by both");
+        Check.equal(Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(1)),
+                system.getPlacement(), "placement");
+
+        leave.countDown();
+        move.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        add.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(1)), "location of the moved component 1");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+        Check.equal(new DeviceId(2), system.getLocation(new ComponentId(3)), "location of the added component 3");
+        Check.equal(1, system.getFreeSlots(new DeviceId(1)), "free slots of device 1");
+
+        system.execute(new TestTransfer(2, 1, null));
+        Check.equal(null, system.getLocation(new ComponentId(2)), "location of the deleted component 2");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(2)), "deleted component 2 is released");
+        Check.equal(2, system.getFreeSlots(new DeviceId(1)), "free slots of device 1 after the delete");
+    }
+
+    private static void unknownDeviceIsRejected() {
+        var system = newSystem();
+        Check.equal(List.of(new DeviceId(1), new DeviceId(2)), system.getDevices(), "devices");
+        for (Runnable query : new Runnable[] {
+                () -> system.getTotalSlots(new DeviceId(7)),
+                () -> system.getFreeSlots(new DeviceId(7)),
+                () -> system.getFreeBytes(new DeviceId(7)),
+                () -> system.getComponents(new DeviceId(7)) }) {
+            try {
+                query.run();
+                throw new AssertionError("query of an unknown device has not been rejected");
+            }
+            catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        Check.equal(null, system.getLocation(new ComponentId(7)), "location of an unknown component");
+    }
+
+    // Components 1 and 2 swap back and forth between the full devices, while the placement is polled.
+    private static void pollingSeesEveryComponent() throws Exception {
+        var system = new StorageSystemImpl(
+                Map.of(new DeviceId(1), 1, new DeviceId(2), 1),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                newOptions());
+        var done = new AtomicBoolean();
+        var failure = new AtomicBoolean();
+        var poller = new Thread(() -> {
+            while (!done.get()) {
+                var placement = system.getPlacement();
+                if (placement.size() != 2 || system.getLocation(new ComponentId(1)) == null) {
+                    failure.set(true);
+                }
+                Thread.yield();
+            }
+        });
+        poller.setDaemon(true);
+        poller.start();
+        try {
+            for (int round = 0; round < 500; round++) {
+                int source = round % 2 + 1;
+                var first = system.executeAsync(new TestTransfer(1, source, 3 - source));
+                system.execute(new TestTransfer(2, 3 - source, source));
+                first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            done.set(true);
+            poller.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        }
+        Check.isTrue(!failure.get(), "polling has lost a component");
+        Check.equal(Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                system.getPlacement(), "placement after an even number of swaps");
+    }
+}
@@ -0,0 +1,96 @@
+package cp2023.solution;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Rebalancing of full devices, which is only possible through cycles found by the admission of a wave
+ * (see StorageSystemImpl.executeAll()), and the limits the plan keeps to.
+ */
+public final class RebalancerTest {
+    private static final MoveFactory MOVES = (componentId, source, destination) ->
+            new TestTransfer(componentId.getId(), source.getId(), destination.getId());
+
+    public static void main(String[] args) {
+        Check.run("swap of full devices runs as a cycle", RebalancerTest::swapOfFullDevicesRunsAsACycle);
+        Check.run("waves keep to the moves per device", RebalancerTest::wavesKeepToTheMovesPerDevice);
+        Check.run("placement which doesn't fit is rejected", RebalancerTest::placementWhichDoesntFitIsRejected);
+        Check.exit();
+    }
+
+    // Devices 1 to n with the given slots each, all full: device d holds components (d - 1) * slots + 1 and on.
+    private static StorageSystemImpl newSystem(int devices, int slots) {
+        var capacities = new HashMap<DeviceId, Integer>();
+        var placement = new HashMap<ComponentId, DeviceId>();
+        for (int d = 1; d <= devices; d++) {
+            capacities.put(new DeviceId(d), slots);
+            for (int s = 0; s < slots; s++) {
+                placement.put(new ComponentId((d - 1) * slots + s + 1), new DeviceId(d));
+            }
+        }
+        return new StorageSystemImpl(capacities, placement, new StorageSystemOptions());
+    }
+
+    private static void swapOfFullDevicesRunsAsACycle() throws Exception {
+        var system = newSystem(2, 1);
+        var target = Map.of(new ComponentId(1), new DeviceId(2), new ComponentId(2), new DeviceId(1));
+        var rebalancer = new Rebalancer(system, MOVES, 1);
+
+        var waves = rebalancer.plan(target);
+        Check.equal(1, waves.size(), "waves planned");
+        Check.equal(2, waves.get(0).size(), "moves of the wave");
+
+        Check.equal(2L, rebalancer.rebalance(target), "moves run");
+        Check.equal(target, system.getPlacement(), "placement");
+        Check.equal(1L, system.getMetricsSnapshot().resolvedCycles(), "resolved cycles");
+        Check.equal(0, system.getFreeSlots(new DeviceId(1)), "free slots of device 1");
+        Check.equal(0, system.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+
+        Check.equal(0L, rebalancer.rebalance(target), "moves run once in place");
+    }
+
+    // Three full devices with two slots each, every component moves to the next device of the ring.
+    private static void wavesKeepToTheMovesPerDevice() throws Exception {
+        int devices = 3;
+        int slots = 2;
+        var system = newSystem(devices, slots);
+        var target = new HashMap<ComponentId, DeviceId>();
+        for (var entry : system.getPlacement().entrySet()) {
+            target.put(entry.getKey(), new DeviceId(entry.getValue().getId() % devices + 1));
+        }
+        var rebalancer = new Rebalancer(system, MOVES, 1);
+
+        var waves = rebalancer.plan(target);
+        Check.equal(slots, waves.size(), "waves planned");
+        for (var wave : waves) {
+            var sources = new HashSet<DeviceId>();
+            var destinations = new HashSet<DeviceId>();
+            for (var move : wave) {
+                Check.isTrue(sources.add(move.sourceDeviceId()), "device " + move.sourceDeviceId() + " is left twice");
+                Check.isTrue(destinations.add(move.destinationDeviceId()),
+                        "device " + move.destinationDeviceId() + " is entered twice");
+            }
+        }
+
+        Check.equal((long) devices * slots, rebalancer.rebalance(target), "moves run");
+        Check.equal(target, system.getPlacement(), "placement");
+        Check.equal((long) slots, system.getMetricsSnapshot().resolvedCycles(), "resolved cycles");
+    }
+
+    private static void placementWhichDoesntFitIsRejected() throws Exception {
+        var system = newSystem(2, 1);
+        var rebalancer = new Rebalancer(system, MOVES, 1);
+        try {
+            rebalancer.rebalance(Map.of(new ComponentId(1), new DeviceId(2)));
+            throw new AssertionError("placement which doesn't fit has not been rejected");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(1)), "location of component 1");
+    }
+}
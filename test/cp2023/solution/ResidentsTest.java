@@ -0,0 +1,120 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Components listed by device, from the resident sets: they follow adds, deletes, moves and cycles,
+ * a component that stays put is listed all along, and the listings match the placement once transfers end.
+ */
+public final class ResidentsTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("listings follow transfers", ResidentsTest::listingsFollowTransfers);
+        Check.run("listings match the placement", ResidentsTest::listingsMatchThePlacement);
+        Check.exit();
+    }
+
+    private static void listingsFollowTransfers() throws Exception {
+        var system = new StorageSystemImpl(
+                Map.of(new DeviceId(1), 1, new DeviceId(2), 2),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                new StorageSystemOptions());
+        system.execute(new TestTransfer(3, null, 2));
+        checkListed(system, 1, Set.of(1));
+        checkListed(system, 2, Set.of(2, 3));
+
+        // Swap of component 1 with component 3, device 1 is full.
+        var first = system.executeAsync(new TestTransfer(1, 1, 2));
+        system.execute(new TestTransfer(3, 2, 1));
+        first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        checkListed(system, 1, Set.of(3));
+        checkListed(system, 2, Set.of(1, 2));
+
+        system.execute(new TestTransfer(2, 2, null));
+        checkListed(system, 2, Set.of(1));
+    }
+
+    // Four devices with two slots each, three components moving at random and component 0 staying on device 1.
+    private static void listingsMatchThePlacement() throws Exception {
+        int devices = 4;
+        var capacities = new HashMap<DeviceId, Integer>();
+        for (int d = 1; d <= devices; d++) {
+            capacities.put(new DeviceId(d), 2);
+        }
+        var placement = new HashMap<ComponentId, DeviceId>();
+        for (int c = 0; c < devices; c++) {
+            placement.put(new ComponentId(c), new DeviceId(c + 1));
+        }
+        var system = new StorageSystemImpl(capacities, placement, new StorageSystemOptions());
+
+        var done = new AtomicBoolean();
+        var lister = new CompletableFuture<Void>();
+        var thread = new Thread(() -> {
+            while (!done.get()) {
+                if (!system.getComponents(new DeviceId(1)).contains(new ComponentId(0))) {
+                    lister.completeExceptionally(new AssertionError("component 0 is not listed"));
+                    return;
+                }
+                for (int d = 1; d <= devices; d++) {
+                    system.getComponents(new DeviceId(d));
+                }
+                Thread.yield();
+            }
+            lister.complete(null);
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        var random = new Random(2023);
+        var location = new int[devices];
+        for (int c = 0; c < devices; c++) {
+            location[c] = c + 1;
+        }
+        try {
+            for (int step = 0; step < 2_000; step++) {
+                int c = random.nextInt(devices - 1) + 1;
+                int destination = random.nextInt(devices) + 1;
+                if (destination != location[c] && system.getFreeSlots(new DeviceId(destination)) > 0) {
+                    system.execute(new TestTransfer(c, location[c], destination));
+                    location[c] = destination;
+                }
+            }
+        }
+        finally {
+            done.set(true);
+        }
+        lister.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        for (int d = 1; d <= devices; d++) {
+            var expected = new HashSet<Integer>();
+            for (int c = 0; c < devices; c++) {
+                if (location[c] == d) {
+                    expected.add(c);
+                }
+            }
+            checkListed(system, d, expected);
+        }
+    }
+
+    private static void checkListed(StorageSystemImpl system, int device, Set<Integer> components) {
+        var listed = system.getComponents(new DeviceId(device));
+        var ids = new ArrayList<Integer>();
+        for (var componentId : listed) {
+            ids.add(componentId.getId());
+        }
+        Check.equal(components.size(), ids.size(), "components listed on device " + device);
+        Check.equal(components, new HashSet<>(ids), "components of device " + device);
+    }
+}
@@ -0,0 +1,55 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/**
+ * Transfer of the tests, which runs the given actions in prepare() and perform().
+ */
+final class TestTransfer implements ComponentTransfer {
+    private static final Runnable NOTHING = () -> {};
+
+    private final ComponentId compId;
+    private final DeviceId srcDevId;
+    private final DeviceId dstDevId;
+    private final Runnable prepare;
+    private final Runnable perform;
+
+    TestTransfer(int compId, Integer srcDevId, Integer dstDevId) {
+        this(compId, srcDevId, dstDevId, NOTHING, NOTHING);
+    }
+
+    TestTransfer(int compId, Integer srcDevId, Integer dstDevId, Runnable prepare, Runnable perform) {
+        this.compId = new ComponentId(compId);
+        this.srcDevId = srcDevId == null ? null : new DeviceId(srcDevId);
+        this.dstDevId = dstDevId == null ? null : new DeviceId(dstDevId);
+        this.prepare = prepare;
+        this.perform = perform;
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return compId;
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return srcDevId;
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return dstDevId;
+    }
+
+    @Override
+    public void prepare() {
+        prepare.run();
+    }
+
+    @Override
+    public void perform() {
+        perform.run();
+    }
+}
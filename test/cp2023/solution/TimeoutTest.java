@@ -0,0 +1,116 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferInterrupted;
+import cp2023.exceptions.TransferTimedOut;
+
+/**
+ * Transfers withdrawn while they wait for a slot, on a timeout, an interrupt or a cancelled future:
+ * their component is released and the slot they waited for goes to the next transfer. A transfer
+ * which has been given a slot can't be withdrawn any more.
+ */
+public final class TimeoutTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        Check.run("timed out transfer is withdrawn", TimeoutTest::timedOutTransferIsWithdrawn);
+        Check.run("interrupted transfer is withdrawn", TimeoutTest::interruptedTransferIsWithdrawn);
+        Check.run("cancelled transfer is withdrawn", TimeoutTest::cancelledTransferIsWithdrawn);
+        Check.run("running transfer is not cancelled", TimeoutTest::runningTransferIsNotCancelled);
+        Check.exit();
+    }
+
+    // Device 1 holds component 1 and has a free slot, device 2 is full with component 2.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 2, new DeviceId(2), 1),
+                Map.of(new ComponentId(1), new DeviceId(1), new ComponentId(2), new DeviceId(2)),
+                new StorageSystemOptions());
+    }
+
+    private static void timedOutTransferIsWithdrawn() throws Exception {
+        var system = newSystem();
+        try {
+            system.execute(new TestTransfer(1, 1, 2), 20, TimeUnit.MILLISECONDS);
+            throw new AssertionError("transfer has not timed out");
+        }
+        catch (TransferTimedOut e) {
+            // Expected.
+        }
+        checkWithdrawn(system);
+    }
+
+    private static void interruptedTransferIsWithdrawn() throws Exception {
+        var system = newSystem();
+        var thrown = new CompletableFuture<Throwable>();
+        var thread = new Thread(() -> {
+            try {
+                system.execute(new TestTransfer(1, 1, 2));
+                thrown.complete(null);
+            }
+            catch (Throwable e) {
+                thrown.complete(Thread.currentThread().isInterrupted() ? e : new AssertionError("interrupt is lost", e));
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        awaitWaiting(system, 2);
+        thread.interrupt();
+        Check.isTrue(thrown.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) instanceof TransferInterrupted,
+                "transfer is withdrawn with TransferInterrupted");
+        checkWithdrawn(system);
+    }
+
+    private static void cancelledTransferIsWithdrawn() throws Exception {
+        var system = newSystem();
+        var future = system.executeAsync(new TestTransfer(1, 1, 2));
+        awaitWaiting(system, 2);
+        Check.isTrue(future.cancel(false), "waiting transfer is cancelled");
+        Check.isTrue(future.isCancelled(), "future is cancelled");
+        checkWithdrawn(system);
+    }
+
+    private static void runningTransferIsNotCancelled() throws Exception {
+        var system = newSystem();
+        var preparing = new CountDownLatch(1);
+        var leave = new CountDownLatch(1);
+        var future = system.executeAsync(new TestTransfer(2, 2, 1, () -> {
+            preparing.countDown();
+            try {
+                leave.await();
+            }
+            catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }, () -> {}));
+        Check.isTrue(preparing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "transfer has not started prepare()");
+        Check.isTrue(!future.cancel(true), "running transfer is cancelled");
+        leave.countDown();
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(2)), "location of component 2");
+    }
+
+    // The withdrawn move of component 1 neither waits any more nor gets the slot of device 2 once it's freed.
+    private static void checkWithdrawn(StorageSystemImpl system) throws Exception {
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+        Check.equal(0, system.getMetricsSnapshot().devices().get(new DeviceId(2)).waiting(), "transfers waiting");
+        system.execute(new TestTransfer(2, 2, 1));
+        Check.equal(1, system.getFreeSlots(new DeviceId(2)), "free slots of device 2");
+        Check.equal(new DeviceId(1), system.getLocation(new ComponentId(1)), "location of component 1");
+        system.execute(new TestTransfer(1, 1, 2));
+    }
+
+    private static void awaitWaiting(StorageSystemImpl system, int device) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (system.getMetricsSnapshot().devices().get(new DeviceId(device)).waiting() == 0) {
+            Check.isTrue(System.nanoTime() < deadline, "nothing waits for device " + device);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferException;
+
+/**
+ * Rejections returned by tryExecute() as statuses, each counted once, and the status of a TransferException
+ * subclass which doesn't give one.
+ */
+public final class TryExecuteTest {
+
+    public static void main(String[] args) {
+        Check.run("rejections are returned as statuses", TryExecuteTest::rejectionsAreReturnedAsStatuses);
+        Check.run("timed out wait is returned as a status", TryExecuteTest::timedOutWaitIsReturned);
+        Check.run("subclass without a status is OTHER", TryExecuteTest::subclassWithoutStatusIsOther);
+        Check.exit();
+    }
+
+    // Device 1 holds components 1 and 2 (and has a free slot), device 2 is full with component 3.
+    private static StorageSystemImpl newSystem() {
+        return new StorageSystemImpl(
+                Map.of(new DeviceId(1), 3, new DeviceId(2), 1),
+                Map.of(new ComponentId(1), new DeviceId(1),
+                        new ComponentId(2), new DeviceId(1),
+                        new ComponentId(3), new DeviceId(2)),
+                new StorageSystemOptions());
+    }
+
+    private static void rejectionsAreReturnedAsStatuses() throws Exception {
+        var system = newSystem();
+        Check.equal(TransferStatus.ILLEGAL_TRANSFER_TYPE, system.tryExecute(new TestTransfer(1, null, null)),
+                "null to null");
+        Check.equal(TransferStatus.DEVICE_DOES_NOT_EXIST, system.tryExecute(new TestTransfer(1, 1, 7)),
+                "unknown destination");
+        Check.equal(TransferStatus.COMPONENT_ALREADY_EXISTS, system.tryExecute(new TestTransfer(1, null, 1)),
+                "add of an existing component");
+        Check.equal(TransferStatus.COMPONENT_DOES_NOT_EXIST, system.tryExecute(new TestTransfer(3, 1, 2)),
+                "move from the wrong device");
+        Check.equal(TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER, system.tryExecute(new TestTransfer(1, 1, 1)),
+                "move to the same device");
+        Check.equal(TransferStatus.OK, system.tryExecute(new TestTransfer(1, 1, null)), "delete");
+        Check.equal(TransferStatus.OK, system.tryExecute(new TestTransfer(4, null, 1)), "add");
+
+        var rejections = system.getMetricsSnapshot().rejections();
+        for (var status : new TransferStatus[] {
+                TransferStatus.ILLEGAL_TRANSFER_TYPE, TransferStatus.DEVICE_DOES_NOT_EXIST,
+                TransferStatus.COMPONENT_ALREADY_EXISTS, TransferStatus.COMPONENT_DOES_NOT_EXIST,
+                TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER }) {
+            Check.equal(1L, rejections.get(status), "rejections counted as " + status);
+        }
+    }
+
+    private static void timedOutWaitIsReturned() {
+        var system = newSystem();
+        Check.equal(TransferStatus.TIMED_OUT, system.tryExecute(new TestTransfer(1, 1, 2), 10, TimeUnit.MILLISECONDS),
+                "move to a full device");
+        Check.isTrue(!system.isBeingTransferred(new ComponentId(1)), "component 1 is released");
+        Check.equal(TransferStatus.OK, system.tryExecute(new TestTransfer(3, 2, 1), 10, TimeUnit.MILLISECONDS),
+                "move to a device with a free slot");
+    }
+
+    private static final class LegacyRejection extends TransferException {
+        private static final long serialVersionUID = 1L;
+
+        LegacyRejection() {
+            super("rejected by a subclass written before statuses");
+        }
+    }
+
+    private static void subclassWithoutStatusIsOther() {
+        Check.equal(TransferStatus.OTHER, new LegacyRejection().getStatus(), "status");
+    }
+}
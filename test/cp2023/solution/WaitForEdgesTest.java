@@ -0,0 +1,68 @@
+package cp2023.solution;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/**
+ * Edges of one device, waited on from up to 64 sources: past the linear scan, edges are found through
+ * the index, which has to follow every edge added, removed and moved in its place.
+ */
+public final class WaitForEdgesTest {
+
+    public static void main(String[] args) {
+        Check.run("edges follow random waits", WaitForEdgesTest::edgesFollowRandomWaits);
+        Check.exit();
+    }
+
+    private static void edgesFollowRandomWaits() {
+        var random = new Random(2023);
+        var destination = new Device(1, new DeviceId(0));
+        var sources = new Device[64];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new Device(1, new DeviceId(i + 1));
+        }
+
+        var edges = new WaitForEdges();
+        var expected = new HashMap<Device, ArrayDeque<TransferWrapper>>();
+        var waiting = new ArrayList<TransferWrapper>();
+        for (int step = 0; step < 100_000; step++) {
+            // Mostly adds until there are many edges, then mostly removes until there are few, and so on.
+            boolean growing = (step / 5_000) % 2 == 0;
+            if (waiting.isEmpty() || random.nextInt(4) < (growing ? 3 : 1)) {
+                var source = sources[random.nextInt(sources.length)];
+                var transferWrapper = new TransferWrapper(source, destination,
+                        new Component(new ComponentId(step), source), new TestTransfer(step, 1, 0));
+                edges.add(transferWrapper);
+                expected.computeIfAbsent(source, s -> new ArrayDeque<>()).add(transferWrapper);
+                waiting.add(transferWrapper);
+            }
+            else {
+                var transferWrapper = waiting.remove(random.nextInt(waiting.size()));
+                edges.remove(transferWrapper);
+                var fromSource = expected.get(transferWrapper.sourceDevice);
+                fromSource.remove(transferWrapper);
+                if (fromSource.isEmpty()) {
+                    expected.remove(transferWrapper.sourceDevice);
+                }
+            }
+
+            Check.equal(expected.size(), edges.size(), "edges at step " + step);
+            var targets = new HashSet<Device>();
+            for (int i = 0; i < edges.size(); i++) {
+                targets.add(edges.get(i));
+            }
+            Check.equal(expected.keySet(), targets, "targets at step " + step);
+            for (var source : sources) {
+                var fromSource = expected.get(source);
+                Check.isTrue(edges.firstFrom(source) == (fromSource == null ? null : fromSource.peekFirst()),
+                        "first transfer from " + source.getDeviceId() + " at step " + step);
+            }
+        }
+    }
+}